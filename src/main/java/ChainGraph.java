@@ -0,0 +1,522 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Road graph with its degree-2 chains collapsed. Most vertices of an OSM road graph are
+ * shape points with exactly two neighbours, which a search has to settle one by one
+ * without ever having a choice to make there. Here only the other vertices, called core
+ * vertices, remain: those with one neighbour or more than two. Every maximal path whose
+ * interior consists of degree-2 vertices becomes one chain, a single edge between its two
+ * core end points whose weights are the length and travel time of the whole path, and which
+ * may be travelled in a direction only if every edge of the path allows it. The chain
+ * remembers its interior vertices in order, so that a route found on the core graph expands
+ * back to exactly the node list a search on the full graph returns.
+ * A ring made only of degree-2 vertices has no core vertex; one of its vertices is made a
+ * core vertex so that the ring becomes a chain from it back to itself.
+ * A start or destination inside a chain is handled by entering the core graph at both ends
+ * of its chain, at the cost along the chain, as far as the directions of its edges allow; a
+ * start and destination on the same chain can also be connected directly along it.
+ * Instances are immutable and may be shared between threads.
+ */
+final class ChainGraph {
+    /** The full graph the chains were built from. */
+    private final CompactGraph graph;
+    /** Vertex index in graph of every core vertex. */
+    private final int[] coreVertex;
+    /** Core index of every vertex of graph, or -1 for chain interiors. */
+    private final int[] coreIndex;
+
+    /* Chain k runs from core vertex chainA[k] to chainB[k], through the vertices of graph
+     * interior[chainStart[k]] to interior[chainStart[k + 1]] in that order. */
+    private final int[] chainA;
+    private final int[] chainB;
+    private final int[] chainStart;
+    private final int[] interior;
+    /** Chain of every interior vertex of graph, or -1 for core vertices. */
+    private final int[] chainOf;
+
+    /* Core graph in CSR form: edge e of core vertex c, for e in [offsets[c], offsets[c + 1]),
+     * leads to core vertex targets[e] along chain edgeChain[e], or along chain ~edgeChain[e]
+     * from its B end to its A end if edgeChain[e] is negative. There are only edges in the
+     * directions a chain may be travelled in. Chains from a vertex back to itself are never
+     * on a shortest path and have no edges. */
+    private final int[] offsets;
+    private final int[] targets;
+    /** Length in miles of the chain behind each edge. */
+    private final double[] lengths;
+    /** Travel time in seconds of the chain behind each edge. */
+    private final double[] times;
+    private final int[] edgeChain;
+
+    private ChainGraph(CompactGraph graph, int[] coreVertex, int[] coreIndex, int[] chainA,
+                       int[] chainB, int[] chainStart, int[] interior, int[] chainOf,
+                       int[] offsets, int[] targets, double[] lengths, double[] times,
+                       int[] edgeChain) {
+        this.graph = graph;
+        this.coreVertex = coreVertex;
+        this.coreIndex = coreIndex;
+        this.chainA = chainA;
+        this.chainB = chainB;
+        this.chainStart = chainStart;
+        this.interior = interior;
+        this.chainOf = chainOf;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.lengths = lengths;
+        this.times = times;
+        this.edgeChain = edgeChain;
+    }
+
+    /**
+     * Collapses the degree-2 chains of cg.
+     * @param cg The full graph.
+     * @return The compressed graph.
+     */
+    static ChainGraph build(CompactGraph cg) {
+        int n = cg.size();
+        int[] coreIndex = new int[n];
+        int[] chainOf = new int[n];
+        Arrays.fill(chainOf, -1);
+        int cores = 0;
+        for (int v = 0; v < n; v += 1) {
+            coreIndex[v] = isInterior(cg, v) ? -1 : cores++;
+        }
+        int[] coreVertex = new int[cores];
+        for (int v = 0; v < n; v += 1) {
+            if (coreIndex[v] >= 0) {
+                coreVertex[coreIndex[v]] = v;
+            }
+        }
+
+        Chains chains = new Chains();
+        for (int c = 0; c < cores; c += 1) {
+            walkChains(cg, coreVertex[c], coreIndex, chainOf, chains);
+        }
+        /* Whatever is left are rings of degree-2 vertices. */
+        for (int v = 0; v < n; v += 1) {
+            if (coreIndex[v] < 0 && chainOf[v] < 0) {
+                coreVertex = Arrays.copyOf(coreVertex, cores + 1);
+                coreVertex[cores] = v;
+                coreIndex[v] = cores;
+                cores += 1;
+                walkChains(cg, v, coreIndex, chainOf, chains);
+            }
+        }
+
+        int[] offsets = new int[cores + 1];
+        for (int k = 0; k < chains.count; k += 1) {
+            if (chains.a[k] != chains.b[k]) {
+                int flags = chains.flags[k];
+                offsets[chains.a[k] + 1] += (flags & CompactGraph.FORWARD) != 0 ? 1 : 0;
+                offsets[chains.b[k] + 1] += (flags & CompactGraph.BACKWARD) != 0 ? 1 : 0;
+            }
+        }
+        for (int c = 0; c < cores; c += 1) {
+            offsets[c + 1] += offsets[c];
+        }
+        int[] targets = new int[offsets[cores]];
+        double[] lengths = new double[targets.length];
+        double[] times = new double[targets.length];
+        int[] edgeChain = new int[targets.length];
+        int[] fill = Arrays.copyOf(offsets, cores);
+        for (int k = 0; k < chains.count; k += 1) {
+            int a = chains.a[k];
+            int b = chains.b[k];
+            if (a == b) {
+                continue;
+            }
+            if ((chains.flags[k] & CompactGraph.FORWARD) != 0) {
+                targets[fill[a]] = b;
+                lengths[fill[a]] = chains.length[k];
+                times[fill[a]] = chains.time[k];
+                edgeChain[fill[a]] = k;
+                fill[a] += 1;
+            }
+            if ((chains.flags[k] & CompactGraph.BACKWARD) != 0) {
+                targets[fill[b]] = a;
+                lengths[fill[b]] = chains.length[k];
+                times[fill[b]] = chains.time[k];
+                edgeChain[fill[b]] = ~k;
+                fill[b] += 1;
+            }
+        }
+        return new ChainGraph(cg, coreVertex, coreIndex, Arrays.copyOf(chains.a, chains.count),
+                Arrays.copyOf(chains.b, chains.count),
+                Arrays.copyOf(chains.start, chains.count + 1),
+                Arrays.copyOf(chains.interior, chains.interiorCount), chainOf, offsets,
+                targets, lengths, times, edgeChain);
+    }
+
+    /** Chains under construction. */
+    private static final class Chains {
+        int[] a = new int[64];
+        int[] b = new int[64];
+        double[] length = new double[64];
+        double[] time = new double[64];
+        /** Directions every edge of the chain allows, as CompactGraph flags from A to B. */
+        byte[] flags = new byte[64];
+        int[] start = new int[65];
+        int count;
+        int[] interior = new int[64];
+        int interiorCount;
+
+        void addInterior(int v) {
+            if (interiorCount == interior.length) {
+                interior = Arrays.copyOf(interior, interiorCount * 2);
+            }
+            interior[interiorCount] = v;
+            interiorCount += 1;
+        }
+
+        void finish(int from, int to, double len, double t, int directions) {
+            if (count + 1 == start.length) {
+                a = Arrays.copyOf(a, count * 2);
+                b = Arrays.copyOf(b, count * 2);
+                length = Arrays.copyOf(length, count * 2);
+                time = Arrays.copyOf(time, count * 2);
+                flags = Arrays.copyOf(flags, count * 2);
+                start = Arrays.copyOf(start, count * 2 + 1);
+            }
+            a[count] = from;
+            b[count] = to;
+            length[count] = len;
+            time[count] = t;
+            flags[count] = (byte) directions;
+            count += 1;
+            start[count] = interiorCount;
+        }
+    }
+
+    /**
+     * Whether v may be inside a chain: it has two edges, and they lead to different vertices,
+     * so that a vertex at the end of parallel edges is never passed through.
+     */
+    private static boolean isInterior(CompactGraph cg, int v) {
+        int b = cg.edgeBegin(v);
+        return cg.degree(v) == 2 && cg.edgeTarget(b) != cg.edgeTarget(b + 1);
+    }
+
+    /**
+     * Follows every edge of core vertex u to the next core vertex and records the chains
+     * that have not been recorded from their other end yet.
+     */
+    private static void walkChains(CompactGraph cg, int u, int[] coreIndex, int[] chainOf,
+                                   Chains chains) {
+        for (int e = cg.edgeBegin(u); e < cg.edgeEnd(u); e += 1) {
+            int first = cg.edgeTarget(e);
+            if (coreIndex[first] >= 0) {
+                /* A chain without interior is seen from both ends; record it once. */
+                if (u < first) {
+                    chains.finish(coreIndex[u], coreIndex[first], cg.edgeLength(e),
+                            cg.edgeTime(e), cg.edgeFlags(e));
+                }
+                continue;
+            }
+            if (chainOf[first] >= 0) {
+                continue;
+            }
+            int k = chains.count;
+            int prev = u;
+            int cur = first;
+            int edge = e;
+            double length = 0;
+            double time = 0;
+            int directions = CompactGraph.FORWARD | CompactGraph.BACKWARD;
+            while (coreIndex[cur] < 0) {
+                chains.addInterior(cur);
+                chainOf[cur] = k;
+                length += cg.edgeLength(edge);
+                time += cg.edgeTime(edge);
+                directions &= cg.edgeFlags(edge);
+                int b = cg.edgeBegin(cur);
+                edge = cg.edgeTarget(b) == prev ? b + 1 : b;
+                prev = cur;
+                cur = cg.edgeTarget(edge);
+            }
+            length += cg.edgeLength(edge);
+            time += cg.edgeTime(edge);
+            directions &= cg.edgeFlags(edge);
+            chains.finish(coreIndex[u], coreIndex[cur], length, time, directions);
+        }
+    }
+
+    /** Whether this was built from the given graph. */
+    boolean matches(CompactGraph cg) {
+        return graph == cg;
+    }
+
+    /** Number of core vertices. */
+    int size() {
+        return coreVertex.length;
+    }
+
+    /** Number of directed core edges. */
+    int edgeCount() {
+        return targets.length;
+    }
+
+    /** Number of chains, including those from a core vertex back to itself. */
+    int chainCount() {
+        return chainA.length;
+    }
+
+    /**
+     * Approximate memory taken by the arrays of the compressed graph, on top of the full
+     * graph it refers to for ids and coordinates.
+     * @return The size in bytes.
+     */
+    long byteSize() {
+        return 4L * (coreVertex.length + coreIndex.length + chainOf.length)
+                + (4L + 4 + 4) * chainA.length + 4L * interior.length
+                + 4L * offsets.length + (4L + 8 + 8 + 4) * targets.length;
+    }
+
+    /**
+     * A* on the core graph from source to target, both vertex indices of the full graph,
+     * with the great-circle lower bound on the cost to the target as heuristic. The
+     * heuristic is a lower bound on the remaining cost from any vertex, so once the smallest
+     * key in the queue reaches the best complete path found so far, that path is shortest.
+     * @param source The start vertex.
+     * @param target The destination vertex.
+     * @param ws A workspace for at least size() vertices.
+     * @param metric Whether to minimise the length or the travel time of the path.
+     * @return The path expanded to all vertices of the full graph, its length and travel
+     * time, and the number of core vertices settled.
+     */
+    Router.PathResult route(int source, int target, SearchWorkspace ws, Router.Metric metric) {
+        CompactGraph cg = graph;
+        double tlon = cg.lon(target);
+        double tlat = cg.lat(target);
+        double[] weights = metric == Router.Metric.TIME ? times : lengths;
+        IndexedMinHeap fringe = ws.heap();
+
+        /* Enter the core graph at source, or at both ends of its chain. */
+        if (coreIndex[source] >= 0) {
+            enter(ws, coreIndex[source], 0, tlon, tlat, metric);
+        } else {
+            int k = chainOf[source];
+            int p = positionOf(source) - chainStart[k];
+            enter(ws, chainA[k], along(k, p, -1, metric), tlon, tlat, metric);
+            enter(ws, chainB[k], along(k, p, chainSize(k), metric), tlon, tlat, metric);
+        }
+
+        /* The core vertices from which target is reached, and the cost from them. */
+        int exitA;
+        int exitB;
+        double toTargetFromA;
+        double toTargetFromB;
+        double best = Double.POSITIVE_INFINITY;
+        int bestExit = -1;
+        boolean direct = false;
+        if (coreIndex[target] >= 0) {
+            exitA = coreIndex[target];
+            exitB = -1;
+            toTargetFromA = 0;
+            toTargetFromB = Double.POSITIVE_INFINITY;
+        } else {
+            int k = chainOf[target];
+            int p = positionOf(target) - chainStart[k];
+            exitA = chainA[k];
+            exitB = chainB[k];
+            toTargetFromA = along(k, -1, p, metric);
+            toTargetFromB = along(k, chainSize(k), p, metric);
+            if (chainOf[source] == k) {
+                best = along(k, positionOf(source) - chainStart[k], p, metric);
+                direct = best < Double.POSITIVE_INFINITY;
+            }
+        }
+
+        while (!fringe.isEmpty() && fringe.minKey() < best) {
+            int c = fringe.poll();
+            ws.settle(c);
+            double dc = ws.dist(c);
+            if (c == exitA && dc + toTargetFromA < best) {
+                best = dc + toTargetFromA;
+                bestExit = c;
+                direct = false;
+            }
+            if (c == exitB && dc + toTargetFromB < best) {
+                best = dc + toTargetFromB;
+                bestExit = c;
+                direct = false;
+            }
+            for (int e = offsets[c]; e < offsets[c + 1]; e++) {
+                int w = targets[e];
+                if (ws.settled(w)) {
+                    continue;
+                }
+                double dw = dc + weights[e];
+                if (!ws.reached(w)) {
+                    int v = coreVertex[w];
+                    double hw = cg.lowerBound(cg.lon(v), cg.lat(v), tlon, tlat, metric);
+                    ws.reach(w, dw, e, hw);
+                    fringe.push(w, dw + hw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, e);
+                    fringe.push(w, dw + ws.heuristic(w));
+                }
+            }
+        }
+
+        List<Long> path = new ArrayList<>();
+        if (direct) {
+            walkWithinChain(chainOf[source], source, target, path);
+        } else if (bestExit >= 0) {
+            expand(source, target, bestExit, ws, path, metric);
+        }
+        return Router.measure(cg, path, best, metric, ws.settledCount());
+    }
+
+    /** Starts the search at core vertex c, which costs d to reach from the source. */
+    private void enter(SearchWorkspace ws, int c, double d, double tlon, double tlat,
+                       Router.Metric metric) {
+        if (d == Double.POSITIVE_INFINITY) {
+            return;
+        }
+        int v = coreVertex[c];
+        if (ws.reached(c)) {
+            /* Both ends of a chain from a vertex back to itself. */
+            if (d < ws.dist(c)) {
+                ws.relax(c, d, -1);
+                ws.heap().push(c, d + ws.heuristic(c));
+            }
+            return;
+        }
+        double h = graph.lowerBound(graph.lon(v), graph.lat(v), tlon, tlat, metric);
+        ws.reach(c, d, -1, h);
+        ws.heap().push(c, d + h);
+    }
+
+    /** Number of interior vertices of chain k. */
+    private int chainSize(int k) {
+        return chainStart[k + 1] - chainStart[k];
+    }
+
+    /**
+     * Vertex at position p along chain k: its A end at -1, its interior vertices from 0,
+     * and its B end at chainSize(k).
+     */
+    private int vertexAt(int k, int p) {
+        if (p < 0) {
+            return coreVertex[chainA[k]];
+        }
+        return p < chainSize(k) ? interior[chainStart[k] + p] : coreVertex[chainB[k]];
+    }
+
+    /**
+     * Cost of walking along chain k from position from to position to (see vertexAt), or
+     * positive infinity if an edge on the way may not be travelled in that direction.
+     */
+    private double along(int k, int from, int to, Router.Metric metric) {
+        int step = from <= to ? 1 : -1;
+        double cost = 0;
+        for (int p = from; p != to; p += step) {
+            int v = vertexAt(k, p);
+            int w = vertexAt(k, p + step);
+            int e = graph.edgeBegin(v);
+            while (graph.edgeTarget(e) != w) {
+                e += 1;
+            }
+            if (!graph.isForward(e)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            cost += graph.weight(e, metric);
+        }
+        return cost;
+    }
+
+    /** Position of interior vertex v in the interior array. */
+    private int positionOf(int v) {
+        int k = chainOf[v];
+        for (int i = chainStart[k]; i < chainStart[k + 1]; i += 1) {
+            if (interior[i] == v) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Vertex " + v + " is not inside chain " + k);
+    }
+
+    /** Appends the vertices from interior vertex v to w of chain k, both included. */
+    private void walkWithinChain(int k, int v, int w, List<Long> path) {
+        int i = positionOf(v);
+        int j = positionOf(w);
+        int step = i <= j ? 1 : -1;
+        for (int p = i; p != j + step; p += step) {
+            path.add(graph.id(interior[p]));
+        }
+    }
+
+    /**
+     * Appends the path from source to target that leaves the core graph at core vertex
+     * exit, following the parent edges of the search.
+     */
+    private void expand(int source, int target, int exit, SearchWorkspace ws,
+                        List<Long> path, Router.Metric metric) {
+        /* Core edges from the entry to exit, collected backwards. */
+        List<Integer> edges = new ArrayList<>();
+        int c = exit;
+        for (int e = ws.parent(c); e >= 0; e = ws.parent(c)) {
+            edges.add(e);
+            int k = edgeChain[e] >= 0 ? edgeChain[e] : ~edgeChain[e];
+            c = edgeChain[e] >= 0 ? chainA[k] : chainB[k];
+        }
+        Collections.reverse(edges);
+        int entry = c;
+
+        /* From source along its chain to the entry. */
+        if (coreIndex[source] < 0) {
+            int k = chainOf[source];
+            int i = positionOf(source);
+            int end = entry == chainA[k] && !leavesByB(k, source, entry, metric)
+                    ? chainStart[k] - 1 : chainStart[k + 1];
+            int step = end < i ? -1 : 1;
+            for (int p = i; p != end; p += step) {
+                path.add(graph.id(interior[p]));
+            }
+        }
+        path.add(graph.id(coreVertex[entry]));
+
+        for (int e : edges) {
+            int k = edgeChain[e] >= 0 ? edgeChain[e] : ~edgeChain[e];
+            if (edgeChain[e] >= 0) {
+                for (int p = chainStart[k]; p < chainStart[k + 1]; p += 1) {
+                    path.add(graph.id(interior[p]));
+                }
+                path.add(graph.id(coreVertex[chainB[k]]));
+            } else {
+                for (int p = chainStart[k + 1] - 1; p >= chainStart[k]; p -= 1) {
+                    path.add(graph.id(interior[p]));
+                }
+                path.add(graph.id(coreVertex[chainA[k]]));
+            }
+        }
+
+        /* From exit along the target's chain to the target. */
+        if (coreIndex[target] < 0) {
+            int k = chainOf[target];
+            int j = positionOf(target);
+            int p = j - chainStart[k];
+            boolean fromA = exit == chainA[k] && (exit != chainB[k]
+                    || along(k, -1, p, metric) <= along(k, chainSize(k), p, metric));
+            int step = fromA ? 1 : -1;
+            for (int i = fromA ? chainStart[k] : chainStart[k + 1] - 1; i != j + step;
+                    i += step) {
+                path.add(graph.id(interior[i]));
+            }
+        }
+    }
+
+    /**
+     * Whether the search left the chain of source through its B end. Only ambiguous for a
+     * chain from a vertex back to itself, where it went the cheaper way.
+     */
+    private boolean leavesByB(int k, int source, int entry, Router.Metric metric) {
+        if (chainA[k] != chainB[k]) {
+            return entry == chainB[k];
+        }
+        int p = positionOf(source) - chainStart[k];
+        return along(k, p, chainSize(k), metric) < along(k, p, -1, metric);
+    }
+}
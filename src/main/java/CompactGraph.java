@@ -0,0 +1,471 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Frozen, compressed sparse row (CSR) storage for the road graph.
+ * Every vertex gets a dense int index in [0, size()), assigned in ascending order of its
+ * OSM id, so the id of a vertex can be recovered from a single array read and an id can be
+ * mapped back to its index with a binary search. Coordinates live in parallel double arrays,
+ * and the neighbours of vertex v are edgeTarget(e) for e in [edgeBegin(v), edgeEnd(v)).
+ * Every edge also records the name of the way it came from, as an index into a table of
+ * distinct names, so that directions can name the streets they follow.
+ * <p>
+ * Edges carry their weights with them: the great-circle length of the segment in miles,
+ * and the time in seconds it takes at the speed of its way, so that searches read a weight
+ * from an array instead of evaluating the haversine formula on every relaxation. Every road
+ * segment is stored once at each of its ends, whichever directions it may be travelled in,
+ * and flags say which: isForward(e) whether edge e may be followed from its source to its
+ * target, isBackward(e) whether the reverse is allowed. A forward search only follows
+ * forward edges, while a backward search from a destination walks the same adjacency lists
+ * and only follows backward edges. In a graph loaded without one-way restrictions every
+ * edge is both.
+ * The arrays are held as NIO buffers. A graph built by freeze wraps ordinary heap arrays,
+ * while a graph opened with GraphSnapshot.map views the sections of a memory-mapped
+ * snapshot file directly, so that its size is not limited by the Java heap and its pages
+ * are shared through the OS page cache. Only absolute get(int) is ever used on the buffers,
+ * so they are safe to share between threads.
+ * Nothing here is boxed, so hot loops such as the routing searches should iterate over
+ * indices instead of going through the Iterable based GraphDB methods:
+ * <pre>
+ *     for (int e = cg.edgeBegin(v); e &lt; cg.edgeEnd(v); e++) {
+ *         int w = cg.edgeTarget(e);
+ *         ...
+ *     }
+ * </pre>
+ * Instances are immutable once built.
+ */
+final class CompactGraph {
+    /** OSM ids of all vertices, sorted ascending. ids[v] is the id of vertex index v. */
+    private final LongBuffer ids;
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    /** offsets[v] is the first edge of v; offsets[size()] is the number of edges. */
+    private final IntBuffer offsets;
+    /** Target vertex index of every edge, grouped by source vertex. */
+    private final IntBuffer targets;
+    /** Index into names of the way each edge belongs to. */
+    private final IntBuffer edgeNames;
+    /** FORWARD and BACKWARD bits of every edge. */
+    private final ByteBuffer flags;
+    /** Length of every edge in miles. */
+    private final DoubleBuffer lengths;
+    /** Travel time of every edge in seconds. */
+    private final DoubleBuffer times;
+    /** Distinct way names; names[0] is the empty name of unnamed ways. */
+    private final String[] names;
+    private final int size;
+    /** Whether some edge may only be travelled in one direction. */
+    private final boolean directed;
+    /** Highest speed of any edge in miles per hour, or 0 until it is first asked for. */
+    private volatile double maxSpeed;
+    /** Scale of longitude differences in distanceBound, or NaN until it is first asked for. */
+    private volatile double lonScale = Double.NaN;
+
+    /** Flag of an edge that may be followed from its source to its target. */
+    static final byte FORWARD = 1;
+    /** Flag of an edge whose target may be left towards its source. */
+    static final byte BACKWARD = 2;
+    /** Speed of ways whose speed is not known, in miles per hour. */
+    static final double DEFAULT_SPEED = 25;
+    /**
+     * Miles per degree of latitude, as used by GraphDB.distance, shrunk a little so that
+     * rounding never lets distanceBound exceed a computed great-circle distance.
+     */
+    private static final double MILES_PER_DEGREE = Math.toRadians(3963) * (1 - 1e-9);
+
+    /**
+     * Creates an undirected graph whose edges all have the default speed, with lengths
+     * computed from the coordinates.
+     */
+    CompactGraph(long[] ids, double[] lons, double[] lats, int[] offsets, int[] targets,
+                 int[] edgeNames, String[] names) {
+        this(ids, lons, lats, offsets, targets, edgeNames, names, null, null);
+    }
+
+    /**
+     * Creates a graph from heap arrays, computing the length of every edge from the
+     * coordinates and its time from the speed of its way.
+     * @param flags FORWARD and BACKWARD bits of every edge, or null if every edge is both.
+     * @param speeds Speed of every edge in miles per hour, or null for DEFAULT_SPEED.
+     */
+    CompactGraph(long[] ids, double[] lons, double[] lats, int[] offsets, int[] targets,
+                 int[] edgeNames, String[] names, byte[] flags, double[] speeds) {
+        this(LongBuffer.wrap(ids), DoubleBuffer.wrap(lons), DoubleBuffer.wrap(lats),
+                IntBuffer.wrap(offsets), IntBuffer.wrap(targets), IntBuffer.wrap(edgeNames),
+                names, ByteBuffer.wrap(flags != null ? flags : bothWays(targets.length)),
+                DoubleBuffer.wrap(new double[targets.length]),
+                DoubleBuffer.wrap(new double[targets.length]));
+        for (int v = 0; v < size; v += 1) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+                int w = targets[e];
+                double length = GraphDB.distance(lons[v], lats[v], lons[w], lats[w]);
+                lengths.put(e, length);
+                times.put(e, length / (speeds != null ? speeds[e] : DEFAULT_SPEED) * 3600);
+            }
+        }
+    }
+
+    CompactGraph(LongBuffer ids, DoubleBuffer lons, DoubleBuffer lats, IntBuffer offsets,
+                 IntBuffer targets, IntBuffer edgeNames, String[] names, ByteBuffer flags,
+                 DoubleBuffer lengths, DoubleBuffer times) {
+        this.size = ids.limit();
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.edgeNames = edgeNames;
+        this.names = names;
+        this.flags = flags;
+        this.lengths = lengths;
+        this.times = times;
+        boolean oneWay = false;
+        for (int e = 0; e < flags.limit() && !oneWay; e += 1) {
+            oneWay = flags.get(e) != (FORWARD | BACKWARD);
+        }
+        this.directed = oneWay;
+    }
+
+    private static byte[] bothWays(int m) {
+        byte[] flags = new byte[m];
+        Arrays.fill(flags, (byte) (FORWARD | BACKWARD));
+        return flags;
+    }
+
+    /**
+     * Builds the frozen graph from the mutable nodes collected while parsing. Every node in
+     * the map must already have at least one neighbour (see GraphDB.clean). Self loops are
+     * dropped, and so are duplicate edges of ways with the same name and speed, which appear
+     * whenever such ways share a segment; ways that differ keep parallel edges, so a route
+     * may take the faster of them. Otherwise each vertex keeps its neighbours in the order
+     * they were added. Every edge may be travelled both ways.
+     * @param nodes The parsed nodes keyed by id.
+     * @param names The way names that the nodes' adjName entries refer to; the first must
+     *              be the empty name.
+     * @return The CSR form of the graph.
+     */
+    static CompactGraph freeze(Map<Long, GraphDB.Node> nodes, List<String> names) {
+        int n = nodes.size();
+        long[] ids = new long[n];
+        int i = 0;
+        for (long id : nodes.keySet()) {
+            ids[i] = id;
+            i += 1;
+        }
+        Arrays.sort(ids);
+
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int[] offsets = new int[n + 1];
+        int edges = 0;
+        for (int v = 0; v < n; v += 1) {
+            GraphDB.Node node = nodes.get(ids[v]);
+            lons[v] = node.lon;
+            lats[v] = node.lat;
+            edges += node.adjN.size();
+        }
+
+        int[] targets = new int[edges];
+        int[] edgeNames = new int[edges];
+        double[] speeds = new double[edges];
+        int e = 0;
+        for (int v = 0; v < n; v += 1) {
+            offsets[v] = e;
+            GraphDB.Node node = nodes.get(ids[v]);
+            for (int k = 0; k < node.adjN.size(); k += 1) {
+                int w = Arrays.binarySearch(ids, node.adjN.get(k));
+                int name = node.adjName.get(k);
+                double speed = node.adjSpeed.get(k);
+                if (w >= 0 && w != v
+                        && !contains(targets, edgeNames, speeds, offsets[v], e, w, name, speed)) {
+                    targets[e] = w;
+                    edgeNames[e] = name;
+                    speeds[e] = speed;
+                    e += 1;
+                }
+            }
+        }
+        offsets[n] = e;
+        return new CompactGraph(ids, lons, lats, offsets, Arrays.copyOf(targets, e),
+                Arrays.copyOf(edgeNames, e), names.toArray(new String[0]), null,
+                Arrays.copyOf(speeds, e));
+    }
+
+    /** Whether an edge in [from, to) has the given target, name and speed. */
+    private static boolean contains(int[] targets, int[] names, double[] speeds, int from,
+                                    int to, int target, int name, double speed) {
+        for (int i = from; i < to; i += 1) {
+            if (targets[i] == target && names[i] == name && speeds[i] == speed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Number of vertices. */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of directed edges. Every road segment is stored once at each end, even if it
+     * may only be travelled one way.
+     */
+    int edgeCount() {
+        return targets.limit();
+    }
+
+    /**
+     * Maps an OSM id to its dense vertex index.
+     * @param id The OSM id of the vertex.
+     * @return The index of the vertex, or -1 if it is not in the graph.
+     */
+    int index(long id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** OSM id of vertex index v. */
+    long id(int v) {
+        return ids.get(v);
+    }
+
+    /** Longitude of vertex index v. */
+    double lon(int v) {
+        return lons.get(v);
+    }
+
+    /** Latitude of vertex index v. */
+    double lat(int v) {
+        return lats.get(v);
+    }
+
+    /** First edge of vertex index v. */
+    int edgeBegin(int v) {
+        return offsets.get(v);
+    }
+
+    /** One past the last edge of vertex index v. */
+    int edgeEnd(int v) {
+        return offsets.get(v + 1);
+    }
+
+    /** Number of neighbours of vertex index v. */
+    int degree(int v) {
+        return offsets.get(v + 1) - offsets.get(v);
+    }
+
+    /** Target vertex index of edge e. */
+    int edgeTarget(int e) {
+        return targets.get(e);
+    }
+
+    /** Whether edge e may be followed from its source to its target. */
+    boolean isForward(int e) {
+        return (flags.get(e) & FORWARD) != 0;
+    }
+
+    /** Whether the target of edge e may be left towards its source. */
+    boolean isBackward(int e) {
+        return (flags.get(e) & BACKWARD) != 0;
+    }
+
+    /** FORWARD and BACKWARD bits of edge e. */
+    byte edgeFlags(int e) {
+        return flags.get(e);
+    }
+
+    /** Whether some edge may only be travelled in one direction. */
+    boolean isDirected() {
+        return directed;
+    }
+
+    /** Great-circle length of edge e in miles. */
+    double edgeLength(int e) {
+        return lengths.get(e);
+    }
+
+    /** Time it takes to travel edge e at the speed of its way, in seconds. */
+    double edgeTime(int e) {
+        return times.get(e);
+    }
+
+    /**
+     * Weight of edge e under a routing metric.
+     * @param e The edge.
+     * @param metric Whether to weigh edges by length or by travel time.
+     * @return The length of e in miles, or its travel time in seconds.
+     */
+    double weight(int e, Router.Metric metric) {
+        return metric == Router.Metric.TIME ? times.get(e) : lengths.get(e);
+    }
+
+    /**
+     * Lower bound on the weight of any path between two points, for A* style heuristics:
+     * distanceBound, or the time it takes to cover that distance at the highest speed of
+     * any edge. Both points must lie within the bounding box of the vertices, as the
+     * coordinates of vertices always do.
+     * @param lonV The longitude of the first point.
+     * @param latV The latitude of the first point.
+     * @param lonW The longitude of the second point.
+     * @param latW The latitude of the second point.
+     * @param metric The metric the bound is for.
+     * @return The bound in miles or seconds.
+     */
+    double lowerBound(double lonV, double latV, double lonW, double latW,
+                      Router.Metric metric) {
+        double distance = distanceBound(lonV, latV, lonW, latW);
+        return metric == Router.Metric.TIME ? distance / maxSpeed() * 3600 : distance;
+    }
+
+    /**
+     * Lower bound on the great-circle distance between two points within the bounding box
+     * of the vertices, computed without any trig: their distance in an equirectangular
+     * projection whose longitudes are scaled by lonScale(). Being a planar distance it obeys
+     * the triangle inequality, so it is a consistent A* heuristic as well as an admissible
+     * one.
+     * @param lonV The longitude of the first point.
+     * @param latV The latitude of the first point.
+     * @param lonW The longitude of the second point.
+     * @param latW The latitude of the second point.
+     * @return A distance in miles no greater than GraphDB.distance of the two points.
+     */
+    double distanceBound(double lonV, double latV, double lonW, double latW) {
+        double dx = (lonV - lonW) * lonScale();
+        double dy = latV - latW;
+        return Math.sqrt(dx * dx + dy * dy) * MILES_PER_DEGREE;
+    }
+
+    /**
+     * Factor that scales longitude differences in distanceBound. By the haversine formula,
+     * hav(c) = hav(dphi) + cos(phi1) cos(phi2) hav(dlambda) for central angle c. The cosines
+     * are at least cos(phiMax)^2, where phiMax is the largest absolute latitude of any
+     * vertex, and sin(x) >= x sinc(X) for x <= X, where X is half the longitude span, so
+     * the second term is at least hav(k dlambda) with k = cos(phiMax) sinc(X). As hav(sqrt(u))
+     * is concave in u up to pi^2 it is subadditive, so c is at least sqrt(dphi^2 +
+     * (k dlambda)^2). Should the box be so large that this can exceed pi, the longitude
+     * term is dropped and the bound falls back to the latitude difference.
+     * @return k, in [0, 1].
+     */
+    double lonScale() {
+        double k = lonScale;
+        if (Double.isNaN(k)) {
+            double minLon = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY;
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            for (int v = 0; v < size; v += 1) {
+                minLon = Math.min(minLon, lons.get(v));
+                maxLon = Math.max(maxLon, lons.get(v));
+                minLat = Math.min(minLat, lats.get(v));
+                maxLat = Math.max(maxLat, lats.get(v));
+            }
+            k = 0;
+            if (size > 0) {
+                double x = Math.toRadians(maxLon - minLon) / 2;
+                double phiMax = Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat)));
+                k = Math.cos(phiMax) * (x == 0 ? 1 : Math.sin(x) / x);
+                if (Math.hypot(Math.toRadians(maxLat - minLat), 2 * x * k) > Math.PI) {
+                    k = 0;
+                }
+            }
+            lonScale = k;
+        }
+        return k;
+    }
+
+    /** Highest speed of any edge in miles per hour. */
+    double maxSpeed() {
+        double speed = maxSpeed;
+        if (speed == 0) {
+            speed = DEFAULT_SPEED;
+            for (int e = 0; e < times.limit(); e += 1) {
+                if (times.get(e) > 0) {
+                    speed = Math.max(speed, lengths.get(e) / times.get(e) * 3600);
+                }
+            }
+            /* Rounding in length / time must not let the bound exceed a true time. */
+            speed *= 1 + 1e-9;
+            maxSpeed = speed;
+        }
+        return speed;
+    }
+
+    /** Index of the name of the way edge e belongs to; 0 if the way is unnamed. */
+    int edgeName(int e) {
+        return edgeNames.get(e);
+    }
+
+    /** Name of the way edge e belongs to, or the empty string if the way is unnamed. */
+    String wayName(int e) {
+        return names[edgeNames.get(e)];
+    }
+
+    /** Number of distinct way names, including the empty name at index 0. */
+    int nameCount() {
+        return names.length;
+    }
+
+    /** The way name with index i. */
+    String name(int i) {
+        return names[i];
+    }
+
+    /**
+     * Returns a checksum of the vertex ids, the adjacency structure and the edge weights.
+     * Data derived from the graph and saved to disk (such as a contraction hierarchy)
+     * records it, so that it can tell when it no longer matches the graph it is loaded for.
+     * @return The CRC32 of the ids, offsets, targets, flags and travel times.
+     */
+    long fingerprint() {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        for (int v = 0; v < size; v += 1) {
+            if (buf.remaining() < Long.BYTES) {
+                flush(crc, buf);
+            }
+            buf.putLong(ids.get(v));
+        }
+        for (IntBuffer a : new IntBuffer[] {offsets, targets}) {
+            for (int i = 0; i < a.limit(); i += 1) {
+                if (buf.remaining() < Integer.BYTES) {
+                    flush(crc, buf);
+                }
+                buf.putInt(a.get(i));
+            }
+        }
+        int m = targets.limit();
+        for (int e = 0; e < m; e += 1) {
+            if (buf.remaining() < 1 + Double.BYTES) {
+                flush(crc, buf);
+            }
+            buf.put(flags.get(e));
+            buf.putDouble(times.get(e));
+        }
+        flush(crc, buf);
+        return crc.getValue();
+    }
+
+    private static void flush(CRC32 crc, ByteBuffer buf) {
+        crc.update(buf.array(), 0, buf.position());
+        buf.clear();
+    }
+}
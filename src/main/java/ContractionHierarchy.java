@@ -0,0 +1,706 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Contraction Hierarchies (Geisberger et al.) over a CompactGraph, for fast point-to-point
+ * queries on a static road graph.
+ * Preprocessing contracts the vertices one at a time in order of importance (cheapest
+ * first, as estimated by the edge difference). Contracting v removes it from the graph and,
+ * for every pair of neighbours u, w whose shortest path ran through v, adds a shortcut edge
+ * u -> w remembering v as its middle vertex. A shortest path between two vertices then
+ * always exists that first only climbs in contraction rank and then only descends, so a
+ * query is a bidirectional Dijkstra in which both halves only follow upward edges and meet
+ * at the highest vertex of the path. Shortcuts are finally unpacked recursively through
+ * their middle vertices to recover the full vertex list.
+ * Edges are weighted under one Router.Metric, and only followed in the directions the
+ * graph allows them, so a hierarchy answers queries for the metric it was built for.
+ * The hierarchy can be saved and loaded, so the preprocessing only has to run once per graph.
+ */
+final class ContractionHierarchy {
+    /** Format marker of saved hierarchies. */
+    private static final int MAGIC = 0x43483032; // "CH02"
+    /** Maximum number of vertices a witness search may settle before giving up. */
+    private static final int WITNESS_SETTLE_LIMIT = 300;
+
+    /** Fingerprint of the graph the hierarchy was built for. */
+    private final long fingerprint;
+    /** What the edge weights measure. */
+    private final Router.Metric metric;
+    /** Contraction rank of every vertex; higher ranks were contracted later. */
+    private final int[] rank;
+    /** Upward edges v -> w (rank[w] > rank[v]), stored at v. */
+    private final int[] upOffsets;
+    private final int[] upHeads;
+    private final double[] upWeights;
+    /** Middle vertex of each upward edge, or -1 if it is an edge of the original graph. */
+    private final int[] upMids;
+    /** Downward edges w -> v (rank[w] > rank[v]), stored at v with head w. */
+    private final int[] downOffsets;
+    private final int[] downHeads;
+    private final double[] downWeights;
+    private final int[] downMids;
+
+    private ContractionHierarchy(long fingerprint, Router.Metric metric, int[] rank,
+                                 int[] upOffsets, int[] upHeads, double[] upWeights,
+                                 int[] upMids, int[] downOffsets, int[] downHeads,
+                                 double[] downWeights, int[] downMids) {
+        this.fingerprint = fingerprint;
+        this.metric = metric;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upHeads = upHeads;
+        this.upWeights = upWeights;
+        this.upMids = upMids;
+        this.downOffsets = downOffsets;
+        this.downHeads = downHeads;
+        this.downWeights = downWeights;
+        this.downMids = downMids;
+    }
+
+    /**
+     * Runs the preprocessing over a graph, weighting every edge by its great-circle length.
+     * @param cg The graph.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(CompactGraph cg) {
+        return build(cg, Router.Metric.DISTANCE);
+    }
+
+    /**
+     * Runs the preprocessing over a graph, weighting every edge under metric.
+     * @param cg The graph.
+     * @param metric Whether queries minimise length or travel time.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(CompactGraph cg, Router.Metric metric) {
+        return new Contractor(cg, metric).run();
+    }
+
+    /**
+     * Loads the distance hierarchy saved at path if it was built for cg, and otherwise
+     * builds it and tries to save it there for next time.
+     * @param cg The graph.
+     * @param path Where the hierarchy is cached.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy loadOrBuild(CompactGraph cg, String path) {
+        return loadOrBuild(cg, path, Router.Metric.DISTANCE);
+    }
+
+    /**
+     * Loads the hierarchy saved at path if it was built for cg and metric, and otherwise
+     * builds it and tries to save it there for next time.
+     * @param cg The graph.
+     * @param path Where the hierarchy is cached.
+     * @param metric Whether queries minimise length or travel time.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy loadOrBuild(CompactGraph cg, String path, Router.Metric metric) {
+        File file = new File(path);
+        if (file.isFile()) {
+            try {
+                ContractionHierarchy ch = load(path);
+                if (ch.matches(cg) && ch.metric == metric) {
+                    return ch;
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable contraction hierarchy " + path);
+            }
+        }
+        ContractionHierarchy ch = build(cg, metric);
+        try {
+            ch.save(path);
+        } catch (IOException e) {
+            System.out.println("Could not save contraction hierarchy to " + path);
+        }
+        return ch;
+    }
+
+    /** Whether this hierarchy was built for the given graph. */
+    boolean matches(CompactGraph cg) {
+        return rank.length == cg.size() && fingerprint == cg.fingerprint();
+    }
+
+    /** What the edge weights of this hierarchy measure. */
+    Router.Metric metric() {
+        return metric;
+    }
+
+    /** Number of shortcut edges added by the preprocessing. */
+    int shortcutCount() {
+        int count = 0;
+        for (int mid : upMids) {
+            count += mid >= 0 ? 1 : 0;
+        }
+        for (int mid : downMids) {
+            count += mid >= 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Runs the bidirectional upward search between source and target. Both workspaces must
+     * have been reset; afterwards they hold the forward and backward search trees, and
+     * forward.dist(m) + backward.dist(m) is the cost of the shortest path for the
+     * returned meeting vertex m.
+     * @param source The source vertex index.
+     * @param target The target vertex index.
+     * @param forward Workspace for the search from the source.
+     * @param backward Workspace for the search from the target.
+     * @return The meeting vertex, or -1 if target is unreachable from source.
+     */
+    int meet(int source, int target, SearchWorkspace forward, SearchWorkspace backward) {
+        forward.reach(source, 0, -1, 0);
+        forward.heap().push(source, 0);
+        backward.reach(target, 0, -1, 0);
+        backward.heap().push(target, 0);
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        while (true) {
+            double fKey = forward.heap().minKey();
+            double bKey = backward.heap().minKey();
+            boolean forwardDone = fKey >= best;
+            boolean backwardDone = bKey >= best;
+            if (forwardDone && backwardDone) {
+                return meeting;
+            }
+            SearchWorkspace ws;
+            SearchWorkspace other;
+            boolean up = !forwardDone && (backwardDone || fKey <= bKey);
+            if (up) {
+                ws = forward;
+                other = backward;
+            } else {
+                ws = backward;
+                other = forward;
+            }
+            int v = ws.heap().poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            if (other.reached(v) && dv + other.dist(v) < best) {
+                best = dv + other.dist(v);
+                meeting = v;
+            }
+            int[] offsets = up ? upOffsets : downOffsets;
+            int[] heads = up ? upHeads : downHeads;
+            double[] weights = up ? upWeights : downWeights;
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = heads[e];
+                double dw = dv + weights[e];
+                if (!ws.reached(w)) {
+                    ws.reach(w, dw, v, 0);
+                    ws.heap().push(w, dw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    ws.heap().push(w, dw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a complete one-directional search in the hierarchy from root, following only
+     * upward edges (forward) or only reversed downward edges (backward). Afterwards the
+     * workspace holds the distance of every vertex in root's search space; these are the
+     * building blocks of the bucket-based many-to-many query.
+     * @param root The vertex to search from.
+     * @param forward Whether to search from root as a source or as a target.
+     * @param ws A reset workspace.
+     */
+    void upwardSearch(int root, boolean forward, SearchWorkspace ws) {
+        int[] offsets = forward ? upOffsets : downOffsets;
+        int[] heads = forward ? upHeads : downHeads;
+        double[] weights = forward ? upWeights : downWeights;
+        ws.reach(root, 0, -1, 0);
+        ws.heap().push(root, 0);
+        while (!ws.heap().isEmpty()) {
+            int v = ws.heap().poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = heads[e];
+                double dw = dv + weights[e];
+                if (!ws.reached(w)) {
+                    ws.reach(w, dw, v, 0);
+                    ws.heap().push(w, dw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    ws.heap().push(w, dw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recovers the full vertex path of the last meet() call, expanding every shortcut.
+     * @param meeting The vertex returned by meet.
+     * @param forward The forward workspace passed to meet.
+     * @param backward The backward workspace passed to meet.
+     * @return The vertex indices from source to target.
+     */
+    int[] unpack(int meeting, SearchWorkspace forward, SearchWorkspace backward) {
+        IntList path = new IntList();
+        IntList chain = new IntList();
+        for (int v = meeting; v >= 0; v = forward.parent(v)) {
+            chain.add(v);
+        }
+        path.add(chain.get(chain.size() - 1));
+        for (int i = chain.size() - 1; i > 0; i--) {
+            unpackEdge(chain.get(i), chain.get(i - 1), path);
+        }
+        for (int v = meeting; backward.parent(v) >= 0; v = backward.parent(v)) {
+            unpackEdge(v, backward.parent(v), path);
+        }
+        return path.toArray();
+    }
+
+    /** Appends the original vertices of edge a -> b, excluding a, to path. */
+    private void unpackEdge(int a, int b, IntList path) {
+        IntList stack = new IntList();
+        stack.add(b);
+        stack.add(a);
+        while (stack.size() > 0) {
+            int from = stack.pop();
+            int to = stack.pop();
+            int mid = middle(from, to);
+            if (mid < 0) {
+                path.add(to);
+            } else {
+                stack.add(to);
+                stack.add(mid);
+                stack.add(mid);
+                stack.add(from);
+            }
+        }
+    }
+
+    /** Middle vertex of the hierarchy edge a -> b, or -1 if it is an original edge. */
+    private int middle(int a, int b) {
+        if (rank[a] < rank[b]) {
+            for (int e = upOffsets[a]; e < upOffsets[a + 1]; e++) {
+                if (upHeads[e] == b) {
+                    return upMids[e];
+                }
+            }
+        } else {
+            for (int e = downOffsets[b]; e < downOffsets[b + 1]; e++) {
+                if (downHeads[e] == a) {
+                    return downMids[e];
+                }
+            }
+        }
+        throw new IllegalStateException("No hierarchy edge from " + a + " to " + b);
+    }
+
+    /**
+     * Saves the hierarchy in a compact binary format.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fingerprint);
+            out.writeInt(metric.ordinal());
+            writeInts(out, rank);
+            writeInts(out, upOffsets);
+            writeInts(out, upHeads);
+            writeDoubles(out, upWeights);
+            writeInts(out, upMids);
+            writeInts(out, downOffsets);
+            writeInts(out, downHeads);
+            writeDoubles(out, downWeights);
+            writeInts(out, downMids);
+        }
+    }
+
+    /**
+     * Loads a hierarchy written by save.
+     * @param path The file to read.
+     * @return The hierarchy; check matches() before using it with a graph.
+     * @throws IOException If the file cannot be read or is not a saved hierarchy.
+     */
+    static ContractionHierarchy load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a contraction hierarchy");
+            }
+            long fingerprint = in.readLong();
+            int metric = in.readInt();
+            if (metric < 0 || metric >= Router.Metric.values().length) {
+                throw new IOException(path + " is not a contraction hierarchy");
+            }
+            return new ContractionHierarchy(fingerprint, Router.Metric.values()[metric],
+                    readInts(in), readInts(in),
+                    readInts(in), readDoubles(in), readInts(in), readInts(in), readInts(in),
+                    readDoubles(in), readInts(in));
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        out.writeInt(a.length);
+        for (int x : a) {
+            out.writeInt(x);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] a) throws IOException {
+        out.writeInt(a.length);
+        for (double x : a) {
+            out.writeDouble(x);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] a = new int[in.readInt()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = in.readInt();
+        }
+        return a;
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] a = new double[in.readInt()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = in.readDouble();
+        }
+        return a;
+    }
+
+    /** Growable list of ints. */
+    private static final class IntList {
+        private int[] items = new int[16];
+        private int size;
+
+        void add(int x) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = x;
+            size += 1;
+        }
+
+        int get(int i) {
+            return items[i];
+        }
+
+        int pop() {
+            size -= 1;
+            return items[size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+
+    /**
+     * The preprocessing: a mutable copy of the graph that vertices are contracted out of,
+     * ordered by a lazily updated priority queue.
+     */
+    private static final class Contractor {
+        private final CompactGraph cg;
+        private final Router.Metric metric;
+        private final int n;
+        /** Outgoing and incoming edges of every vertex, including shortcuts. */
+        private final Adjacency out;
+        private final Adjacency in;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        private final int[] rank;
+        private final SearchWorkspace witness;
+        /** Hierarchy edges, recorded at their lower endpoint as it is contracted. */
+        private final EdgeList up = new EdgeList();
+        private final EdgeList down = new EdgeList();
+
+        Contractor(CompactGraph cg, Router.Metric metric) {
+            this.cg = cg;
+            this.metric = metric;
+            this.n = cg.size();
+            out = new Adjacency(n);
+            in = new Adjacency(n);
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            rank = new int[n];
+            witness = new SearchWorkspace(n);
+            for (int v = 0; v < n; v++) {
+                for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                    if (cg.isForward(e)) {
+                        addEdge(v, cg.edgeTarget(e), cg.weight(e, metric), -1);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy run() {
+            IndexedMinHeap queue = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                queue.push(v, priority(v));
+            }
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                /* Lazy update: the priority may have grown since v was queued. */
+                double p = priority(v);
+                if (!queue.isEmpty() && p > queue.minKey()) {
+                    queue.push(v, p);
+                    continue;
+                }
+                contract(v);
+                rank[v] = next;
+                next += 1;
+                for (int i = 0; i < out.size[v]; i++) {
+                    touch(out.heads[v][i], queue);
+                }
+                for (int i = 0; i < in.size[v]; i++) {
+                    touch(in.heads[v][i], queue);
+                }
+            }
+            int[][] upCsr = up.toCsr(n);
+            int[][] downCsr = down.toCsr(n);
+            return new ContractionHierarchy(cg.fingerprint(), metric, rank,
+                    upCsr[0], upCsr[1], up.weightsInCsrOrder(upCsr[2]), up.midsInCsrOrder(upCsr[2]),
+                    downCsr[0], downCsr[1], down.weightsInCsrOrder(downCsr[2]),
+                    down.midsInCsrOrder(downCsr[2]));
+        }
+
+        private void touch(int w, IndexedMinHeap queue) {
+            if (!contracted[w]) {
+                contractedNeighbors[w] += 1;
+                queue.update(w, priority(w));
+            }
+        }
+
+        /** Edge difference plus the number of already contracted neighbours. */
+        private double priority(int v) {
+            int removed = 0;
+            for (int i = 0; i < out.size[v]; i++) {
+                removed += contracted[out.heads[v][i]] ? 0 : 1;
+            }
+            for (int i = 0; i < in.size[v]; i++) {
+                removed += contracted[in.heads[v][i]] ? 0 : 1;
+            }
+            return shortcuts(v, false) - removed + contractedNeighbors[v];
+        }
+
+        private void contract(int v) {
+            for (int i = 0; i < out.size[v]; i++) {
+                int w = out.heads[v][i];
+                if (!contracted[w]) {
+                    up.add(v, w, out.weights[v][i], out.mids[v][i]);
+                }
+            }
+            for (int i = 0; i < in.size[v]; i++) {
+                int u = in.heads[v][i];
+                if (!contracted[u]) {
+                    down.add(v, u, in.weights[v][i], in.mids[v][i]);
+                }
+            }
+            shortcuts(v, true);
+            contracted[v] = true;
+        }
+
+        /**
+         * Counts, and if add is set inserts, the shortcuts needed to contract v: one for each
+         * pair of remaining neighbours u -> v -> w with no witness path avoiding v that is
+         * at most as long.
+         */
+        private int shortcuts(int v, boolean add) {
+            int count = 0;
+            for (int i = 0; i < in.size[v]; i++) {
+                int u = in.heads[v][i];
+                if (contracted[u]) {
+                    continue;
+                }
+                double toV = in.weights[v][i];
+                double limit = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < out.size[v]; j++) {
+                    int w = out.heads[v][j];
+                    if (w != u && !contracted[w]) {
+                        limit = Math.max(limit, toV + out.weights[v][j]);
+                    }
+                }
+                if (limit < 0) {
+                    continue;
+                }
+                witnessSearch(u, v, limit);
+                for (int j = 0; j < out.size[v]; j++) {
+                    int w = out.heads[v][j];
+                    if (w == u || contracted[w]) {
+                        continue;
+                    }
+                    double via = toV + out.weights[v][j];
+                    if (witness.dist(w) <= via) {
+                        continue;
+                    }
+                    count += 1;
+                    if (add) {
+                        addEdge(u, w, via, v);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /** Dijkstra from u that ignores v and contracted vertices, up to the given length. */
+        private void witnessSearch(int u, int v, double limit) {
+            witness.reset();
+            IndexedMinHeap fringe = witness.heap();
+            witness.reach(u, 0, -1, 0);
+            fringe.push(u, 0);
+            while (!fringe.isEmpty() && fringe.minKey() <= limit
+                    && witness.settledCount() < WITNESS_SETTLE_LIMIT) {
+                int x = fringe.poll();
+                witness.settle(x);
+                double dx = witness.dist(x);
+                for (int i = 0; i < out.size[x]; i++) {
+                    int y = out.heads[x][i];
+                    if (y == v || contracted[y] || witness.settled(y)) {
+                        continue;
+                    }
+                    double dy = dx + out.weights[x][i];
+                    if (!witness.reached(y)) {
+                        witness.reach(y, dy, x, 0);
+                        fringe.push(y, dy);
+                    } else if (dy < witness.dist(y)) {
+                        witness.relax(y, dy, x);
+                        fringe.push(y, dy);
+                    }
+                }
+            }
+        }
+
+        /** Adds edge u -> w, or lowers the weight of an existing one. */
+        private void addEdge(int u, int w, double weight, int mid) {
+            int i = out.find(u, w);
+            if (i < 0) {
+                out.add(u, w, weight, mid);
+                in.add(w, u, weight, mid);
+            } else if (weight < out.weights[u][i]) {
+                out.weights[u][i] = weight;
+                out.mids[u][i] = mid;
+                int j = in.find(w, u);
+                in.weights[w][j] = weight;
+                in.mids[w][j] = mid;
+            }
+        }
+    }
+
+    /** Growable per-vertex edge lists used while contracting. */
+    private static final class Adjacency {
+        final int[][] heads;
+        final double[][] weights;
+        final int[][] mids;
+        final int[] size;
+
+        Adjacency(int n) {
+            heads = new int[n][];
+            weights = new double[n][];
+            mids = new int[n][];
+            size = new int[n];
+            for (int v = 0; v < n; v++) {
+                heads[v] = new int[4];
+                weights[v] = new double[4];
+                mids[v] = new int[4];
+            }
+        }
+
+        int find(int v, int head) {
+            for (int i = 0; i < size[v]; i++) {
+                if (heads[v][i] == head) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(int v, int head, double weight, int mid) {
+            int s = size[v];
+            if (s == heads[v].length) {
+                heads[v] = Arrays.copyOf(heads[v], s * 2);
+                weights[v] = Arrays.copyOf(weights[v], s * 2);
+                mids[v] = Arrays.copyOf(mids[v], s * 2);
+            }
+            heads[v][s] = head;
+            weights[v][s] = weight;
+            mids[v][s] = mid;
+            size[v] = s + 1;
+        }
+    }
+
+    /** Flat list of hierarchy edges, converted to CSR form once contraction is done. */
+    private static final class EdgeList {
+        private int[] tails = new int[1024];
+        private int[] heads = new int[1024];
+        private double[] weights = new double[1024];
+        private int[] mids = new int[1024];
+        private int size;
+
+        void add(int tail, int head, double weight, int mid) {
+            if (size == tails.length) {
+                tails = Arrays.copyOf(tails, size * 2);
+                heads = Arrays.copyOf(heads, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                mids = Arrays.copyOf(mids, size * 2);
+            }
+            tails[size] = tail;
+            heads[size] = head;
+            weights[size] = weight;
+            mids[size] = mid;
+            size += 1;
+        }
+
+        /**
+         * Counting sort of the edges by tail.
+         * @return {offsets, heads in CSR order, original position of each CSR edge}.
+         */
+        int[][] toCsr(int n) {
+            int[] offsets = new int[n + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[tails[i] + 1] += 1;
+            }
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] next = Arrays.copyOf(offsets, n);
+            int[] csrHeads = new int[size];
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                int slot = next[tails[i]];
+                next[tails[i]] += 1;
+                csrHeads[slot] = heads[i];
+                order[slot] = i;
+            }
+            return new int[][] {offsets, csrHeads, order};
+        }
+
+        double[] weightsInCsrOrder(int[] order) {
+            double[] result = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                result[i] = weights[order[i]];
+            }
+            return result;
+        }
+
+        int[] midsInCsrOrder(int[] order) {
+            int[] result = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                result[i] = mids[order[i]];
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Many-to-many shortest path lengths between sets of locations, behind
+ * Router.distanceMatrix. Every location is snapped to its closest vertex once, and then
+ * <ul>
+ *     <li>if the graph has a ContractionHierarchy for the distance metric, the bucket
+ *     algorithm of Knopp et al. is used: a complete backward upward search from every
+ *     target leaves (target, distance) entries in buckets at the vertices it settles, and a
+ *     complete forward upward search from every source combines its distances with the
+ *     buckets it finds. Each search only explores a few hundred vertices of the
+ *     hierarchy.</li>
+ *     <li>otherwise, one Dijkstra search per source runs until it has settled every
+ *     target.</li>
+ * </ul>
+ * Rows of the matrix are independent, so they can be computed in parallel on a
+ * ForkJoinPool; every worker thread then searches with its own SearchWorkspace.
+ */
+final class DistanceMatrix {
+    private final GraphDB g;
+    private final CompactGraph cg;
+    private final ContractionHierarchy ch;
+    private final int[] sources;
+    private final int[] targets;
+    /** Distinct target vertices in ascending order, and the matrix columns of each. */
+    private final int[] targetVertices;
+    private final int[][] targetColumns;
+    /** Buckets of the many-to-many hierarchy query, as linked lists headed per vertex. */
+    private int[] bucketHead;
+    private int[] bucketNext;
+    /** Index into targetVertices of each bucket entry. */
+    private int[] bucketTarget;
+    private double[] bucketDist;
+
+    private DistanceMatrix(GraphDB g, List<double[]> sourcePoints, List<double[]> targetPoints) {
+        this.g = g;
+        this.cg = g.compact();
+        ContractionHierarchy hierarchy = g.contractionHierarchy();
+        /* A travel time hierarchy cannot answer for lengths. */
+        this.ch = hierarchy != null && hierarchy.metric() == Router.Metric.DISTANCE
+                ? hierarchy : null;
+        sources = snap(sourcePoints);
+        targets = snap(targetPoints);
+        int[] sorted = Arrays.stream(targets).filter(v -> v >= 0).distinct().sorted().toArray();
+        targetVertices = sorted;
+        targetColumns = new int[sorted.length][];
+        int[] counts = new int[sorted.length];
+        for (int t : targets) {
+            if (t >= 0) {
+                counts[Arrays.binarySearch(sorted, t)] += 1;
+            }
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            targetColumns[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int j = 0; j < targets.length; j++) {
+            if (targets[j] >= 0) {
+                int i = Arrays.binarySearch(sorted, targets[j]);
+                targetColumns[i][counts[i]] = j;
+                counts[i] += 1;
+            }
+        }
+    }
+
+    /**
+     * Computes the matrix of shortest path lengths, in miles.
+     * @param g The graph.
+     * @param sources The source locations as {lon, lat} pairs.
+     * @param targets The target locations as {lon, lat} pairs.
+     * @param pool The pool to compute rows on in parallel, or null to compute them on the
+     *             calling thread.
+     * @return result[i][j] is the length of the shortest path from the vertex closest to
+     * sources[i] to the vertex closest to targets[j], or positive infinity if there is none.
+     */
+    static double[][] compute(GraphDB g, List<double[]> sources, List<double[]> targets,
+                              ForkJoinPool pool) {
+        DistanceMatrix m = new DistanceMatrix(g, sources, targets);
+        double[][] result = new double[m.sources.length][m.targets.length];
+        for (double[] row : result) {
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        }
+        if (m.ch != null) {
+            m.fillBuckets();
+        }
+        if (pool == null) {
+            for (int i = 0; i < result.length; i++) {
+                m.computeRow(i, result[i]);
+            }
+        } else {
+            try {
+                pool.submit(() -> IntStream.range(0, result.length).parallel()
+                        .forEach(i -> m.computeRow(i, result[i]))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while computing the matrix", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Computing the matrix failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private int[] snap(List<double[]> points) {
+        int[] vertices = new int[points.size()];
+        for (int i = 0; i < vertices.length; i++) {
+            double[] p = points.get(i);
+            vertices[i] = g.closestIndex(p[0], p[1]);
+        }
+        return vertices;
+    }
+
+    /** Runs the backward upward search of every distinct target and fills the buckets. */
+    private void fillBuckets() {
+        bucketHead = new int[cg.size()];
+        Arrays.fill(bucketHead, -1);
+        int capacity = 1024;
+        bucketNext = new int[capacity];
+        bucketTarget = new int[capacity];
+        bucketDist = new double[capacity];
+        int size = 0;
+        for (int i = 0; i < targetVertices.length; i++) {
+            SearchWorkspace ws = SearchWorkspace.backwardForThread(cg.size());
+            ch.upwardSearch(targetVertices[i], false, ws);
+            for (int k = 0; k < ws.settledCount(); k++) {
+                int v = ws.settledVertex(k);
+                if (size == capacity) {
+                    capacity *= 2;
+                    bucketNext = Arrays.copyOf(bucketNext, capacity);
+                    bucketTarget = Arrays.copyOf(bucketTarget, capacity);
+                    bucketDist = Arrays.copyOf(bucketDist, capacity);
+                }
+                bucketTarget[size] = i;
+                bucketDist[size] = ws.dist(v);
+                bucketNext[size] = bucketHead[v];
+                bucketHead[v] = size;
+                size += 1;
+            }
+        }
+    }
+
+    /** Fills row i of the matrix. */
+    private void computeRow(int i, double[] row) {
+        int source = sources[i];
+        if (source < 0 || targetVertices.length == 0) {
+            return;
+        }
+        double[] best = new double[targetVertices.length];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        SearchWorkspace ws = SearchWorkspace.forThread(cg.size());
+        if (ch != null) {
+            ch.upwardSearch(source, true, ws);
+            for (int k = 0; k < ws.settledCount(); k++) {
+                int v = ws.settledVertex(k);
+                double dv = ws.dist(v);
+                for (int b = bucketHead[v]; b >= 0; b = bucketNext[b]) {
+                    best[bucketTarget[b]] = Math.min(best[bucketTarget[b]], dv + bucketDist[b]);
+                }
+            }
+        } else {
+            oneToMany(source, ws, best);
+        }
+        for (int t = 0; t < targetVertices.length; t++) {
+            for (int j : targetColumns[t]) {
+                row[j] = best[t];
+            }
+        }
+    }
+
+    /** Dijkstra from source until every distinct target has been settled. */
+    private void oneToMany(int source, SearchWorkspace ws, double[] best) {
+        int remaining = targetVertices.length;
+        IndexedMinHeap fringe = ws.heap();
+        ws.reach(source, 0, -1, 0);
+        fringe.push(source, 0);
+        while (!fringe.isEmpty() && remaining > 0) {
+            int v = fringe.poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            int t = Arrays.binarySearch(targetVertices, v);
+            if (t >= 0) {
+                best[t] = dv;
+                remaining -= 1;
+            }
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                if (!cg.isForward(e) || ws.settled(w)) {
+                    continue;
+                }
+                double dw = dv + cg.edgeLength(e);
+                if (!ws.reached(w)) {
+                    ws.reach(w, dw, v, 0);
+                    fringe.push(w, dw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    fringe.push(w, dw);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * This class provides a main method for timing the stitching and encoding of rasters. It
+ * builds a 4 by 3 tile raster, the size of a typical window, from made-up tiles of flat
+ * areas crossed by lines, and compares drawing the tiles onto a new image and writing it
+ * with ImageIO, as the server used to, against RasterEncoder at several deflate levels and
+ * as JPEG. It reports the average latency and the size of the file for each.
+ */
+public class EncoderBenchmark {
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 3;
+    private static final int WARMUP_RASTERS = 50;
+    private static final int RASTERS = 200;
+    private static final int ROUNDS = 3;
+
+    /** Stitches and encodes one raster of the tiles, returning the size of the file. */
+    private interface Pipeline {
+        int run(BufferedImage[] tiles) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BufferedImage[] tiles = new BufferedImage[COLUMNS * ROWS];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = tile(i);
+        }
+        time("ImageIO, new image", tiles, EncoderBenchmark::imageIo);
+        int[] levels = {Deflater.BEST_SPEED, 3, 6, Deflater.BEST_COMPRESSION};
+        for (int level : levels) {
+            RasterEncoder encoder = new RasterEncoder(level, 0.85f, 64L << 20);
+            time("RasterEncoder PNG, level " + level, tiles,
+                t -> encoder(encoder, t, RasterEncoder.Format.PNG));
+        }
+        RasterEncoder jpeg = new RasterEncoder(Deflater.BEST_SPEED, 0.85f, 64L << 20);
+        time("RasterEncoder JPEG, quality 0.85", tiles,
+            t -> encoder(jpeg, t, RasterEncoder.Format.JPEG));
+    }
+
+    private static void time(String name, BufferedImage[] tiles, Pipeline pipeline)
+            throws IOException {
+        for (int i = 0; i < WARMUP_RASTERS; i++) {
+            pipeline.run(tiles);
+        }
+        for (int round = 0; round < ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < RASTERS; i++) {
+                bytes += pipeline.run(tiles);
+            }
+            System.out.printf("%-34s %8.2f ms/raster, %7d bytes%n", name,
+                    (System.nanoTime() - start) / 1e6 / RASTERS, bytes / RASTERS);
+        }
+    }
+
+    private static int imageIo(BufferedImage[] tiles) throws IOException {
+        BufferedImage img = new BufferedImage(COLUMNS * MapServer.TILE_SIZE,
+                ROWS * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = img.getGraphics();
+        for (int r = 0; r < ROWS; r += 1) {
+            for (int c = 0; c < COLUMNS; c += 1) {
+                graphic.drawImage(tiles[r * COLUMNS + c], c * MapServer.TILE_SIZE,
+                        r * MapServer.TILE_SIZE, null);
+            }
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", os);
+        return os.size();
+    }
+
+    private static int encoder(RasterEncoder encoder, BufferedImage[] tiles,
+                               RasterEncoder.Format format) throws IOException {
+        BufferedImage img = encoder.acquire(COLUMNS, ROWS);
+        try {
+            for (int r = 0; r < ROWS; r += 1) {
+                for (int c = 0; c < COLUMNS; c += 1) {
+                    RasterEncoder.copyTile(img, tiles[r * COLUMNS + c],
+                            c * MapServer.TILE_SIZE, r * MapServer.TILE_SIZE);
+                }
+            }
+            return encoder.encode(img, format).length;
+        } finally {
+            encoder.release(img);
+        }
+    }
+
+    /** A made-up tile of flat areas crossed by lines, which compresses like a map tile. */
+    private static BufferedImage tile(long seed) {
+        Random r = new Random(seed);
+        BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(new Color(0xf2efe9));
+        g.fillRect(0, 0, MapServer.TILE_SIZE, MapServer.TILE_SIZE);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(r.nextInt(0x1000000)));
+            if (i % 4 == 0) {
+                g.fillRect(r.nextInt(MapServer.TILE_SIZE), r.nextInt(MapServer.TILE_SIZE),
+                        r.nextInt(60), r.nextInt(60));
+            } else {
+                g.drawLine(r.nextInt(MapServer.TILE_SIZE), r.nextInt(MapServer.TILE_SIZE),
+                        r.nextInt(MapServer.TILE_SIZE), r.nextInt(MapServer.TILE_SIZE));
+            }
+        }
+        g.dispose();
+        return tile;
+    }
+}
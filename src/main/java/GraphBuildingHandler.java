@@ -3,6 +3,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.*;
+import java.util.function.Predicate;
 
 /**
  *  Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -24,26 +25,32 @@ import java.util.*;
  *  @author Alan Yao, Maurice Lee
  */
 public class GraphBuildingHandler extends DefaultHandler {
-    /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
-     */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
     private String activeState = "";
     private final GraphDB g;
     private List<Long> ways;
-    private boolean isWay;
+    /** Decides from its tags whether the way being parsed is kept. */
+    private final Predicate<Map<String, String>> wayFilter;
+    private final Map<String, String> wayTags = new HashMap<>();
+    /** Name of the way being parsed, or null. */
+    private String wayName;
+    /** The node being parsed, so that its name tag can be attached to it. */
+    private GraphDB.Node lastNode;
     /**
-     * Create a new GraphBuildingHandler.
+     * Create a new GraphBuildingHandler that keeps the default road types.
      * @param g The graph to populate with the XML data.
      */
     public GraphBuildingHandler(GraphDB g) {
+        this(g, GraphLoader.HIGHWAYS);
+    }
+
+    /**
+     * Create a new GraphBuildingHandler.
+     * @param g The graph to populate with the XML data.
+     * @param wayFilter Decides from its tags whether a way is part of the road graph.
+     */
+    GraphBuildingHandler(GraphDB g, Predicate<Map<String, String>> wayFilter) {
         this.g = g;
+        this.wayFilter = wayFilter;
     }
 
     /**
@@ -78,10 +85,12 @@ public class GraphBuildingHandler extends DefaultHandler {
             double lat = Double.parseDouble(attributes.getValue("lat"));
             GraphDB.Node node = new GraphDB.Node(id, lon, lat);
             g.addSpotNode(node);
+            lastNode = node;
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
             activeState = "way";
-            isWay = false;
+            wayTags.clear();
+            wayName = null;
             ways = new ArrayList<>();
 //            System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
@@ -100,18 +109,16 @@ public class GraphBuildingHandler extends DefaultHandler {
             /* While looking at a way, we found a <tag...> tag. */
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
+            wayTags.put(k, v);
             if (k.equals("maxspeed")) {
                 //System.out.println("Max Speed: " + v);
-                /* TODO set the max speed of the "current way" here. */
+                /* Read together with the highway type by GraphLoader.speed once the way ends. */
             } else if (k.equals("highway")) {
                 //System.out.println("Highway type: " + v);
-                /* TODO Figure out whether this way and its connections are valid. */
-                /* Hint: Setting a "flag" is good enough! */
-                if (ALLOWED_HIGHWAY_TYPES.contains(attributes.getValue("v"))){
-                    isWay = true;
-                }
+                /* Whether the way is valid is decided by wayFilter once it is complete. */
             } else if (k.equals("name")) {
                 //System.out.println("Way Name: " + v);
+                wayName = v;
             }
 //            System.out.println("Tag with k=" + k + ", v=" + v + ".");
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
@@ -122,6 +129,7 @@ public class GraphBuildingHandler extends DefaultHandler {
             node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
             last node that you looked at (check the first if-case). */
 //            System.out.println("Node's name: " + attributes.getValue("v"));
+            g.addLocation(lastNode, attributes.getValue("v"));
         }
     }
 
@@ -143,8 +151,8 @@ public class GraphBuildingHandler extends DefaultHandler {
             /* Hint1: If you have stored the possible connections for this way, here's your
             chance to actually connect the nodes together if the way is valid. */
 //            System.out.println("Finishing a way...");
-            if (isWay){
-                g.addWay(ways);
+            if (wayFilter.test(wayTags)){
+                g.addWay(ways, wayName, GraphLoader.speed(wayTags));
             }
         }
     }
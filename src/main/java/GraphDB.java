@@ -7,6 +7,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.*;
+import java.util.function.Predicate;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -27,22 +28,149 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
 //    private final Map<Long, Spot> Spots = new HashMap<>();
-    private final Map<Long, Node> SpotNodes = new HashMap<>();
+    /** Mutable nodes collected while parsing; released once the graph is frozen. */
+    private Map<Long, Node> SpotNodes = new HashMap<>();
+    /** Distinct way names seen while parsing and their indices; released with SpotNodes. */
+    private List<String> wayNames = new ArrayList<>(Collections.singletonList(""));
+    private Map<String, Integer> wayNameIndex = new HashMap<>();
     private final Map<String, List<Long>> SPOTNAMES = new HashMap<>();
+    /** Named nodes (locations), whether or not they are on a road. */
+    private final List<Location> locations;
+    /** Frozen CSR form of the graph, built by clean(). */
+    private CompactGraph compact;
+    /** Spatial index over the vertices, built by clean(). */
+    private KdTree index;
+    /** Optional preprocessing for Router.Algorithm.CONTRACTION_HIERARCHIES. */
+    private volatile ContractionHierarchy contractionHierarchy;
+    /** Optional preprocessing for Router.Algorithm.ALT. */
+    private volatile Landmarks landmarks;
+    /** Optional preprocessing for Router.Algorithm.COMPRESSED_CHAINS. */
+    private volatile ChainGraph chainGraph;
+
+    /** Where a graph loaded from a snapshot keeps its arrays. */
+    public enum Storage {
+        /** Copy the arrays onto the Java heap. */
+        HEAP,
+        /**
+         * Use the arrays in place in the memory-mapped snapshot, so that heap usage does not
+         * grow with the size of the graph and processes on one machine share the pages.
+         */
+        MAPPED
+    }
+
+    /**
+     * Loads the OSM file at dbPath, keeping the default road types.
+     * @param dbPath Path to the XML file to be parsed.
+     */
     public GraphDB(String dbPath) {
-        try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
+        this(dbPath, GraphLoader.Options.defaults());
+    }
+
+    /**
+     * Loads the OSM file at dbPath with the streaming GraphLoader.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param options Which ways to keep and how to read the file.
+     */
+    GraphDB(String dbPath, GraphLoader.Options options) {
+        this(GraphLoader.load(dbPath, options));
+    }
 
+    private GraphDB(GraphDB loaded) {
+        this(loaded.compact, loaded.index, loaded.locations);
+    }
+
+    /** Creates an empty, mutable graph for GraphBuildingHandler to fill. */
+    private GraphDB() {
+        locations = new ArrayList<>();
+        wayNameIndex.put("", 0);
+    }
+
+    /**
+     * Parses an OSM file with the SAX GraphBuildingHandler, which creates a Node with its
+     * own adjacency list for every node in the file. The streaming loader used by the
+     * constructors builds the same graph; this path is kept to check and benchmark it against.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param wayFilter Decides from its tags whether a way is part of the road graph.
+     * @return The graph.
+     */
+    static GraphDB parseWithHandler(String dbPath, Predicate<Map<String, String>> wayFilter) {
+        GraphDB g = new GraphDB();
+        try (FileInputStream inputStream = new FileInputStream(new File(dbPath))) {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
+            GraphBuildingHandler gbh = new GraphBuildingHandler(g, wayFilter);
             saxParser.parse(inputStream, gbh);
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
-        clean();
+        g.clean();
+        return g;
+    }
+
+    /**
+     * Creates a graph from data that has already been cleaned, e.g. a loaded snapshot.
+     * @param compact The frozen graph.
+     * @param index The spatial index over compact.
+     * @param locations The named nodes.
+     */
+    GraphDB(CompactGraph compact, KdTree index, List<Location> locations) {
+        this.compact = compact;
+        this.index = index;
+        this.locations = locations;
+        SpotNodes = null;
+        wayNames = null;
+        wayNameIndex = null;
+    }
+
+    /**
+     * Loads the graph from the snapshot at snapshotPath if one exists that is intact and was
+     * written for the current version of the OSM file. Otherwise parses the OSM file and
+     * tries to write a new snapshot there, so that the next start can skip parsing.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param snapshotPath Where the snapshot is kept.
+     * @return The graph.
+     */
+    public static GraphDB loadOrParse(String dbPath, String snapshotPath) {
+        return loadOrParse(dbPath, snapshotPath, Storage.HEAP);
+    }
+
+    /**
+     * Like loadOrParse(dbPath, snapshotPath), but lets the caller keep the graph in the
+     * mapped snapshot instead of on the heap. With Storage.MAPPED a freshly parsed graph is
+     * reopened from the snapshot it was just saved to.
+     * @param dbPath Path to the XML file to be parsed.
+     * @param snapshotPath Where the snapshot is kept.
+     * @param storage Where the loaded graph keeps its arrays.
+     * @return The graph.
+     */
+    public static GraphDB loadOrParse(String dbPath, String snapshotPath, Storage storage) {
+        File source = new File(dbPath);
+        if (new File(snapshotPath).isFile()) {
+            try {
+                GraphDB g = GraphSnapshot.load(snapshotPath, source, storage);
+                if (g != null) {
+                    return g;
+                }
+                System.out.println("Ignoring stale graph snapshot " + snapshotPath);
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable graph snapshot " + snapshotPath);
+            }
+        }
+        GraphDB g = new GraphDB(dbPath);
+        try {
+            GraphSnapshot.save(g, snapshotPath, source);
+            if (storage == Storage.MAPPED) {
+                return GraphSnapshot.load(snapshotPath, source, storage);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not save graph snapshot to " + snapshotPath);
+        }
+        return g;
+    }
+
+    /** Spatial index over the vertices. */
+    KdTree index() {
+        return index;
     }
 
     /**
@@ -58,6 +186,8 @@ public class GraphDB {
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  The remaining nodes are then frozen into a CompactGraph and the per-node objects are
+     *  released, so the graph can no longer be modified afterwards.
      */
     private void clean() {
         // TODO: Your code here.
@@ -68,6 +198,90 @@ public class GraphDB {
                 nodes_iterator.remove();
             }
         }
+        compact = CompactGraph.freeze(SpotNodes, wayNames);
+        SpotNodes = null;
+        wayNames = null;
+        wayNameIndex = null;
+        index = KdTree.build(compact);
+    }
+
+    /**
+     * Returns the frozen CSR form of the graph. Hot paths such as routing should iterate
+     * over its int vertex indices rather than use the boxed Iterable methods below.
+     * @return The compact graph.
+     */
+    CompactGraph compact() {
+        return compact;
+    }
+
+    /**
+     * Returns the named nodes of the map, in the order they were parsed.
+     * @return The locations.
+     */
+    List<Location> locations() {
+        return locations;
+    }
+
+    /**
+     * Returns the contraction hierarchy prepared for this graph, if any.
+     * @return The hierarchy, or null.
+     */
+    ContractionHierarchy contractionHierarchy() {
+        return contractionHierarchy;
+    }
+
+    /**
+     * Attaches a contraction hierarchy to this graph, enabling
+     * Router.Algorithm.CONTRACTION_HIERARCHIES.
+     * @param ch A hierarchy built for this graph, e.g. by ContractionHierarchy.loadOrBuild.
+     * @throws IllegalArgumentException If ch was built for a different graph.
+     */
+    void setContractionHierarchy(ContractionHierarchy ch) {
+        if (!ch.matches(compact)) {
+            throw new IllegalArgumentException("The hierarchy was built for another graph");
+        }
+        contractionHierarchy = ch;
+    }
+
+    /**
+     * Returns the landmark tables prepared for this graph, if any.
+     * @return The landmarks, or null.
+     */
+    Landmarks landmarks() {
+        return landmarks;
+    }
+
+    /**
+     * Attaches landmark tables to this graph, enabling Router.Algorithm.ALT.
+     * @param lm Tables computed for this graph, e.g. by Landmarks.loadOrSelect.
+     * @throws IllegalArgumentException If lm was computed for a different graph.
+     */
+    void setLandmarks(Landmarks lm) {
+        if (!lm.matches(compact)) {
+            throw new IllegalArgumentException("The landmarks were computed for another graph");
+        }
+        landmarks = lm;
+    }
+
+    /**
+     * Returns the degree-2 chain compressed form of this graph, if it has been prepared.
+     * @return The compressed graph, or null.
+     */
+    ChainGraph chainGraph() {
+        return chainGraph;
+    }
+
+    /**
+     * Attaches the compressed form of this graph, enabling
+     * Router.Algorithm.COMPRESSED_CHAINS.
+     * @param chains The result of ChainGraph.build(compact()).
+     * @throws IllegalArgumentException If chains was built for a different graph.
+     */
+    void setChainGraph(ChainGraph chains) {
+        if (!chains.matches(compact)) {
+            throw new IllegalArgumentException("The chains were built for another graph");
+        }
+        chainGraph = chains;
     }
 
     /**
@@ -77,7 +291,7 @@ public class GraphDB {
     Iterable<Long> vertices() {
         //YOUR CODE HERE, this currently returns only an empty list.
 //        return new ArrayList<Long>();
-        return SpotNodes.keySet();
+        return () -> new IdIterator(0, compact.size(), false);
     }
 
 
@@ -87,8 +301,8 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        isVertex(v);
-        return SpotNodes.get(v).adjN;
+        int i = isVertex(v);
+        return () -> new IdIterator(compact.edgeBegin(i), compact.edgeEnd(i), true);
     }
 
     /**
@@ -115,6 +329,17 @@ public class GraphDB {
         return 3963 * c;
     }
 
+    /**
+     * Returns a lower bound on distance(v, w) that takes no trig to compute, cheap enough
+     * to evaluate as a search heuristic on every vertex a search reaches.
+     * @param v The id of the first vertex.
+     * @param w The id of the second vertex.
+     * @return A distance in miles no greater than distance(v, w).
+     */
+    double distanceBound(long v, long w) {
+        return compact.distanceBound(lon(v), lat(v), lon(w), lat(w));
+    }
+
     /**
      * Returns the initial bearing (angle) between vertices v and w in degrees.
      * The initial bearing is the angle that, if followed in a straight line
@@ -149,18 +374,48 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        double shortest = Double.MAX_VALUE;
-        long res = 0;
-        for (long id: SpotNodes.keySet()){
-            Node a = SpotNodes.get(id);
-            double curr_dist = distance(lon(id),lat(id),lon,lat);
-            if (curr_dist < shortest){
-                shortest = curr_dist;
-                res = id;
-            }
-        }
+        int v = index.nearest(lon, lat);
+        return v < 0 ? 0 : compact.id(v);
+    }
+
+    /**
+     * Returns the dense index of the vertex closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int closestIndex(double lon, double lat) {
+        return index.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the k vertices closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The number of vertices to return.
+     * @return The ids of up to k vertices, nearest first.
+     */
+    List<Long> closest(double lon, double lat, int k) {
+        return toIds(index.nearest(lon, lat, k));
+    }
+
+    /**
+     * Returns all vertices within a great-circle distance of the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The search radius in miles.
+     * @return The ids of the vertices within the radius, nearest first.
+     */
+    List<Long> withinRadius(double lon, double lat, double radius) {
+        return toIds(index.within(lon, lat, radius));
+    }
 
-        return res;
+    private List<Long> toIds(int[] vertices) {
+        List<Long> ids = new ArrayList<>(vertices.length);
+        for (int v : vertices) {
+            ids.add(compact.id(v));
+        }
+        return ids;
     }
 
     /**
@@ -169,8 +424,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        isVertex(v);
-        return SpotNodes.get(v).lon;
+        return compact.lon(isVertex(v));
     }
 
     /**
@@ -179,8 +433,7 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        isVertex(v);
-        return SpotNodes.get(v).lat;
+        return compact.lat(isVertex(v));
     }
 
 //    double spotLon(long v) {
@@ -199,6 +452,7 @@ public class GraphDB {
 //    }
 
     void addSpotNode(Node node){
+        checkMutable();
         SpotNodes.put(node.id, node);
     }
 
@@ -208,23 +462,115 @@ public class GraphDB {
 //    }
 
     void addEdge(long v, long w){
-        isVertex(v);
-        isVertex(w);
-        SpotNodes.get(v).adjN.add(w);
-        SpotNodes.get(w).adjN.add(v);
+        addEdge(v, w, 0, CompactGraph.DEFAULT_SPEED);
+    }
+
+    private void addEdge(long v, long w, int name, double speed){
+        checkMutable();
+        Node nodeV = SpotNodes.get(v);
+        Node nodeW = SpotNodes.get(w);
+        nodeV.adjN.add(w);
+        nodeV.adjName.add(name);
+        nodeV.adjSpeed.add(speed);
+        nodeW.adjN.add(v);
+        nodeW.adjName.add(name);
+        nodeW.adjSpeed.add(speed);
     }
 
     void addWay(List<Long> way){
+        addWay(way, null, CompactGraph.DEFAULT_SPEED);
+    }
+
+    /**
+     * Connects consecutive nodes of a way.
+     * @param way The node ids of the way, in order.
+     * @param name The name of the way, or null if it has none.
+     * @param speed The speed of the way in miles per hour, see GraphLoader.speed.
+     */
+    void addWay(List<Long> way, String name, double speed){
+        checkMutable();
+        int nameIndex = 0;
+        if (name != null) {
+            nameIndex = wayNameIndex.computeIfAbsent(name, k -> {
+                wayNames.add(k);
+                return wayNames.size() - 1;
+            });
+        }
         for (int i = 1; i < way.size(); i++){
-            addEdge(way.get(i - 1), way.get(i));
+            addEdge(way.get(i - 1), way.get(i), nameIndex, speed);
+        }
+    }
+
+    /**
+     * Records a named node. Locations are kept even if the node is not on any road.
+     * @param node The node.
+     * @param name Its name.
+     */
+    void addLocation(Node node, String name){
+        checkMutable();
+        locations.add(new Location(node.id, node.lon, node.lat, name));
+    }
+
+    /**
+     * Returns the dense index of vertex v.
+     * @throws IllegalArgumentException if v is not on the graph.
+     */
+    private int isVertex(long v){
+        int i = compact.index(v);
+        if (i < 0) {
+            throw new IllegalArgumentException("The vertex " + v + " is not on the graph");
         }
+        return i;
     }
 
-    private void isVertex(long v){
-       try {
-           SpotNodes.containsKey(v);
-       } catch(Exception ex) {
-           System.out.println("The vertex is not on the graph");
+    private void checkMutable() {
+        if (SpotNodes == null) {
+            throw new IllegalStateException("The graph is frozen once it has been cleaned");
+        }
+    }
+
+    /** Iterates over a range of vertex indices, or of edges, boxing them back into ids. */
+    private class IdIterator implements Iterator<Long> {
+        private final int begin;
+        private int next;
+        private final int end;
+        private final boolean edges;
+
+        IdIterator(int begin, int end, boolean edges) {
+            this.begin = begin;
+            this.next = begin;
+            this.end = end;
+            this.edges = edges;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public Long next() {
+            if (next >= end) {
+                throw new NoSuchElementException();
+            }
+            int v = edges ? compact.edgeTarget(next) : next;
+            next += 1;
+            if (edges) {
+                /* Parallel edges lead to the same neighbour, which is returned once. */
+                while (next < end && seen(compact.edgeTarget(next))) {
+                    next += 1;
+                }
+            }
+            return compact.id(v);
+        }
+
+        private boolean seen(int w) {
+            for (int e = begin; e < next; e += 1) {
+                if (compact.edgeTarget(e) == w) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -240,6 +586,10 @@ public class GraphDB {
         double lon;
         double lat;
         ArrayList<Long> adjN;
+        /** Way name index of each entry of adjN. */
+        ArrayList<Integer> adjName;
+        /** Speed in miles per hour of the way behind each entry of adjN. */
+        ArrayList<Double> adjSpeed;
         long id;
 
        Node(long id, double lon, double lat){
@@ -247,10 +597,27 @@ public class GraphDB {
            this.lon = lon;
            this.lat = lat;
            this.adjN = new ArrayList<>();
+           this.adjName = new ArrayList<>();
+           this.adjSpeed = new ArrayList<>();
 
        }
     }
 
+    /** A named node, such as a shop or a landmark. */
+    static class Location {
+        final long id;
+        final double lon;
+        final double lat;
+        final String name;
+
+        Location(long id, double lon, double lat, String name) {
+            this.id = id;
+            this.lon = lon;
+            this.lat = lat;
+            this.name = name;
+        }
+    }
+
 //    private class Spot {
 //        double lon;
 //        double lat;
@@ -8,9 +8,13 @@ import java.util.ArrayList;
  */
 public class GraphDBLauncher {
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String SNAPSHOT_PATH = OSM_DB_PATH + ".snap";
 
     public static void main(String[] args) {
-        GraphDB g = new GraphDB(OSM_DB_PATH);
+        long start = System.nanoTime();
+        GraphDB g = GraphDB.loadOrParse(OSM_DB_PATH, SNAPSHOT_PATH);
+        System.out.println("Loaded the graph in " + (System.nanoTime() - start) / 1000000
+                + " ms.");
 
         Iterable<Long> verticesIterable = g.vertices();
 
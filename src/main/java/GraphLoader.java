@@ -0,0 +1,641 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLStreamException;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Builds a GraphDB from a stream of OSM nodes and ways, as delivered by OsmXmlReader.
+ * Instead of creating a GraphDB.Node with its own adjacency list for every node of the file,
+ * the loader keeps nodes in primitive arrays and the accepted ways as one flat array of node
+ * references, and only turns the nodes that accepted ways actually use into vertices when
+ * build() assembles the CompactGraph. Which ways are roads is decided by a pluggable
+ * predicate over the tags of each way.
+ * <p>
+ * Nodes can be collected in one of two ways (see Options.twoPass):
+ * <ul>
+ *     <li>deferred (the default): a single pass over the input. Every node is buffered at
+ *     24 bytes per node, and the ones no accepted way refers to are dropped at the end.</li>
+ *     <li>two-pass: the ways are read first, and the second pass keeps only the nodes they
+ *     refer to. This needs the input twice but never holds unused nodes.</li>
+ * </ul>
+ * Either way the graph is identical to the one GraphBuildingHandler builds.
+ * <p>
+ * Files ending in .gz or .bz2 are decompressed on the fly, on a thread of their own that
+ * feeds the parser through a PipelinedInputStream. Uncompressed files can instead have
+ * their node section parsed by several threads at once (see Options.parallel), which is
+ * where most of the time of a load goes.
+ * <p>
+ * Files ending in .pbf are read by OsmPbfReader, which decodes their blobs on all cores
+ * unless Options.parallel says otherwise. Two-pass loading does not apply to them.
+ * <p>
+ * Every way gets a speed from its maxspeed tag, or from its highway type if it has none,
+ * which the travel times of its edges are derived from. Its oneway tag is ignored unless
+ * Options.oneWay asks for it, since routes that respect it are no longer the same in both
+ * directions.
+ */
+final class GraphLoader {
+    /**
+     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
+     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * roads, but in practice we walk all over them with such impunity that we forget cars can
+     * actually drive on them.
+     */
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList("motorway", "trunk", "primary", "secondary", "tertiary",
+                    "unclassified", "residential", "living_street", "motorway_link",
+                    "trunk_link", "primary_link", "secondary_link", "tertiary_link")));
+    /** The default way filter: ways whose highway tag is one of ALLOWED_HIGHWAY_TYPES. */
+    static final Predicate<Map<String, String>> HIGHWAYS =
+        tags -> ALLOWED_HIGHWAY_TYPES.contains(tags.get("highway"));
+    /** Typical speeds in miles per hour of ways that have no maxspeed tag, by highway type. */
+    private static final Map<String, Double> HIGHWAY_SPEEDS = new HashMap<>();
+    /** A maxspeed value: a number, optionally followed by its unit. */
+    private static final Pattern MAXSPEED =
+        Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(mph|km/h|kmh|kph|knots)?");
+    private static final double KM_PER_MILE = 1.609344;
+    private static final double MILES_PER_KNOT = 1.150779;
+
+    static {
+        HIGHWAY_SPEEDS.put("motorway", 65.0);
+        HIGHWAY_SPEEDS.put("trunk", 55.0);
+        HIGHWAY_SPEEDS.put("primary", 45.0);
+        HIGHWAY_SPEEDS.put("secondary", 35.0);
+        HIGHWAY_SPEEDS.put("tertiary", 30.0);
+        HIGHWAY_SPEEDS.put("unclassified", 25.0);
+        HIGHWAY_SPEEDS.put("residential", 25.0);
+        HIGHWAY_SPEEDS.put("living_street", 10.0);
+        HIGHWAY_SPEEDS.put("motorway_link", 45.0);
+        HIGHWAY_SPEEDS.put("trunk_link", 35.0);
+        HIGHWAY_SPEEDS.put("primary_link", 30.0);
+        HIGHWAY_SPEEDS.put("secondary_link", 25.0);
+        HIGHWAY_SPEEDS.put("tertiary_link", 25.0);
+    }
+
+    private final Predicate<Map<String, String>> wayFilter;
+    /** Whether oneway tags restrict the direction edges may be travelled in. */
+    private final boolean oneWay;
+
+    /* Buffered nodes, in input order. */
+    private long[] nodeIds = new long[1024];
+    private double[] nodeLons = new double[1024];
+    private double[] nodeLats = new double[1024];
+    private int nodeCount;
+    private boolean nodesSorted = true;
+    /** If not null, the sorted ids of the only nodes worth keeping. */
+    private long[] wanted;
+
+    /* Accepted ways: the references of way i are refs[wayStart[i]] to refs[wayStart[i + 1]]. */
+    private long[] refs = new long[1024];
+    private int refCount;
+    private int[] wayStart = new int[257];
+    private int[] wayName = new int[256];
+    private double[] waySpeed = new double[256];
+    /** 1 if way i may only be travelled along its nodes, -1 against them, 0 both ways. */
+    private byte[] wayDirection = new byte[256];
+    private int wayCount;
+
+    private final List<String> names = new ArrayList<>(Collections.singletonList(""));
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final List<GraphDB.Location> locations = new ArrayList<>();
+
+    /**
+     * Creates a loader.
+     * @param wayFilter Decides from its tags whether a way is part of the road graph. The
+     *                  map passed to it is reused, so the predicate must not keep it.
+     */
+    GraphLoader(Predicate<Map<String, String>> wayFilter) {
+        this(wayFilter, false);
+    }
+
+    /**
+     * Creates a loader.
+     * @param wayFilter Decides from its tags whether a way is part of the road graph. The
+     *                  map passed to it is reused, so the predicate must not keep it.
+     * @param oneWay Whether oneway tags restrict the direction edges may be travelled in.
+     */
+    GraphLoader(Predicate<Map<String, String>> wayFilter, boolean oneWay) {
+        this.wayFilter = wayFilter;
+        this.oneWay = oneWay;
+        nameIndex.put("", 0);
+    }
+
+    /** How the OSM input is read. Instances are immutable. */
+    static final class Options {
+        private static final Options DEFAULTS = new Options(HIGHWAYS, false, 1, false);
+
+        final Predicate<Map<String, String>> wayFilter;
+        final boolean twoPass;
+        final int threads;
+        final boolean oneWay;
+
+        private Options(Predicate<Map<String, String>> wayFilter, boolean twoPass, int threads,
+                        boolean oneWay) {
+            this.wayFilter = wayFilter;
+            this.twoPass = twoPass;
+            this.threads = threads;
+            this.oneWay = oneWay;
+        }
+
+        /** Highway ways only, read in a single deferred pass. */
+        static Options defaults() {
+            return DEFAULTS;
+        }
+
+        /**
+         * Returns these options with a different way filter.
+         * @param filter Decides from its tags whether a way is part of the road graph.
+         * @return The new options.
+         */
+        Options wayFilter(Predicate<Map<String, String>> filter) {
+            return new Options(filter, twoPass, threads, oneWay);
+        }
+
+        /**
+         * Returns these options with two-pass loading switched on or off.
+         * @param enabled Whether to read the ways first and then only the nodes they use.
+         * @return The new options.
+         */
+        Options twoPass(boolean enabled) {
+            return new Options(wayFilter, enabled, threads, oneWay);
+        }
+
+        /**
+         * Returns these options with the number of threads that parse the nodes of an
+         * uncompressed file. With more than one thread, the nodes are read by OsmNodeScanner
+         * and the ways by a single StAX pass over the rest of the file; twoPass is ignored.
+         * Compressed files are always read sequentially. For PBF files this is the number
+         * of threads that decode blobs.
+         * @param n The number of threads; 1 reads the file sequentially, or a PBF file with
+         *          one thread per core.
+         * @return The new options.
+         */
+        Options parallel(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("Thread count must be positive: " + n);
+            }
+            return new Options(wayFilter, twoPass, n, oneWay);
+        }
+
+        /**
+         * Returns these options with one-way restrictions switched on or off. When on, ways
+         * tagged oneway (and motorways and roundabouts, which are one-way unless tagged
+         * otherwise) can only be travelled in their direction, and the graph is directed.
+         * @param enabled Whether to respect oneway tags.
+         * @return The new options.
+         */
+        Options oneWay(boolean enabled) {
+            return new Options(wayFilter, twoPass, threads, enabled);
+        }
+    }
+
+    /**
+     * Loads the OSM XML or PBF file at path. Errors are reported and leave the graph with whatever
+     * was read before them, like the SAX based constructor of GraphDB did.
+     * @param path The OSM file.
+     * @param options How to read it.
+     * @return The graph.
+     */
+    static GraphDB load(String path, Options options) {
+        GraphLoader loader = new GraphLoader(options.wayFilter, options.oneWay);
+        try {
+            if (path.endsWith(".pbf")) {
+                int threads = options.threads > 1
+                        ? options.threads : Runtime.getRuntime().availableProcessors();
+                OsmPbfReader.read(path, loader, threads);
+            } else if (options.threads > 1 && !isCompressed(path)) {
+                long firstWay = OsmNodeScanner.scan(path, loader, options.threads);
+                if (firstWay < new File(path).length()) {
+                    try (InputStream in = openFrom(path, firstWay)) {
+                        OsmXmlReader.read(in, loader, false, true);
+                    }
+                }
+            } else if (options.twoPass) {
+                try (InputStream in = open(path)) {
+                    OsmXmlReader.read(in, loader, false, true);
+                }
+                loader.retainReferencedNodes();
+                try (InputStream in = open(path)) {
+                    OsmXmlReader.read(in, loader, true, false);
+                }
+            } else {
+                try (InputStream in = open(path)) {
+                    OsmXmlReader.read(in, loader, true, true);
+                }
+            }
+        } catch (IOException | XMLStreamException e) {
+            e.printStackTrace();
+        }
+        return loader.build();
+    }
+
+    /** Size of the chunks handed from the decompressing thread to the parser. */
+    private static final int PIPELINE_CHUNK = 1 << 16;
+    /** How many chunks the decompressing thread may run ahead of the parser. */
+    private static final int PIPELINE_DEPTH = 16;
+
+    private static boolean isCompressed(String path) {
+        return path.endsWith(".gz") || path.endsWith(".bz2");
+    }
+
+    /** Opens path for reading, decompressing it in the background if it is compressed. */
+    private static InputStream open(String path) throws IOException {
+        InputStream file = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+        if (path.endsWith(".gz")) {
+            return new PipelinedInputStream(new GZIPInputStream(file, 1 << 16),
+                    PIPELINE_CHUNK, PIPELINE_DEPTH);
+        } else if (path.endsWith(".bz2")) {
+            return new PipelinedInputStream(new BZip2CompressorInputStream(file),
+                    PIPELINE_CHUNK, PIPELINE_DEPTH);
+        }
+        return file;
+    }
+
+    /**
+     * Opens the uncompressed file at path from offset on, as the content of an osm element
+     * so that the StAX reader sees a document.
+     */
+    private static InputStream openFrom(String path, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        channel.position(offset);
+        InputStream head = new ByteArrayInputStream(
+                "<osm>".getBytes(StandardCharsets.US_ASCII));
+        return new SequenceInputStream(head,
+                new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+    }
+
+    /**
+     * Adds a node. In the second pass of a two-pass load, nodes that no accepted way refers
+     * to are dropped right away.
+     * @param id The OSM id of the node.
+     * @param lon Its longitude.
+     * @param lat Its latitude.
+     */
+    void addNode(long id, double lon, double lat) {
+        if (wanted != null && Arrays.binarySearch(wanted, id) < 0) {
+            return;
+        }
+        if (nodeCount == nodeIds.length) {
+            int capacity = nodeCount * 2;
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeLons = Arrays.copyOf(nodeLons, capacity);
+            nodeLats = Arrays.copyOf(nodeLats, capacity);
+        }
+        if (nodeCount > 0 && nodeIds[nodeCount - 1] >= id) {
+            nodesSorted = false;
+        }
+        nodeIds[nodeCount] = id;
+        nodeLons[nodeCount] = lon;
+        nodeLats[nodeCount] = lat;
+        nodeCount += 1;
+    }
+
+    /**
+     * Records a named node. Locations are kept even if the node is not on any road.
+     * @param id The OSM id of the node.
+     * @param lon Its longitude.
+     * @param lat Its latitude.
+     * @param name Its name.
+     */
+    void addLocation(long id, double lon, double lat, String name) {
+        locations.add(new GraphDB.Location(id, lon, lat, name));
+    }
+
+    /**
+     * Adds a way if the way filter accepts it.
+     * @param wayRefs The node references of the way; only the first count are used.
+     * @param count The number of node references.
+     * @param tags The tags of the way.
+     * @return Whether the way was accepted.
+     */
+    boolean addWay(long[] wayRefs, int count, Map<String, String> tags) {
+        if (!wayFilter.test(tags)) {
+            return false;
+        }
+        if (refCount + count > refs.length) {
+            refs = Arrays.copyOf(refs, Math.max(refs.length * 2, refCount + count));
+        }
+        System.arraycopy(wayRefs, 0, refs, refCount, count);
+        refCount += count;
+        if (wayCount + 1 == wayName.length) {
+            wayName = Arrays.copyOf(wayName, wayName.length * 2);
+            waySpeed = Arrays.copyOf(waySpeed, wayName.length);
+            wayDirection = Arrays.copyOf(wayDirection, wayName.length);
+            wayStart = Arrays.copyOf(wayStart, wayName.length + 1);
+        }
+        String name = tags.get("name");
+        wayName[wayCount] = name == null ? 0 : nameIndex.computeIfAbsent(name, k -> {
+            names.add(k);
+            return names.size() - 1;
+        });
+        waySpeed[wayCount] = speed(tags);
+        wayDirection[wayCount] = oneWay ? direction(tags) : 0;
+        wayCount += 1;
+        wayStart[wayCount] = refCount;
+        return true;
+    }
+
+    /**
+     * Returns the speed of a way: its maxspeed if that is a number, in miles per hour unless
+     * it says km/h or knots (a bare number is km/h), and otherwise the typical speed of its
+     * highway type.
+     * @param tags The tags of the way.
+     * @return The speed in miles per hour.
+     */
+    static double speed(Map<String, String> tags) {
+        String maxspeed = tags.get("maxspeed");
+        if (maxspeed != null) {
+            /* Of several values, such as "35 mph;25 mph", the first. */
+            int semicolon = maxspeed.indexOf(';');
+            Matcher m = MAXSPEED.matcher(
+                    (semicolon < 0 ? maxspeed : maxspeed.substring(0, semicolon)).trim());
+            if (m.matches()) {
+                double value = Double.parseDouble(m.group(1));
+                String unit = m.group(2);
+                if (unit == null || unit.startsWith("k") && !unit.equals("knots")) {
+                    value = value / KM_PER_MILE;
+                } else if (unit.equals("knots")) {
+                    value = value * MILES_PER_KNOT;
+                }
+                if (value > 0) {
+                    return value;
+                }
+            }
+        }
+        Double speed = HIGHWAY_SPEEDS.get(tags.get("highway"));
+        return speed != null ? speed : CompactGraph.DEFAULT_SPEED;
+    }
+
+    /**
+     * Returns the direction a way may be travelled in according to its oneway tag. Motorways
+     * and roundabouts are one-way unless tagged otherwise.
+     * @param tags The tags of the way.
+     * @return 1 if only along the order of its nodes, -1 if only against it, 0 if both.
+     */
+    static byte direction(Map<String, String> tags) {
+        String oneway = tags.get("oneway");
+        if (oneway == null) {
+            boolean implied = "motorway".equals(tags.get("highway"))
+                    || "roundabout".equals(tags.get("junction"));
+            return (byte) (implied ? 1 : 0);
+        }
+        switch (oneway) {
+            case "yes":
+            case "true":
+            case "1":
+                return 1;
+            case "-1":
+            case "reverse":
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Switches to keeping only the nodes referred to by the ways added so far. Called
+     * between the two passes of a two-pass load.
+     */
+    void retainReferencedNodes() {
+        long[] ids = Arrays.copyOf(refs, refCount);
+        Arrays.sort(ids);
+        int n = 0;
+        for (int i = 0; i < ids.length; i += 1) {
+            if (n == 0 || ids[n - 1] != ids[i]) {
+                ids[n] = ids[i];
+                n += 1;
+            }
+        }
+        wanted = Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * Assembles the graph. A node becomes a vertex if an accepted way connects it to another
+     * node that exists in the input; each vertex keeps its neighbours in the order the ways
+     * added them, and each edge the name and speed of the first way that added it. An edge
+     * may be travelled in every direction some way that adds it allows.
+     * @return The graph.
+     */
+    GraphDB build() {
+        sortNodes();
+        int n = nodeCount;
+        /* Edges between node positions, in the order the ways add them. */
+        int maxEdges = 0;
+        for (int w = 0; w < wayCount; w += 1) {
+            maxEdges += Math.max(0, wayStart[w + 1] - wayStart[w] - 1);
+        }
+        int[] from = new int[maxEdges];
+        int[] to = new int[from.length];
+        int[] edgeName = new int[from.length];
+        double[] edgeSpeed = new double[from.length];
+        byte[] edgeDirection = new byte[from.length];
+        int edges = 0;
+        boolean[] used = new boolean[n];
+        for (int w = 0; w < wayCount; w += 1) {
+            for (int i = wayStart[w] + 1; i < wayStart[w + 1]; i += 1) {
+                int u = Arrays.binarySearch(nodeIds, 0, n, refs[i - 1]);
+                int v = Arrays.binarySearch(nodeIds, 0, n, refs[i]);
+                if (u < 0 || v < 0) {
+                    continue;
+                }
+                from[edges] = u;
+                to[edges] = v;
+                edgeName[edges] = wayName[w];
+                edgeSpeed[edges] = waySpeed[w];
+                edgeDirection[edges] = wayDirection[w];
+                used[u] = true;
+                used[v] = true;
+                edges += 1;
+            }
+        }
+
+        int[] vertexOf = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i += 1) {
+            vertexOf[i] = used[i] ? size : -1;
+            size += used[i] ? 1 : 0;
+        }
+        long[] ids = new long[size];
+        double[] lons = new double[size];
+        double[] lats = new double[size];
+        for (int i = 0; i < n; i += 1) {
+            if (used[i]) {
+                ids[vertexOf[i]] = nodeIds[i];
+                lons[vertexOf[i]] = nodeLons[i];
+                lats[vertexOf[i]] = nodeLats[i];
+            }
+        }
+        nodeIds = null;
+        nodeLons = null;
+        nodeLats = null;
+
+        int[] offsets = new int[size + 1];
+        for (int e = 0; e < edges; e += 1) {
+            if (from[e] != to[e]) {
+                offsets[vertexOf[from[e]] + 1] += 1;
+                offsets[vertexOf[to[e]] + 1] += 1;
+            }
+        }
+        for (int v = 0; v < size; v += 1) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] targets = new int[offsets[size]];
+        int[] names = new int[offsets[size]];
+        double[] speeds = new double[offsets[size]];
+        byte[] flags = new byte[offsets[size]];
+        int[] fill = Arrays.copyOf(offsets, size);
+        for (int e = 0; e < edges; e += 1) {
+            int u = vertexOf[from[e]];
+            int v = vertexOf[to[e]];
+            if (u != v) {
+                /* Travelling along the way goes from u to v. */
+                byte along = edgeDirection[e] >= 0 ? CompactGraph.FORWARD : 0;
+                byte against = edgeDirection[e] <= 0 ? CompactGraph.BACKWARD : 0;
+                targets[fill[u]] = v;
+                names[fill[u]] = edgeName[e];
+                speeds[fill[u]] = edgeSpeed[e];
+                flags[fill[u]] = (byte) (along | against);
+                fill[u] += 1;
+                targets[fill[v]] = u;
+                names[fill[v]] = edgeName[e];
+                speeds[fill[v]] = edgeSpeed[e];
+                flags[fill[v]] = (byte) ((along == 0 ? 0 : CompactGraph.BACKWARD)
+                        | (against == 0 ? 0 : CompactGraph.FORWARD));
+                fill[v] += 1;
+            }
+        }
+
+        /* Merge the duplicate edges of ways with the same name and speed, keeping the
+         * directions of all. Ways that differ share a segment as parallel edges, so each
+         * direction keeps the speed of the ways that may travel it. */
+        int m = 0;
+        for (int v = 0; v < size; v += 1) {
+            int begin = m;
+            for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+                int same = indexOfEdge(targets, names, speeds, begin, m, e);
+                if (same >= 0) {
+                    flags[same] |= flags[e];
+                } else {
+                    targets[m] = targets[e];
+                    names[m] = names[e];
+                    speeds[m] = speeds[e];
+                    flags[m] = flags[e];
+                    m += 1;
+                }
+            }
+            offsets[v] = begin;
+        }
+        offsets[size] = m;
+        CompactGraph cg = new CompactGraph(ids, lons, lats, offsets, Arrays.copyOf(targets, m),
+                Arrays.copyOf(names, m), this.names.toArray(new String[0]),
+                Arrays.copyOf(flags, m), Arrays.copyOf(speeds, m));
+        return new GraphDB(cg, KdTree.build(cg), locations);
+    }
+
+    /** Index in [from, to) of an edge with the target, name and speed of edge e, or -1. */
+    private static int indexOfEdge(int[] targets, int[] names, double[] speeds, int from,
+                                   int to, int e) {
+        for (int i = from; i < to; i += 1) {
+            if (targets[i] == targets[e] && names[i] == names[e] && speeds[i] == speeds[e]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sorts the buffered nodes by id. If a node id appears more than once, the last one
+     * read wins, as it did when nodes were put into a map. OSM files list nodes by id, so
+     * usually only the duplicates have to be dropped.
+     */
+    private void sortNodes() {
+        if (nodesSorted) {
+            return;
+        }
+        int i = 1;
+        while (i < nodeCount && nodeIds[i - 1] <= nodeIds[i]) {
+            i += 1;
+        }
+        if (i < nodeCount) {
+            int[] order = sortedOrder(nodeIds, nodeCount);
+            long[] ids = new long[nodeCount];
+            double[] lons = new double[nodeCount];
+            double[] lats = new double[nodeCount];
+            for (int k = 0; k < nodeCount; k += 1) {
+                ids[k] = nodeIds[order[k]];
+                lons[k] = nodeLons[order[k]];
+                lats[k] = nodeLats[order[k]];
+            }
+            nodeIds = ids;
+            nodeLons = lons;
+            nodeLats = lats;
+        }
+        int n = 0;
+        for (int k = 0; k < nodeCount; k += 1) {
+            if (n > 0 && nodeIds[n - 1] == nodeIds[k]) {
+                n -= 1;
+            }
+            nodeIds[n] = nodeIds[k];
+            nodeLons[n] = nodeLons[k];
+            nodeLats[n] = nodeLats[k];
+            n += 1;
+        }
+        nodeCount = n;
+        nodesSorted = true;
+    }
+
+    /**
+     * Stable merge sort of the indices of the first n keys, so that equal keys keep their
+     * input order.
+     * @return The indices in [0, n) in the order of their keys.
+     */
+    private static int[] sortedOrder(long[] keys, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = i;
+        }
+        int[] merged = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k += 1) {
+                    if (b < hi && (a >= mid || keys[order[b]] < keys[order[a]])) {
+                        merged[k] = order[b];
+                        b += 1;
+                    } else {
+                        merged[k] = order[a];
+                        a += 1;
+                    }
+                }
+            }
+            int[] t = order;
+            order = merged;
+            merged = t;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,402 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary snapshot of a cleaned GraphDB: vertex ids, coordinates, adjacency, the
+ * spatial index, way names and location names. Every section is read through
+ * FileChannel.map, and depending on the GraphDB.Storage asked for, either bulk copied onto
+ * the heap, which is far cheaper than parsing the OSM XML again, or used in place.
+ * <p>
+ * Layout, all numbers little-endian:
+ * <pre>
+ *     header    magic "GS01", version, source length, source mtime,
+ *               vertex count n, edge count m, name count, location count
+ *     vertices  long ids[n], double lons[n], double lats[n]
+ *     edges     int offsets[n + 1], int targets[m], int edgeNames[m], byte flags[m],
+ *               double lengths[m], double times[m]
+ *     k-d tree  int vertex[n], byte axis[n], double xs[n], double ys[n], double zs[n]
+ *     names     per name: int byte length, UTF-8 bytes
+ *     locations per location: long id, double lon, double lat, name as above
+ *     trailer   long CRC32 of everything before it
+ * </pre>
+ * Every array section starts on an 8 byte boundary, so that mapped views of it are aligned.
+ * The length and modification time of the OSM file the snapshot was written for are
+ * recorded, and a snapshot whose source has changed since is stale.
+ * <p>
+ * The checksum is verified when a snapshot is copied onto the heap. A mapped snapshot only
+ * has its section sizes checked, since verifying it would mean reading every page of the
+ * file at startup.
+ */
+final class GraphSnapshot {
+    /** Format marker of graph snapshots. */
+    private static final int MAGIC = 0x47533031; // "GS01"
+    /** Bumped whenever the layout changes, so that old snapshots are rebuilt. */
+    static final int VERSION = 3;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int HEADER_BYTES = 40;
+    private static final int BUFFER_BYTES = 1 << 16;
+    /** Largest region mapped at once while verifying the checksum. */
+    private static final long CHECKSUM_CHUNK = 1 << 30;
+
+    private GraphSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of g. The file is written next to path first and then moved into
+     * place, so a crash never leaves a truncated snapshot behind.
+     * @param g The graph.
+     * @param path The snapshot file to write.
+     * @param source The OSM file g was parsed from.
+     * @throws IOException If the file cannot be written.
+     */
+    static void save(GraphDB g, String path, File source) throws IOException {
+        CompactGraph cg = g.compact();
+        KdTree index = g.index();
+        int n = cg.size();
+        int m = cg.edgeCount();
+        List<GraphDB.Location> locations = g.locations();
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer out = new Writer(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(source.length());
+            out.putLong(source.lastModified());
+            out.putInt(n);
+            out.putInt(m);
+            out.putInt(cg.nameCount());
+            out.putInt(locations.size());
+            for (int v = 0; v < n; v += 1) {
+                out.putLong(cg.id(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.putDouble(cg.lon(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.putDouble(cg.lat(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.putInt(cg.edgeBegin(v));
+            }
+            out.putInt(m);
+            out.align();
+            for (int e = 0; e < m; e += 1) {
+                out.putInt(cg.edgeTarget(e));
+            }
+            out.align();
+            for (int e = 0; e < m; e += 1) {
+                out.putInt(cg.edgeName(e));
+            }
+            out.align();
+            for (int e = 0; e < m; e += 1) {
+                out.putByte(cg.edgeFlags(e));
+            }
+            out.align();
+            for (int e = 0; e < m; e += 1) {
+                out.putDouble(cg.edgeLength(e));
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.putDouble(cg.edgeTime(e));
+            }
+            for (int i = 0; i < n; i += 1) {
+                out.putInt(index.vertexAt(i));
+            }
+            out.align();
+            for (int i = 0; i < n; i += 1) {
+                out.putByte(index.axisAt(i));
+            }
+            out.align();
+            for (int a = 0; a < 3; a += 1) {
+                for (int i = 0; i < n; i += 1) {
+                    out.putDouble(index.coordAt(a, i));
+                }
+            }
+            for (int i = 0; i < cg.nameCount(); i += 1) {
+                out.putString(cg.name(i));
+            }
+            out.align();
+            for (GraphDB.Location location : locations) {
+                out.putLong(location.id);
+                out.putDouble(location.lon);
+                out.putDouble(location.lat);
+                out.putString(location.name);
+                out.align();
+            }
+            out.finish();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads a snapshot written by save onto the heap.
+     * @param path The snapshot file.
+     * @param source The OSM file the snapshot should have been written for.
+     * @return The graph, or null if the snapshot is stale.
+     * @throws IOException If the file cannot be read or is corrupt.
+     */
+    static GraphDB load(String path, File source) throws IOException {
+        return load(path, source, GraphDB.Storage.HEAP);
+    }
+
+    /**
+     * Loads a snapshot written by save.
+     * @param path The snapshot file.
+     * @param source The OSM file the snapshot should have been written for.
+     * @param storage Whether to copy the arrays onto the heap or use them in place.
+     * @return The graph, or null if the snapshot was written for a different version of
+     * the source or by a different version of this class.
+     * @throws IOException If the file cannot be read or is corrupt.
+     */
+    static GraphDB load(String path, File source, GraphDB.Storage storage) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + Long.BYTES) {
+                throw new IOException(path + " does not hold a graph snapshot");
+            }
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " does not hold a graph snapshot");
+            }
+            if (header.getInt() != VERSION || header.getLong() != source.length()
+                    || header.getLong() != source.lastModified()) {
+                return null;
+            }
+            int n = header.getInt();
+            int m = header.getInt();
+            int nameCount = header.getInt();
+            int locationCount = header.getInt();
+            boolean copy = storage == GraphDB.Storage.HEAP;
+            if (copy && checksum(channel, size - Long.BYTES)
+                    != map(channel, size - Long.BYTES, Long.BYTES).getLong()) {
+                throw new IOException(path + " is corrupt");
+            }
+
+            Sections s = new Sections(channel, HEADER_BYTES, size - Long.BYTES, path);
+            LongBuffer ids = s.longs(n, copy);
+            DoubleBuffer lons = s.doubles(n, copy);
+            DoubleBuffer lats = s.doubles(n, copy);
+            IntBuffer offsets = s.ints(n + 1, copy);
+            IntBuffer targets = s.ints(m, copy);
+            IntBuffer edgeNames = s.ints(m, copy);
+            ByteBuffer flags = s.bytes(m, copy);
+            DoubleBuffer lengths = s.doubles(m, copy);
+            DoubleBuffer times = s.doubles(m, copy);
+            IntBuffer kdVertex = s.ints(n, copy);
+            ByteBuffer kdAxis = s.bytes(n, copy);
+            DoubleBuffer kdX = s.doubles(n, copy);
+            DoubleBuffer kdY = s.doubles(n, copy);
+            DoubleBuffer kdZ = s.doubles(n, copy);
+            /* Names and locations are always read onto the heap. */
+            ByteBuffer rest = s.bytes(s.remaining(), true);
+            String[] names = new String[nameCount];
+            for (int i = 0; i < nameCount; i += 1) {
+                names[i] = getString(rest);
+            }
+            align(rest);
+            List<GraphDB.Location> locations = new ArrayList<>(locationCount);
+            for (int i = 0; i < locationCount; i += 1) {
+                long id = rest.getLong();
+                double lon = rest.getDouble();
+                double lat = rest.getDouble();
+                locations.add(new GraphDB.Location(id, lon, lat, getString(rest)));
+                align(rest);
+            }
+
+            CompactGraph cg = new CompactGraph(ids, lons, lats, offsets, targets, edgeNames,
+                    names, flags, lengths, times);
+            KdTree index = new KdTree(cg, kdVertex, kdX, kdY, kdZ, kdAxis);
+            return new GraphDB(cg, index, locations);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long bytes)
+            throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ORDER);
+    }
+
+    /** CRC32 of the first bytes of the file, mapped a chunk at a time. */
+    private static long checksum(FileChannel channel, long bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < bytes; position += CHECKSUM_CHUNK) {
+            crc.update(map(channel, position, Math.min(CHECKSUM_CHUNK, bytes - position)));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Maps the consecutive array sections of a snapshot, each starting on an 8 byte
+     * boundary. Sections are mapped one at a time, so that no single mapping has to exceed
+     * the 2 GB limit of a buffer.
+     */
+    private static final class Sections {
+        private final FileChannel channel;
+        private final long end;
+        private final String path;
+        private long position;
+
+        Sections(FileChannel channel, long position, long end, String path) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.path = path;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+
+        private ByteBuffer next(long bytes) throws IOException {
+            if (bytes < 0 || position + bytes > end) {
+                throw new IOException(path + " is truncated");
+            }
+            ByteBuffer buf = map(channel, position, bytes);
+            position = (position + bytes + 7) & ~7L;
+            return buf;
+        }
+
+        ByteBuffer bytes(long count, boolean copy) throws IOException {
+            ByteBuffer buf = next(count);
+            if (!copy) {
+                return buf;
+            }
+            byte[] a = new byte[(int) count];
+            buf.get(a);
+            return ByteBuffer.wrap(a).order(ORDER);
+        }
+
+        IntBuffer ints(int count, boolean copy) throws IOException {
+            IntBuffer buf = next((long) count * Integer.BYTES).asIntBuffer();
+            if (!copy) {
+                return buf;
+            }
+            int[] a = new int[count];
+            buf.get(a);
+            return IntBuffer.wrap(a);
+        }
+
+        LongBuffer longs(int count, boolean copy) throws IOException {
+            LongBuffer buf = next((long) count * Long.BYTES).asLongBuffer();
+            if (!copy) {
+                return buf;
+            }
+            long[] a = new long[count];
+            buf.get(a);
+            return LongBuffer.wrap(a);
+        }
+
+        DoubleBuffer doubles(int count, boolean copy) throws IOException {
+            DoubleBuffer buf = next((long) count * Double.BYTES).asDoubleBuffer();
+            if (!copy) {
+                return buf;
+            }
+            double[] a = new double[count];
+            buf.get(a);
+            return DoubleBuffer.wrap(a);
+        }
+    }
+
+    private static void align(ByteBuffer buf) {
+        buf.position((buf.position() + 7) & ~7);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Buffered channel writer that keeps a running CRC32 of what it writes. */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES).order(ORDER);
+        private final CRC32 crc = new CRC32();
+        private long position;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.array(), 0, buf.limit());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+
+        void putByte(byte x) throws IOException {
+            ensure(1);
+            buf.put(x);
+            position += 1;
+        }
+
+        void putInt(int x) throws IOException {
+            ensure(Integer.BYTES);
+            buf.putInt(x);
+            position += Integer.BYTES;
+        }
+
+        void putLong(long x) throws IOException {
+            ensure(Long.BYTES);
+            buf.putLong(x);
+            position += Long.BYTES;
+        }
+
+        void putDouble(double x) throws IOException {
+            ensure(Double.BYTES);
+            buf.putDouble(x);
+            position += Double.BYTES;
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (byte b : bytes) {
+                putByte(b);
+            }
+        }
+
+        /** Pads with zeros up to the next multiple of 8 bytes. */
+        void align() throws IOException {
+            while ((position & 7) != 0) {
+                putByte((byte) 0);
+            }
+        }
+
+        /** Writes the checksum trailer and flushes everything to the channel. */
+        void finish() throws IOException {
+            align();
+            flush();
+            buf.putLong(crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        }
+    }
+}
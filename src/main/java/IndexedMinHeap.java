@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int items in [0, capacity) keyed by doubles, with decrease-key.
+ * Items and keys are kept in parallel primitive arrays and the heap slot of every item is
+ * tracked in an index array, so no objects are allocated per operation. The index array
+ * is kept all -1 outside of the heap contents, which makes clear() proportional to the
+ * number of items still queued rather than to the capacity.
+ */
+final class IndexedMinHeap {
+    private int[] items;
+    private double[] keys;
+    /** Heap slot of each item, or -1 if the item is not queued. */
+    private int[] slots;
+    private int size;
+
+    /**
+     * Creates an empty heap for items in [0, capacity).
+     * @param capacity The number of distinct items.
+     */
+    IndexedMinHeap(int capacity) {
+        items = new int[Math.max(capacity, 1)];
+        keys = new double[Math.max(capacity, 1)];
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+    }
+
+    /** Number of items the heap can index. */
+    int capacity() {
+        return slots.length;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int item) {
+        return slots[item] >= 0;
+    }
+
+    /** The smallest item; the heap must not be empty. */
+    int peek() {
+        return items[0];
+    }
+
+    /** The smallest key, or positive infinity if the heap is empty. */
+    double minKey() {
+        return size == 0 ? Double.POSITIVE_INFINITY : keys[0];
+    }
+
+    /**
+     * Inserts item with the given key, or lowers its key if it is already queued with a
+     * larger one. A larger key for a queued item is ignored.
+     * @param item The item.
+     * @param key Its priority.
+     */
+    void push(int item, double key) {
+        int slot = slots[item];
+        if (slot < 0) {
+            slot = size;
+            size += 1;
+        } else if (key >= keys[slot]) {
+            return;
+        }
+        siftUp(slot, item, key);
+    }
+
+    /**
+     * Inserts item with the given key, or changes its key in either direction if it is
+     * already queued.
+     * @param item The item.
+     * @param key Its new priority.
+     */
+    void update(int item, double key) {
+        int slot = slots[item];
+        if (slot < 0) {
+            push(item, key);
+        } else if (key < keys[slot]) {
+            siftUp(slot, item, key);
+        } else {
+            siftDown(slot, item, key);
+        }
+    }
+
+    /**
+     * Removes and returns the item with the smallest key.
+     * @return The removed item; the heap must not be empty.
+     */
+    int poll() {
+        int min = items[0];
+        slots[min] = -1;
+        size -= 1;
+        if (size > 0) {
+            siftDown(0, items[size], keys[size]);
+        }
+        return min;
+    }
+
+    /** Removes every queued item. */
+    void clear() {
+        for (int i = 0; i < size; i += 1) {
+            slots[items[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int slot, int item, double key) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(slot, items[parent], keys[parent]);
+            slot = parent;
+        }
+        place(slot, item, key);
+    }
+
+    private void siftDown(int slot, int item, double key) {
+        int half = size >>> 1;
+        while (slot < half) {
+            int child = 2 * slot + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child += 1;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            place(slot, items[child], keys[child]);
+            slot = child;
+        }
+        place(slot, item, key);
+    }
+
+    private void place(int slot, int item, double key) {
+        items[slot] = item;
+        keys[slot] = key;
+        slots[item] = slot;
+    }
+}
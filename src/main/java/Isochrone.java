@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The part of the graph reachable from a location within a distance budget, as returned by
+ * Router.isochrone: every reachable vertex with its shortest path distance, and the convex
+ * hull of the reachable area for drawing coverage maps.
+ * The search is Dijkstra's algorithm that stops as soon as the next vertex would exceed the
+ * budget. It runs on the calling thread's SearchWorkspace, so repeated queries allocate only
+ * the arrays of the result. The hull also includes the points part way along edges at which
+ * the budget runs out, so it follows the roads out of the last reachable intersections rather
+ * than stopping short at them.
+ */
+public class Isochrone {
+    private final long[] ids;
+    private final double[] distances;
+    private final List<double[]> hull;
+
+    private Isochrone(long[] ids, double[] distances, List<double[]> hull) {
+        this.ids = ids;
+        this.distances = distances;
+        this.hull = hull;
+    }
+
+    /**
+     * Runs the bounded search.
+     * @param g The graph.
+     * @param lon The longitude of the start location.
+     * @param lat The latitude of the start location.
+     * @param budget The largest distance to travel, in miles.
+     * @return The reachable vertices and their hull.
+     */
+    static Isochrone compute(GraphDB g, double lon, double lat, double budget) {
+        CompactGraph cg = g.compact();
+        int source = g.closestIndex(lon, lat);
+        if (source < 0 || budget < 0 || Double.isNaN(budget)) {
+            return new Isochrone(new long[0], new double[0], new ArrayList<>());
+        }
+        SearchWorkspace ws = SearchWorkspace.forThread(cg.size());
+        IndexedMinHeap fringe = ws.heap();
+        ws.reach(source, 0, -1, 0);
+        fringe.push(source, 0);
+        /* Points where the budget runs out part way along an edge, as lon, lat pairs. */
+        double[] frontier = new double[16];
+        int frontierSize = 0;
+        while (!fringe.isEmpty() && fringe.minKey() <= budget) {
+            int v = fringe.poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                if (!cg.isForward(e) || ws.settled(w)) {
+                    continue;
+                }
+                double length = cg.edgeLength(e);
+                double dw = dv + length;
+                if (dw > budget) {
+                    double t = (budget - dv) / length;
+                    if (frontierSize + 2 > frontier.length) {
+                        frontier = Arrays.copyOf(frontier, frontier.length * 2);
+                    }
+                    frontier[frontierSize] = cg.lon(v) + t * (cg.lon(w) - cg.lon(v));
+                    frontier[frontierSize + 1] = cg.lat(v) + t * (cg.lat(w) - cg.lat(v));
+                    frontierSize += 2;
+                }
+                if (!ws.reached(w)) {
+                    ws.reach(w, dw, v, 0);
+                    fringe.push(w, dw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    fringe.push(w, dw);
+                }
+            }
+        }
+
+        int n = ws.settledCount();
+        long[] ids = new long[n];
+        double[] distances = new double[n];
+        double[] points = new double[2 * n + frontierSize];
+        for (int i = 0; i < n; i++) {
+            int v = ws.settledVertex(i);
+            ids[i] = cg.id(v);
+            distances[i] = ws.dist(v);
+            points[2 * i] = cg.lon(v);
+            points[2 * i + 1] = cg.lat(v);
+        }
+        System.arraycopy(frontier, 0, points, 2 * n, frontierSize);
+        return new Isochrone(ids, distances, convexHull(points));
+    }
+
+    /**
+     * Andrew's monotone chain over lon, lat pairs. Over the few miles an isochrone spans,
+     * treating longitude and latitude as planar coordinates does not change which points
+     * are on the hull in any way that matters for drawing it.
+     * @param points Flattened lon, lat pairs.
+     * @return The hull vertices in counter-clockwise order, without repeating the first.
+     */
+    private static List<double[]> convexHull(double[] points) {
+        int n = points.length / 2;
+        int[] order = sortedOrder(points, n);
+        int[] hull = new int[2 * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            while (k >= 2 && cross(points, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k -= 1;
+            }
+            hull[k] = order[i];
+            k += 1;
+        }
+        int lower = k + 1;
+        for (int i = n - 2; i >= 0; i--) {
+            while (k >= lower && cross(points, hull[k - 2], hull[k - 1], order[i]) <= 0) {
+                k -= 1;
+            }
+            hull[k] = order[i];
+            k += 1;
+        }
+        /* The last point of the upper chain is the first point of the lower one. */
+        int size = n > 1 ? k - 1 : n;
+        List<double[]> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new double[] {points[2 * hull[i]], points[2 * hull[i] + 1]});
+        }
+        return result;
+    }
+
+    /**
+     * Bottom-up merge sort of the point indices by longitude, then latitude, on primitive
+     * arrays so that large isochrones do not box an index per point.
+     * @return The indices in [0, n) in sorted order.
+     */
+    private static int[] sortedOrder(double[] points, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int[] merged = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (b < hi && (a >= mid || compare(points, order[b], order[a]) < 0)) {
+                        merged[k] = order[b++];
+                    } else {
+                        merged[k] = order[a++];
+                    }
+                }
+            }
+            int[] t = order;
+            order = merged;
+            merged = t;
+        }
+        return order;
+    }
+
+    private static int compare(double[] points, int a, int b) {
+        int c = Double.compare(points[2 * a], points[2 * b]);
+        return c != 0 ? c : Double.compare(points[2 * a + 1], points[2 * b + 1]);
+    }
+
+    /** Cross product of (b - a) and (c - a); positive if a, b, c turn counter-clockwise. */
+    private static double cross(double[] points, int a, int b, int c) {
+        double ax = points[2 * a];
+        double ay = points[2 * a + 1];
+        return (points[2 * b] - ax) * (points[2 * c + 1] - ay)
+                - (points[2 * b + 1] - ay) * (points[2 * c] - ax);
+    }
+
+    /** Number of reachable vertices. */
+    public int size() {
+        return ids.length;
+    }
+
+    /** OSM id of the i-th reachable vertex; vertices are in order of increasing distance. */
+    public long id(int i) {
+        return ids[i];
+    }
+
+    /** Shortest path distance in miles from the start to the i-th reachable vertex. */
+    public double distance(int i) {
+        return distances[i];
+    }
+
+    /**
+     * Returns the convex hull of the reachable area.
+     * @return The hull as {lon, lat} pairs in counter-clockwise order. It is empty if
+     * nothing is reachable, and has fewer than three points if the area is degenerate.
+     */
+    public List<double[]> hull() {
+        return hull;
+    }
+}
@@ -0,0 +1,458 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Static k-d tree over the vertices of a CompactGraph, used to answer nearest-vertex,
+ * k-nearest and radius queries without scanning every vertex.
+ * Each vertex is stored as a point on the unit sphere. The straight-line (chord) distance
+ * between two such points grows monotonically with their great-circle distance, so the
+ * tree can prune with cheap Euclidean bounds, while candidates are still ranked by the
+ * haversine distance of GraphDB.distance. That keeps the answers identical to a brute
+ * force scan over the graph, ties included (the lower vertex index wins).
+ * The tree is implicit: the node of a subrange [lo, hi) of the arrays is its middle
+ * element, and its left and right subtrees are the two halves around it. Like CompactGraph,
+ * the arrays are held as buffers, so a tree saved in a graph snapshot can be used straight
+ * from the mapped file instead of being rebuilt.
+ */
+final class KdTree {
+    /** Radius of the earth in miles, as used by GraphDB.distance. */
+    private static final double EARTH_RADIUS = 3963;
+    /** Relative slack on chord comparisons, so rounding never prunes a true candidate. */
+    private static final double SLACK = 1 + 1e-9;
+
+    private final CompactGraph g;
+    /** Vertex index stored at each tree position. */
+    private final IntBuffer vertex;
+    /** Unit sphere coordinates at each tree position. */
+    private final DoubleBuffer xs, ys, zs;
+    /** Split axis (0, 1 or 2) of the node at each tree position. */
+    private final ByteBuffer axis;
+    private final int length;
+
+    /** Mutable state of the nearest neighbour search. */
+    private static final class Best {
+        int vertex = -1;
+        double chord2 = Double.POSITIVE_INFINITY;
+        double distance = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Creates a tree from its arrays, e.g. as saved in a graph snapshot.
+     * @param g The indexed graph.
+     * @param vertex The vertex index at each tree position.
+     * @param xs The x coordinate on the unit sphere at each tree position.
+     * @param ys The y coordinate on the unit sphere at each tree position.
+     * @param zs The z coordinate on the unit sphere at each tree position.
+     * @param axis The split axis at each tree position.
+     */
+    KdTree(CompactGraph g, IntBuffer vertex, DoubleBuffer xs, DoubleBuffer ys,
+           DoubleBuffer zs, ByteBuffer axis) {
+        this.g = g;
+        this.vertex = vertex;
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.axis = axis;
+        this.length = vertex.limit();
+    }
+
+    /**
+     * Builds the tree over all vertices of g.
+     * @param g The graph to index.
+     * @return The tree.
+     */
+    static KdTree build(CompactGraph g) {
+        int n = g.size();
+        Builder b = new Builder(n);
+        for (int v = 0; v < n; v += 1) {
+            b.vertex[v] = v;
+            double[] p = toUnit(g.lon(v), g.lat(v));
+            b.xs[v] = p[0];
+            b.ys[v] = p[1];
+            b.zs[v] = p[2];
+        }
+        b.build(0, n);
+        return new KdTree(g, IntBuffer.wrap(b.vertex), DoubleBuffer.wrap(b.xs),
+                DoubleBuffer.wrap(b.ys), DoubleBuffer.wrap(b.zs), ByteBuffer.wrap(b.axis));
+    }
+
+    /** Converts a longitude and latitude to a point on the unit sphere. */
+    static double[] toUnit(double lon, double lat) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        double c = Math.cos(phi);
+        return new double[] {c * Math.cos(lambda), c * Math.sin(lambda), Math.sin(phi)};
+    }
+
+    /** Chord length on the unit sphere of a great-circle distance in miles. */
+    private static double chord(double miles) {
+        double angle = Math.min(miles / EARTH_RADIUS, Math.PI);
+        return 2 * Math.sin(angle / 2);
+    }
+
+    /** Heap arrays of a tree under construction. */
+    private static final class Builder {
+        final int[] vertex;
+        final double[] xs, ys, zs;
+        final byte[] axis;
+
+        Builder(int n) {
+            vertex = new int[n];
+            xs = new double[n];
+            ys = new double[n];
+            zs = new double[n];
+            axis = new byte[n];
+        }
+
+        private void build(int lo, int hi) {
+            if (hi - lo <= 1) {
+                return;
+            }
+            int a = widestAxis(lo, hi);
+            int mid = (lo + hi) >>> 1;
+            select(lo, hi - 1, mid, a);
+            axis[mid] = (byte) a;
+            build(lo, mid);
+            build(mid + 1, hi);
+        }
+
+        private int widestAxis(int lo, int hi) {
+            double best = -1;
+            int bestAxis = 0;
+            for (int a = 0; a < 3; a += 1) {
+                double[] c = coords(a);
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = lo; i < hi; i += 1) {
+                    min = Math.min(min, c[i]);
+                    max = Math.max(max, c[i]);
+                }
+                if (max - min > best) {
+                    best = max - min;
+                    bestAxis = a;
+                }
+            }
+            return bestAxis;
+        }
+
+        private double[] coords(int a) {
+            return a == 0 ? xs : a == 1 ? ys : zs;
+        }
+
+        /** Quickselect: partitions [lo, hi] so that position k holds its median along axis a. */
+        private void select(int lo, int hi, int k, int a) {
+            double[] c = coords(a);
+            while (hi > lo) {
+                double pivot = c[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (c[i] < pivot) {
+                        i += 1;
+                    }
+                    while (c[j] > pivot) {
+                        j -= 1;
+                    }
+                    if (i <= j) {
+                        swap(i, j);
+                        i += 1;
+                        j -= 1;
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            int v = vertex[i];
+            vertex[i] = vertex[j];
+            vertex[j] = v;
+            double t = xs[i];
+            xs[i] = xs[j];
+            xs[j] = t;
+            t = ys[i];
+            ys[i] = ys[j];
+            ys[j] = t;
+            t = zs[i];
+            zs[i] = zs[j];
+            zs[j] = t;
+        }
+    }
+
+    private DoubleBuffer coords(int a) {
+        return a == 0 ? xs : a == 1 ? ys : zs;
+    }
+
+    private double chord2(int i, double[] p) {
+        double dx = xs.get(i) - p[0];
+        double dy = ys.get(i) - p[1];
+        double dz = zs.get(i) - p[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Number of tree positions, which is the number of vertices. */
+    int size() {
+        return length;
+    }
+
+    /** Vertex index stored at tree position i. */
+    int vertexAt(int i) {
+        return vertex.get(i);
+    }
+
+    /** Coordinate a (0 for x, 1 for y, 2 for z) on the unit sphere at tree position i. */
+    double coordAt(int a, int i) {
+        return coords(a).get(i);
+    }
+
+    /** Split axis of the node at tree position i. */
+    byte axisAt(int i) {
+        return axis.get(i);
+    }
+
+    /**
+     * Returns the vertex closest to the given location, or -1 if the graph is empty.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex.
+     */
+    int nearest(double lon, double lat) {
+        Best best = new Best();
+        nearest(0, length, toUnit(lon, lat), lon, lat, best);
+        return best.vertex;
+    }
+
+    private void nearest(int lo, int hi, double[] p, double lon, double lat, Best best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d2 = chord2(mid, p);
+        if (d2 <= best.chord2 * SLACK) {
+            int v = vertex.get(mid);
+            double d = GraphDB.distance(g.lon(v), g.lat(v), lon, lat);
+            if (d < best.distance || (d == best.distance && v < best.vertex)) {
+                best.vertex = v;
+                best.distance = d;
+                best.chord2 = Math.min(best.chord2, d2);
+            }
+        }
+        if (hi - lo == 1) {
+            return;
+        }
+        double diff = p[axis.get(mid)] - coords(axis.get(mid)).get(mid);
+        if (diff < 0) {
+            nearest(lo, mid, p, lon, lat, best);
+            if (diff * diff <= best.chord2 * SLACK) {
+                nearest(mid + 1, hi, p, lon, lat, best);
+            }
+        } else {
+            nearest(mid + 1, hi, p, lon, lat, best);
+            if (diff * diff <= best.chord2 * SLACK) {
+                nearest(lo, mid, p, lon, lat, best);
+            }
+        }
+    }
+
+    /**
+     * Returns the k vertices closest to the given location, nearest first.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param k The number of vertices wanted.
+     * @return Up to k vertex indices, sorted by increasing great-circle distance.
+     */
+    int[] nearest(double lon, double lat, int k) {
+        k = Math.min(k, length);
+        if (k <= 0) {
+            return new int[0];
+        }
+        /* Max-heap on chord length of the k best positions seen so far. */
+        int[] heap = new int[k];
+        double[] keys = new double[k];
+        int size = nearestK(0, length, toUnit(lon, lat), heap, keys, 0);
+        return sortByDistance(heap, size, lon, lat);
+    }
+
+    private int nearestK(int lo, int hi, double[] p, int[] heap, double[] keys, int size) {
+        if (lo >= hi) {
+            return size;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d2 = chord2(mid, p);
+        if (size < heap.length) {
+            heap[size] = mid;
+            keys[size] = d2;
+            siftUp(heap, keys, size);
+            size += 1;
+        } else if (d2 < keys[0]) {
+            heap[0] = mid;
+            keys[0] = d2;
+            siftDown(heap, keys, size);
+        }
+        if (hi - lo == 1) {
+            return size;
+        }
+        double diff = p[axis.get(mid)] - coords(axis.get(mid)).get(mid);
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        size = nearestK(nearLo, nearHi, p, heap, keys, size);
+        if (size < heap.length || diff * diff <= keys[0] * SLACK) {
+            size = nearestK(farLo, farHi, p, heap, keys, size);
+        }
+        return size;
+    }
+
+    private static void siftUp(int[] heap, double[] keys, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (keys[parent] >= keys[i]) {
+                return;
+            }
+            swap(heap, keys, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] keys, int size) {
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] > keys[child]) {
+                child += 1;
+            }
+            if (keys[i] >= keys[child]) {
+                return;
+            }
+            swap(heap, keys, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(int[] heap, double[] keys, int i, int j) {
+        int h = heap[i];
+        heap[i] = heap[j];
+        heap[j] = h;
+        double k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+    }
+
+    /**
+     * Returns every vertex within the given great-circle distance of a location.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param radius The search radius in miles.
+     * @return The matching vertex indices, sorted by increasing great-circle distance.
+     */
+    int[] within(double lon, double lat, double radius) {
+        if (radius < 0) {
+            return new int[0];
+        }
+        double c = chord(radius);
+        Hits hits = new Hits();
+        within(0, length, toUnit(lon, lat), c * c * SLACK, hits);
+        int n = 0;
+        for (int i = 0; i < hits.size; i += 1) {
+            int v = vertex.get(hits.positions[i]);
+            if (GraphDB.distance(g.lon(v), g.lat(v), lon, lat) <= radius) {
+                hits.positions[n] = hits.positions[i];
+                n += 1;
+            }
+        }
+        return sortByDistance(hits.positions, n, lon, lat);
+    }
+
+    /** Growable list of tree positions found by a radius query. */
+    private static final class Hits {
+        int[] positions = new int[16];
+        int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size] = position;
+            size += 1;
+        }
+    }
+
+    private void within(int lo, int hi, double[] p, double limit2, Hits hits) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (chord2(mid, p) <= limit2) {
+            hits.add(mid);
+        }
+        if (hi - lo == 1) {
+            return;
+        }
+        double diff = p[axis.get(mid)] - coords(axis.get(mid)).get(mid);
+        if (diff < 0 || diff * diff <= limit2) {
+            within(lo, mid, p, limit2, hits);
+        }
+        if (diff >= 0 || diff * diff <= limit2) {
+            within(mid + 1, hi, p, limit2, hits);
+        }
+    }
+
+    /**
+     * Maps the first n tree positions to vertex indices, sorted by great-circle distance to
+     * the given location and then by vertex index.
+     */
+    private int[] sortByDistance(int[] positions, int n, double lon, double lat) {
+        int[] vertices = new int[n];
+        double[] distances = new double[n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            int v = vertex.get(positions[i]);
+            vertices[i] = v;
+            distances[i] = GraphDB.distance(g.lon(v), g.lat(v), lon, lat);
+            order[i] = i;
+        }
+        /* Bottom-up merge sort of primitive indices, so a query with many hits boxes none. */
+        int[] merged = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k += 1) {
+                    if (b < hi && (a >= mid
+                            || closer(distances, vertices, order[b], order[a]))) {
+                        merged[k] = order[b];
+                        b += 1;
+                    } else {
+                        merged[k] = order[a];
+                        a += 1;
+                    }
+                }
+            }
+            int[] t = order;
+            order = merged;
+            merged = t;
+        }
+        int[] result = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            result[i] = vertices[order[i]];
+        }
+        return result;
+    }
+
+    /** Whether hit i comes before hit j: it is closer, or as close with a smaller vertex. */
+    private static boolean closer(double[] distances, int[] vertices, int i, int j) {
+        int c = Double.compare(distances[i], distances[j]);
+        return c != 0 ? c < 0 : vertices[i] < vertices[j];
+    }
+}
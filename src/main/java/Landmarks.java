@@ -0,0 +1,321 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Landmark distance tables for the ALT (A*, landmarks, triangle inequality) heuristic of
+ * Goldberg and Harrelson.
+ * For a landmark L and any two vertices v and t, the triangle inequality gives
+ * d(v, t) >= |d(L, t) - d(L, v)|, so once the distances from a handful of landmarks to every
+ * vertex are known, the largest such difference is an admissible and consistent lower bound
+ * for A*. Landmarks on the edge of the map give much tighter bounds on a street grid than
+ * the straight-line distance does. They are picked by farthest-point selection: each new
+ * landmark is the vertex farthest from all landmarks chosen so far.
+ * On a directed graph the distances from and to a landmark differ, and both are kept: then
+ * d(v, t) >= d(L, t) - d(L, v) and d(v, t) >= d(v, L) - d(t, L). The tables are computed
+ * under one Router.Metric and only bound path costs under that one.
+ * The tables can be saved and loaded next to the graph, so they only have to be computed once.
+ */
+final class Landmarks {
+    /** Format marker of saved landmark tables. */
+    private static final int MAGIC = 0x4c4d3032; // "LM02"
+    /** Default number of landmarks to select. */
+    static final int DEFAULT_COUNT = 16;
+    /** Number of landmarks consulted per query, picked by their bound for the query. */
+    private static final int ACTIVE_COUNT = 4;
+
+    /** Fingerprint of the graph the tables were computed for. */
+    private final long fingerprint;
+    /** What the distances measure. */
+    private final Router.Metric metric;
+    /** Vertex index of every landmark. */
+    private final int[] landmarks;
+    /** distances[i][v] is the cost of the shortest path from landmark i to v. */
+    private final double[][] distances;
+    /**
+     * reverse[i][v] is the cost of the shortest path from v to landmark i; the very same
+     * arrays as distances if the graph is undirected.
+     */
+    private final double[][] reverse;
+
+    private Landmarks(long fingerprint, Router.Metric metric, int[] landmarks,
+                      double[][] distances, double[][] reverse) {
+        this.fingerprint = fingerprint;
+        this.metric = metric;
+        this.landmarks = landmarks;
+        this.distances = distances;
+        this.reverse = reverse;
+    }
+
+    /**
+     * Picks count landmarks by farthest-point selection and computes their distance tables.
+     * @param cg The graph.
+     * @param count The number of landmarks.
+     * @return The landmark tables.
+     */
+    static Landmarks select(CompactGraph cg, int count) {
+        return select(cg, count, Router.Metric.DISTANCE);
+    }
+
+    /**
+     * Picks count landmarks by farthest-point selection and computes their tables of path
+     * costs under metric.
+     * @param cg The graph.
+     * @param count The number of landmarks.
+     * @param metric Whether queries minimise length or travel time.
+     * @return The landmark tables.
+     */
+    static Landmarks select(CompactGraph cg, int count, Router.Metric metric) {
+        int n = cg.size();
+        count = Math.min(count, n);
+        int[] landmarks = new int[count];
+        double[][] distances = new double[count][];
+        double[][] reverse = cg.isDirected() ? new double[count][] : distances;
+        SearchWorkspace ws = new SearchWorkspace(n);
+        /* Distance from each vertex to its nearest landmark so far. */
+        double[] nearest = new double[n];
+        double[] start = dijkstra(cg, 0, ws, metric, false);
+        for (int i = 0; i < count; i++) {
+            double[] from = i == 0 ? start : nearest;
+            int farthest = 0;
+            for (int v = 1; v < n; v++) {
+                if (from[v] != Double.POSITIVE_INFINITY
+                        && (from[farthest] == Double.POSITIVE_INFINITY
+                            || from[v] > from[farthest])) {
+                    farthest = v;
+                }
+            }
+            landmarks[i] = farthest;
+            distances[i] = dijkstra(cg, farthest, ws, metric, false);
+            if (reverse != distances) {
+                reverse[i] = dijkstra(cg, farthest, ws, metric, true);
+            }
+            for (int v = 0; v < n; v++) {
+                nearest[v] = i == 0 ? distances[i][v] : Math.min(nearest[v], distances[i][v]);
+            }
+        }
+        return new Landmarks(cg.fingerprint(), metric, landmarks, distances, reverse);
+    }
+
+    /**
+     * Path costs from source to every vertex, or from every vertex to source if backward;
+     * unreachable vertices get positive infinity.
+     */
+    private static double[] dijkstra(CompactGraph cg, int source, SearchWorkspace ws,
+                                     Router.Metric metric, boolean backward) {
+        ws.reset();
+        double[] result = new double[cg.size()];
+        Arrays.fill(result, Double.POSITIVE_INFINITY);
+        IndexedMinHeap fringe = ws.heap();
+        ws.reach(source, 0, -1, 0);
+        fringe.push(source, 0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            result[v] = dv;
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                if (!(backward ? cg.isBackward(e) : cg.isForward(e)) || ws.settled(w)) {
+                    continue;
+                }
+                double dw = dv + cg.weight(e, metric);
+                if (!ws.reached(w)) {
+                    ws.reach(w, dw, v, 0);
+                    fringe.push(w, dw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    fringe.push(w, dw);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the distance tables saved at path if they were computed for cg, and otherwise
+     * selects count landmarks and tries to save them there for next time.
+     * @param cg The graph.
+     * @param path Where the tables are cached.
+     * @param count The number of landmarks to select if the tables must be recomputed.
+     * @return The landmark tables.
+     */
+    static Landmarks loadOrSelect(CompactGraph cg, String path, int count) {
+        return loadOrSelect(cg, path, count, Router.Metric.DISTANCE);
+    }
+
+    /**
+     * Loads the tables saved at path if they were computed for cg and metric, and otherwise
+     * selects count landmarks and tries to save them there for next time.
+     * @param cg The graph.
+     * @param path Where the tables are cached.
+     * @param count The number of landmarks to select if the tables must be recomputed.
+     * @param metric Whether queries minimise length or travel time.
+     * @return The landmark tables.
+     */
+    static Landmarks loadOrSelect(CompactGraph cg, String path, int count,
+                                  Router.Metric metric) {
+        if (new File(path).isFile()) {
+            try {
+                Landmarks lm = load(path);
+                if (lm.matches(cg) && lm.metric == metric) {
+                    return lm;
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable landmark tables " + path);
+            }
+        }
+        Landmarks lm = select(cg, count, metric);
+        try {
+            lm.save(path);
+        } catch (IOException e) {
+            System.out.println("Could not save landmark tables to " + path);
+        }
+        return lm;
+    }
+
+    /** Whether these tables were computed for the given graph. */
+    boolean matches(CompactGraph cg) {
+        return distances.length > 0 && distances[0].length == cg.size()
+                && fingerprint == cg.fingerprint();
+    }
+
+    /** What the tables measure. */
+    Router.Metric metric() {
+        return metric;
+    }
+
+    /** Number of landmarks. */
+    int count() {
+        return landmarks.length;
+    }
+
+    /** Vertex index of landmark i. */
+    int landmark(int i) {
+        return landmarks[i];
+    }
+
+    /**
+     * Lower bound on the cost of a path from v to w from landmark i, or 0 if the landmark
+     * is not connected to them.
+     */
+    private double bound(int i, int v, int w) {
+        double bound = 0;
+        double fromV = distances[i][v];
+        double fromW = distances[i][w];
+        if (fromV != Double.POSITIVE_INFINITY && fromW != Double.POSITIVE_INFINITY) {
+            bound = fromW - fromV;
+        }
+        double toV = reverse[i][v];
+        double toW = reverse[i][w];
+        if (toV != Double.POSITIVE_INFINITY && toW != Double.POSITIVE_INFINITY) {
+            bound = Math.max(bound, toV - toW);
+        }
+        return Math.max(bound, 0);
+    }
+
+    /**
+     * Returns the ALT heuristic for a query: a lower bound on the cost from any vertex
+     * to target, taken over the landmarks that give the best bound at source.
+     * @param source The source vertex index of the query.
+     * @param target The target vertex index of the query.
+     * @return The heuristic.
+     */
+    IntToDoubleFunction heuristic(int source, int target) {
+        int k = Math.min(ACTIVE_COUNT, landmarks.length);
+        double[] bounds = new double[landmarks.length];
+        for (int i = 0; i < landmarks.length; i++) {
+            bounds[i] = bound(i, source, target);
+        }
+        int[] active = new int[k];
+        for (int j = 0; j < k; j++) {
+            int best = -1;
+            for (int i = 0; i < landmarks.length; i++) {
+                if (bounds[i] >= 0 && (best < 0 || bounds[i] > bounds[best])) {
+                    best = i;
+                }
+            }
+            active[j] = best;
+            bounds[best] = -1;
+        }
+        return v -> {
+            double h = 0;
+            for (int i : active) {
+                h = Math.max(h, bound(i, v, target));
+            }
+            return h;
+        };
+    }
+
+    /**
+     * Saves the tables in a compact binary format.
+     * @param path The file to write.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fingerprint);
+            out.writeInt(metric.ordinal());
+            out.writeBoolean(reverse != distances);
+            out.writeInt(landmarks.length);
+            out.writeInt(landmarks.length == 0 ? 0 : distances[0].length);
+            for (int i = 0; i < landmarks.length; i++) {
+                out.writeInt(landmarks[i]);
+                for (double d : distances[i]) {
+                    out.writeDouble(d);
+                }
+                if (reverse != distances) {
+                    for (double d : reverse[i]) {
+                        out.writeDouble(d);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads tables written by save.
+     * @param path The file to read.
+     * @return The tables; check matches() before using them with a graph.
+     * @throws IOException If the file cannot be read or does not hold landmark tables.
+     */
+    static Landmarks load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " does not hold landmark tables");
+            }
+            long fingerprint = in.readLong();
+            int metric = in.readInt();
+            if (metric < 0 || metric >= Router.Metric.values().length) {
+                throw new IOException(path + " does not hold landmark tables");
+            }
+            boolean directed = in.readBoolean();
+            int count = in.readInt();
+            int n = in.readInt();
+            int[] landmarks = new int[count];
+            double[][] distances = new double[count][n];
+            double[][] reverse = directed ? new double[count][n] : distances;
+            for (int i = 0; i < count; i++) {
+                landmarks[i] = in.readInt();
+                for (int v = 0; v < n; v++) {
+                    distances[i][v] = in.readDouble();
+                }
+                for (int v = 0; directed && v < n; v++) {
+                    reverse[i][v] = in.readDouble();
+                }
+            }
+            return new Landmarks(fingerprint, Router.Metric.values()[metric], landmarks,
+                    distances, reverse);
+        }
+    }
+}
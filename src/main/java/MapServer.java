@@ -1,18 +1,23 @@
-import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletResponse;
 
 
 /* Maven is used to pull in these dependencies. */
@@ -40,6 +45,17 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response without content. */
+    private static final int NO_CONTENT_RESPONSE = 204;
+    /** HTTP response to a conditional request for a file the client already has. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /**
+     * Cache-Control of rasters drawn without a route. They change only if the tiles do, so
+     * clients keep them for a day and then revalidate them against their ETag.
+     */
+    private static final String RASTER_CACHE_CONTROL = "public, max-age=86400";
+    /** HTTP response for a file that does not exist. */
+    private static final int NOT_FOUND_RESPONSE = 404;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -51,6 +67,35 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /** Where the parsed OSM graph is cached between runs. */
+    private static final String SNAPSHOT_PATH = OSM_DB_PATH + ".snap";
+    /**
+     * Where the graph keeps its arrays. MAPPED serves them straight from the snapshot file,
+     * for extracts too large for the heap.
+     */
+    private static final GraphDB.Storage GRAPH_STORAGE = GraphDB.Storage.HEAP;
+    /** Largest number of bytes the decoded tile images kept in memory may take up. */
+    private static final long TILE_CACHE_BYTES = 256L << 20;
+    /** Largest number of bytes of tile files kept in memory for the /tiles endpoint. */
+    private static final long TILE_FILE_CACHE_BYTES = 64L << 20;
+    /** Largest number of bytes of encoded rasters of each format kept for repeated requests. */
+    private static final long RASTER_CACHE_BYTES = 64L << 20;
+    /** Deflate level of raster PNG files; the fastest, as interactive use favors speed. */
+    private static final int RASTER_DEFLATE_LEVEL = Deflater.BEST_SPEED;
+    /** Quality of raster JPEG files, from 0 to 1. */
+    private static final float RASTER_JPEG_QUALITY = 0.85f;
+    /** Largest number of bytes of raster images kept for reuse between requests. */
+    private static final long CANVAS_POOL_BYTES = 64L << 20;
+    /** Number of threads that prefetch tiles around the rasters served, for each cache. */
+    private static final int PREFETCH_THREADS = 2;
+    /** Largest number of tiles waiting to be prefetched; more are dropped. */
+    private static final int PREFETCH_QUEUE_TILES = 512;
+    /** A raster's tiles are no longer prefetched after this many later rasters of its area. */
+    private static final int PREFETCH_LIVE_RASTERS = 8;
+    /** Tiles up to this depth are decoded at startup; -1 to decode every tile on demand. */
+    private static final int TILE_WARM_UP_DEPTH = 3;
+    /** Where the contraction hierarchy of the OSM graph is cached between runs. */
+    private static final String CH_PATH = OSM_DB_PATH + ".ch";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -70,6 +115,57 @@ public class MapServer {
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
 
+    /**
+     * Each matrix request to the server will have the following parameters as keys in the
+     * params map.<br>
+     * sources : the start points, as "lon,lat" pairs separated by ";",<br>
+     * targets : the end points, in the same format.
+     **/
+    private static final String[] REQUIRED_MATRIX_REQUEST_PARAMS = {"sources", "targets"};
+    /**
+     * Each isochrone request to the server will have the following parameters as keys in the
+     * params map.<br>
+     * lon : start point longitude,<br> lat : start point latitude,<br>
+     * distance : the distance budget in miles.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat", "distance"};
+    /**
+     * Raster, route and clear_route requests may also carry the following parameter:<br>
+     * route_id : the id a previous route request returned. Rasters draw that route, a new
+     * route replaces it, and clear_route forgets it. Rasters without it may be cached by
+     * clients, which then draw the route from its route_geometry instead.
+     **/
+    private static final String ROUTE_ID_PARAM = "route_id";
+    /**
+     * Route requests may also ask for the shape of the route, and route_geometry requests
+     * must name the route with route_id, through the following parameters:<br>
+     * geometry : "polyline" for an encoded polyline or "geojson" for a GeoJSON LineString,<br>
+     * depth : the depth of the map the route is drawn at, which sets how far the shape is
+     * simplified; the deepest if missing.
+     **/
+    private static final String[] ROUTE_GEOMETRY_PARAMS = {"geometry", "depth"};
+
+    /** Largest number of sources or targets accepted by a single matrix request. */
+    private static final int MAX_MATRIX_POINTS = 500;
+    /** Largest number of routes the server keeps for its clients at once. */
+    private static final int MAX_ROUTES = 10000;
+    /** How long a client's route is kept after it was last drawn, in milliseconds. */
+    private static final long ROUTE_TTL_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Headers of a /raster.png response, which carry the fields of a /raster response other
+     * than the image itself:<br>
+     * X-Raster-Query-Success : whether the query box overlapped the map; if not the response
+     * has no content,<br>
+     * X-Raster-Ul-Lon, X-Raster-Ul-Lat, X-Raster-Lr-Lon, X-Raster-Lr-Lat : the bounding box of
+     * the image,<br>
+     * X-Raster-Depth : the depth of its tiles,<br>
+     * X-Raster-Width, X-Raster-Height : its size in pixels.
+     **/
+    private static final String[] RASTER_PNG_HEADERS = {"X-Raster-Query-Success",
+        "X-Raster-Ul-Lon", "X-Raster-Ul-Lat", "X-Raster-Lr-Lon", "X-Raster-Lr-Lat",
+        "X-Raster-Depth", "X-Raster-Width", "X-Raster-Height"};
+
     /**
      * The result of rastering must be a map containing all of the
      * fields listed in the comments for getMapRaster in Rasterer.java.
@@ -79,7 +175,33 @@ public class MapServer {
 
     private static Rasterer rasterer;
     private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** Decoded tile images, by the file names in the render grid. */
+    private static final TileCache<BufferedImage> TILES =
+            new TileCache<>(MapServer::readImage, TileCache::weigh, TILE_CACHE_BYTES);
+    /** Loads the tiles around each raster served into TILES before they are asked for. */
+    private static final TilePrefetcher PREFETCHER = new TilePrefetcher(TILES, PREFETCH_THREADS,
+            PREFETCH_QUEUE_TILES, PREFETCH_LIVE_RASTERS);
+    /** Stitches and encodes raster images. */
+    private static final RasterEncoder ENCODER =
+            new RasterEncoder(RASTER_DEFLATE_LEVEL, RASTER_JPEG_QUALITY, CANVAS_POOL_BYTES);
+    /** Encoded raster images of each format, by their tiles and route. */
+    private static final Map<RasterEncoder.Format, RasterCache> RASTERS =
+            new EnumMap<>(RasterEncoder.Format.class);
+    static {
+        for (RasterEncoder.Format format : RasterEncoder.Format.values()) {
+            RASTERS.put(format, new RasterCache(RASTER_CACHE_BYTES));
+        }
+    }
+    /** The tile files served one by one to clients that lay out the render grid. */
+    private static final TileFiles TILE_FILES = new TileFiles(IMG_ROOT);
+    /** The contents of the tile files, by tile name, for the /tiles endpoint. */
+    private static final TileCache<byte[]> TILE_FILE_CACHE =
+            new TileCache<>(TILE_FILES::read, file -> file.length, TILE_FILE_CACHE_BYTES);
+    /** Loads the tiles around each raster grid served into TILE_FILE_CACHE. */
+    private static final TilePrefetcher FILE_PREFETCHER = new TilePrefetcher(TILE_FILE_CACHE,
+            PREFETCH_THREADS, PREFETCH_QUEUE_TILES, PREFETCH_LIVE_RASTERS);
+    /** The routes of all clients, by the route_id each /route request returns. */
+    private static final RouteStore ROUTES = new RouteStore(MAX_ROUTES, ROUTE_TTL_MILLIS);
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,8 +211,19 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        graph = GraphDB.loadOrParse(OSM_DB_PATH, SNAPSHOT_PATH, GRAPH_STORAGE);
+        graph.setContractionHierarchy(ContractionHierarchy.loadOrBuild(graph.compact(), CH_PATH));
         rasterer = new Rasterer();
+        List<String> shallowTiles = new ArrayList<>();
+        for (int d = 0; d <= TILE_WARM_UP_DEPTH; d += 1) {
+            for (int y = 0; y < 1 << d; y += 1) {
+                for (int x = 0; x < 1 << d; x += 1) {
+                    shallowTiles.add(Rasterer.tileName(d, x, y));
+                }
+            }
+        }
+        TILES.warmUp(shallowTiles);
+        System.out.println("Tile cache warmed up: " + TILES);
     }
 
     public static void main(String[] args) {
@@ -102,6 +235,8 @@ public class MapServer {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
+            response.header("Access-Control-Expose-Headers", String.join(", ",
+                    RASTER_PNG_HEADERS));
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
@@ -109,16 +244,19 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            /* raster() does almost all the work for this API call */
+            Rasterer.Raster raster = rasterer.raster(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"), params.get("w"));
+            Map<String, Object> rasteredImgParams = raster.toMap();
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                byte[] png = renderRaster(raster, req.queryParams(ROUTE_ID_PARAM),
+                        RasterEncoder.Format.PNG);
+                String encodedImage = Base64.getEncoder().encodeToString(png);
+                rasteredImgParams.put("raster_width", raster.columns() * TILE_SIZE);
+                rasteredImgParams.put("raster_height", raster.rows() * TILE_SIZE);
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
 
@@ -127,27 +265,173 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the binary raster endpoints for HTTP GET requests. They take the parameters
+         * of /raster, but answer with the image file itself and the other fields of a /raster
+         * response in the RASTER_PNG_HEADERS, so the image is neither Base64 encoded nor
+         * copied into a Json string. /raster.jpg is smaller and lossy. */
+        get("/raster.png", (req, res) -> sendRaster(req, res, RasterEncoder.Format.PNG));
+        get("/raster.jpg", (req, res) -> sendRaster(req, res, RasterEncoder.Format.JPEG));
+
+        /* Define the raster grid endpoint for HTTP GET requests. It takes the parameters of
+         * /raster and answers with the same fields but no image, for clients that lay the
+         * render grid out themselves from the /tiles endpoint. */
+        get("/raster_grid", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Rasterer.Raster raster = rasterer.raster(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"), params.get("w"));
+            Map<String, Object> rasteredImgParams = raster.toMap();
+            if (validateRasteredImgParams(rasteredImgParams)) {
+                rasteredImgParams.put("raster_width", raster.columns() * TILE_SIZE);
+                rasteredImgParams.put("raster_height", raster.rows() * TILE_SIZE);
+                /* The client fetches these tiles next, and then the ones around them. */
+                FILE_PREFETCHER.prefetch(raster);
+            }
+            Gson gson = new Gson();
+            return gson.toJson(rasteredImgParams);
+        });
+
+        /* Define the tile endpoint for HTTP GET requests, /tiles/{depth}/{x}/{y}.png. Tiles
+         * never change, so they are sent with a strong ETag and may be cached for a long
+         * time; a request whose If-None-Match matches is answered with 304 Not Modified. The
+         * files come from TILE_FILE_CACHE, which /raster_grid prefetches into. */
+        get("/tiles/:depth/:x/:file", (req, res) -> {
+            String file = req.params(":file");
+            File tile = null;
+            try {
+                if (!file.endsWith(".png")) {
+                    throw new IllegalArgumentException("Not a PNG file: " + file);
+                }
+                tile = TILE_FILES.file(Integer.parseInt(req.params(":depth")),
+                        Integer.parseInt(req.params(":x")),
+                        Integer.parseInt(file.substring(0, file.length() - ".png".length())));
+            } catch (IllegalArgumentException e) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            if (!tile.isFile()) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            String etag = TileFiles.etag(tile);
+            res.header("ETag", etag);
+            res.header("Cache-Control", TileFiles.CACHE_CONTROL);
+            if (TileFiles.notModified(req.headers("If-None-Match"), etag)) {
+                res.status(NOT_MODIFIED_RESPONSE);
+                return "";
+            }
+            byte[] png = TILE_FILE_CACHE.get(tile.getName());
+            if (png == null) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            res.type("image/png");
+            HttpServletResponse raw = res.raw();
+            raw.setContentLength(png.length);
+            OutputStream out = raw.getOutputStream();
+            out.write(png);
+            out.flush();
+            return raw;
+        });
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            List<Long> route = Router.shortestPath(graph, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                    Router.Algorithm.CONTRACTION_HIERARCHIES);
+            /* The client's previous route is replaced rather than left to expire. */
+            clearRoute(req.queryParams(ROUTE_ID_PARAM));
+            String routeId = ROUTES.put(route);
+            String directions = getDirectionsText(route);
             Map<String, Object> routeParams = new HashMap<>();
+            routeParams.put("route_id", routeId);
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            if (req.queryParams(ROUTE_GEOMETRY_PARAMS[0]) != null) {
+                routeParams.put("geometry", getRouteGeometry(req, route));
+            }
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
-        /* Define the API endpoint for clearing the current route. */
+        /* Define the route geometry endpoint for HTTP GET requests. Clients that draw routes
+         * as a layer of their own ask for the shape of their route again whenever the depth
+         * of their map changes, and keep asking for rasters without a route_id. */
+        get("/route_geometry", (req, res) -> {
+            List<Long> route = ROUTES.get(req.queryParams(ROUTE_ID_PARAM));
+            Map<String, Object> geometryParams = new HashMap<>();
+            geometryParams.put("geometry_success", route != null);
+            if (route != null) {
+                geometryParams.put("geometry", getRouteGeometry(req, route));
+            }
+            Gson gson = new Gson();
+            return gson.toJson(geometryParams);
+        });
+
+        /* Define the distance matrix endpoint for HTTP GET requests. */
+        get("/matrix", (req, res) -> {
+            List<double[]> sources = getPointsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[0]);
+            List<double[]> targets = getPointsParam(req, REQUIRED_MATRIX_REQUEST_PARAMS[1]);
+            double[][] distances = Router.distanceMatrix(graph, sources, targets,
+                    ForkJoinPool.commonPool());
+            /* Json has no infinity, so unreachable targets are reported as null. */
+            Double[][] matrix = new Double[distances.length][];
+            for (int i = 0; i < distances.length; i += 1) {
+                matrix[i] = new Double[distances[i].length];
+                for (int j = 0; j < distances[i].length; j += 1) {
+                    double d = distances[i][j];
+                    matrix[i][j] = d == Double.POSITIVE_INFINITY ? null : d;
+                }
+            }
+            Map<String, Object> matrixParams = new HashMap<>();
+            matrixParams.put("distances", matrix);
+            matrixParams.put("matrix_success", true);
+            Gson gson = new Gson();
+            return gson.toJson(matrixParams);
+        });
+
+        /* Define the isochrone endpoint for HTTP GET requests. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Isochrone iso = Router.isochrone(graph, params.get("lon"), params.get("lat"),
+                    params.get("distance"));
+            long[] ids = new long[iso.size()];
+            double[] distances = new double[iso.size()];
+            for (int i = 0; i < iso.size(); i += 1) {
+                ids[i] = iso.id(i);
+                distances[i] = iso.distance(i);
+            }
+            Map<String, Object> isochroneParams = new HashMap<>();
+            isochroneParams.put("ids", ids);
+            isochroneParams.put("distances", distances);
+            isochroneParams.put("hull", iso.hull());
+            isochroneParams.put("isochrone_success", iso.size() > 0);
+            Gson gson = new Gson();
+            return gson.toJson(isochroneParams);
+        });
+
+        /* Define the API endpoint for clearing the route of a client. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            clearRoute(req.queryParams(ROUTE_ID_PARAM));
             return true;
         });
 
+        /* Define the API endpoint for the counters of the tile caches and prefetchers. */
+        get("/stats", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("tile_cache", TILES.toString());
+            stats.put("prefetcher", PREFETCHER.toString());
+            stats.put("tile_file_cache", TILE_FILE_CACHE.toString());
+            stats.put("file_prefetcher", FILE_PREFETCHER.toString());
+            long prefetches = TILES.prefetches() + TILE_FILE_CACHE.prefetches();
+            long prefetchHits = TILES.prefetchHits() + TILE_FILE_CACHE.prefetchHits();
+            stats.put("prefetch_hit_rate",
+                    prefetches == 0 ? 0 : (double) prefetchHits / prefetches);
+            Gson gson = new Gson();
+            return gson.toJson(stats);
+        });
+
         /* Define the API endpoint for search */
         get("/search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
@@ -198,83 +482,251 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
+     * Parses a list of points given as "lon,lat" pairs separated by ";".
+     * @param req HTTP Request.
+     * @param param The name of the query parameter holding the points.
+     * @return The points, each a {lon, lat} pair.
+     */
+    private static List<double[]> getPointsParam(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] pairs = value.split(";");
+        if (pairs.length > MAX_MATRIX_POINTS) {
+            halt(HALT_RESPONSE, "Request failed - too many points.");
+        }
+        List<double[]> points = new ArrayList<>(pairs.length);
+        for (String pair : pairs) {
+            String[] lonLat = pair.split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException("Expected lon,lat but got " + pair);
+                }
+                points.add(new double[] {Double.parseDouble(lonLat[0].trim()),
+                    Double.parseDouble(lonLat[1].trim())});
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Answers a binary raster request with the image file and the RASTER_PNG_HEADERS. The
+     * image carries an ETag, and a request whose If-None-Match matches is answered with 304
+     * Not Modified.
+     * @param format The file format of the image.
+     * @return The raw response the image was written to, or an empty body if the query box
+     * was off the map or the client has the image already.
+     */
+    private static Object sendRaster(spark.Request req, spark.Response res,
+                                     RasterEncoder.Format format) throws IOException {
+        HashMap<String, Double> params = getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+        Rasterer.Raster raster = rasterer.raster(params.get("ullon"), params.get("ullat"),
+                params.get("lrlon"), params.get("lrlat"), params.get("w"));
+        res.header(RASTER_PNG_HEADERS[0], Boolean.toString(raster.success()));
+        if (!raster.success()) {
+            res.status(NO_CONTENT_RESPONSE);
+            return "";
+        }
+        byte[] image = renderRaster(raster, req.queryParams(ROUTE_ID_PARAM), format);
+        String etag = etag(image);
+        res.header("ETag", etag);
+        if (req.queryParams(ROUTE_ID_PARAM) == null) {
+            /* Without a route the image only depends on the query, like the tiles in it. */
+            res.header("Cache-Control", RASTER_CACHE_CONTROL);
+        }
+        res.header(RASTER_PNG_HEADERS[1], Double.toString(raster.ulLon()));
+        res.header(RASTER_PNG_HEADERS[2], Double.toString(raster.ulLat()));
+        res.header(RASTER_PNG_HEADERS[3], Double.toString(raster.lrLon()));
+        res.header(RASTER_PNG_HEADERS[4], Double.toString(raster.lrLat()));
+        res.header(RASTER_PNG_HEADERS[5], Integer.toString(raster.depth()));
+        res.header(RASTER_PNG_HEADERS[6], Integer.toString(raster.columns() * TILE_SIZE));
+        res.header(RASTER_PNG_HEADERS[7], Integer.toString(raster.rows() * TILE_SIZE));
+        if (TileFiles.notModified(req.headers("If-None-Match"), etag)) {
+            res.status(NOT_MODIFIED_RESPONSE);
+            return "";
+        }
+        res.type(format.mediaType);
+        HttpServletResponse raw = res.raw();
+        raw.setContentLength(image.length);
+        OutputStream out = raw.getOutputStream();
+        out.write(image);
+        out.flush();
+        return raw;
+    }
+
+    /** A strong entity tag for an image file, from the CRC-32 of its bytes. */
+    private static String etag(byte[] image) {
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(image.length)
+                + "\"";
+    }
+
+    /**
+     * Returns the image file of a raster with the route routeId drawn over it, from the
+     * raster cache if the same image was drawn before.
+     * @param raster The tiles of the image.
+     * @param routeId The id of the route to draw, or null to draw none.
+     * @param format The file format.
+     * @return The image file, which must not be modified, or an empty array if it could not
+     * be encoded.
+     */
+    private static byte[] renderRaster(Rasterer.Raster raster, String routeId,
+                                       RasterEncoder.Format format) {
+        List<Long> route = ROUTES.get(routeId);
+        if (route == null) {
+            routeId = null;
+        }
+        /* Repeated views are served without stitching or encoding. */
+        RasterCache cache = RASTERS.get(format);
+        byte[] image = cache.get(raster, routeId);
+        if (image == null) {
+            image = writeImages(raster, route, format);
+            if (image.length > 0) {
+                cache.put(raster, routeId, image);
+            }
+        }
+        /* Panning or zooming from here needs the tiles around this raster. */
+        PREFETCHER.prefetch(raster);
+        return image;
+    }
+
+    /**
+     * Stitches the images corresponding to a raster and encodes them.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
+     * @param route The route to draw over the tiles, or null to draw none.
+     * @param format The file format.
+     * @return The image file, or an empty array if it could not be encoded.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
+    private static byte[] writeImages(Rasterer.Raster raster, List<Long> route,
+                                      RasterEncoder.Format format) {
+        int numVertTiles = raster.rows();
+        int numHorizTiles = raster.columns();
 
+        /* A pooled image of this size, which the tiles overwrite completely. */
+        BufferedImage img = ENCODER.acquire(numHorizTiles, numVertTiles);
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+                RasterEncoder.copyTile(img, getImage(raster.tile(r, c)),
+                        c * MapServer.TILE_SIZE, r * MapServer.TILE_SIZE);
             }
         }
 
         /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
+        double ullon = raster.ulLon();
+        double ullat = raster.ulLat();
+        double lrlon = raster.lrLon();
+        double lrlat = raster.lrLat();
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
-        }
-
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+        Graphics2D graphic = img.createGraphics();
+        drawRoute(graphic, graph, route, ullon, ullat, wdpp, hdpp);
+        graphic.dispose();
 
         try {
-            ImageIO.write(img, "png", os);
+            return ENCODER.encode(img, format);
         } catch (IOException e) {
             e.printStackTrace();
+            return new byte[0];
+        } finally {
+            ENCODER.release(img);
         }
 
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
+    /**
+     * Draws a route over a raster. Takes everything it draws as parameters, so any number
+     * of threads can draw routes onto rasters of their own at once.
+     * @param g2d The graphics of the raster.
+     * @param g The graph the route is on.
+     * @param route The ids of the vertices on the route, or null to draw nothing.
+     * @param ullon The longitude of the left edge of the raster.
+     * @param ullat The latitude of the top edge of the raster.
+     * @param wdpp The longitude covered by a pixel.
+     * @param hdpp The latitude covered by a pixel.
+     */
+    static void drawRoute(Graphics2D g2d, GraphDB g, List<Long> route, double ullon,
+                          double ullat, double wdpp, double hdpp) {
+        if (route == null || route.isEmpty()) {
+            return;
+        }
+        g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        route.stream().reduce((v, w) -> {
+            g2d.drawLine((int) ((g.lon(v) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - g.lat(v)) * (1 / hdpp)),
+                         (int) ((g.lon(w) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - g.lat(w)) * (1 / hdpp)));
+            return w;
+        });
+    }
+
+    /**
+     * The shape of a route, simplified for the depth and in the format the ROUTE_GEOMETRY_PARAMS
+     * of a request ask for.
+     * @param req The request.
+     * @param route The ids of the vertices on the route.
+     * @return An encoded polyline string or a GeoJSON map, for Gson to write.
+     */
+    private static Object getRouteGeometry(spark.Request req, List<Long> route) {
+        String format = req.queryParams(ROUTE_GEOMETRY_PARAMS[0]);
+        String depthParam = req.queryParams(ROUTE_GEOMETRY_PARAMS[1]);
+        int depth = Rasterer.MAX_DEPTH;
+        if (depthParam != null) {
             try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+                depth = Integer.parseInt(depthParam);
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
             }
+            if (depth < 0 || depth > Rasterer.MAX_DEPTH) {
+                halt(HALT_RESPONSE, "Incorrect parameters - no such depth.");
+            }
+        }
+        RouteGeometry geometry = RouteGeometry.of(graph, route).simplify(depth);
+        if (format == null || format.equals("polyline")) {
+            return geometry.encodedPolyline();
+        } else if (format.equals("geojson")) {
+            return geometry.toGeoJson();
         }
-        return tileImg;
+        halt(HALT_RESPONSE, "Incorrect parameters - geometry is polyline or geojson.");
+        return null;
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Returns the decoded image of a tile, from the tile cache if it was decoded before.
+     * @param tileName The file name of the tile in the IMG_ROOT folder.
+     * @return The image, or null if it could not be read.
      */
-    public static void clearRoute() {
-        route = new LinkedList<Long>();
+    private static BufferedImage getImage(String tileName) {
+        try {
+            return TILES.get(tileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Decodes a tile from the IMG_ROOT folder, for the tile cache. */
+    private static BufferedImage readImage(String tileName) throws IOException {
+        return RasterEncoder.toIntRgb(ImageIO.read(new File(IMG_ROOT + tileName)));
+    }
+
+    /**
+     * Clear the route stored under routeId, if it exists.
+     * @param routeId The id a route request returned, or null.
+     */
+    public static void clearRoute(String routeId) {
+        ROUTES.remove(routeId);
+        for (RasterCache cache : RASTERS.values()) {
+            cache.invalidateRoute(routeId);
+        }
     }
 
     /**
@@ -326,10 +778,10 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route found by this MapServer and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
+    private static String getDirectionsText(List<Long> route) {
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.function.Function;
+
+/**
+ * This class provides a main method for comparing the ways of loading the OSM graph: the
+ * SAX GraphBuildingHandler and the streaming GraphLoader in its deferred, two-pass and
+ * parallel modes, and optionally reading compressed or PBF copies of the file given as
+ * further arguments. For each it reports the load time and the peak heap use during the
+ * load, averaged over a few rounds after a warm-up round.
+ */
+public class OsmLoadBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        run("SAX handler", dbPath, p -> GraphDB.parseWithHandler(p, GraphLoader.HIGHWAYS));
+        run("StAX deferred", dbPath, p -> new GraphDB(p));
+        run("StAX two-pass", dbPath,
+            p -> new GraphDB(p, GraphLoader.Options.defaults().twoPass(true)));
+        int threads = Runtime.getRuntime().availableProcessors();
+        run("parallel nodes", dbPath,
+            p -> new GraphDB(p, GraphLoader.Options.defaults().parallel(threads)));
+        for (int i = 1; i < args.length; i += 1) {
+            /* Copies of the same data in other formats, e.g. berkeley-2018.osm.xml.gz. */
+            run("copy as ." + args[i].substring(args[i].lastIndexOf('.') + 1), args[i],
+                p -> new GraphDB(p));
+        }
+    }
+
+    private static void run(String name, String dbPath, Function<String, GraphDB> loader) {
+        loader.apply(dbPath);
+        long nanos = 0;
+        long peak = 0;
+        int vertices = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            System.gc();
+            long base = resetPeakHeap();
+            long start = System.nanoTime();
+            GraphDB g = loader.apply(dbPath);
+            nanos += System.nanoTime() - start;
+            peak += peakHeap() - base;
+            vertices = g.compact().size();
+        }
+        System.out.printf("%-16s %8d vertices %8.0f ms %8.1f MB peak heap%n", name, vertices,
+                nanos / 1e6 / ROUNDS, peak / 1e6 / ROUNDS);
+    }
+
+    /** Resets the peak usage of the heap pools and returns the heap currently in use. */
+    private static long resetPeakHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /** Sum of the peak usage of the heap pools since the last reset. */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
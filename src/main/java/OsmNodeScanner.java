@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the node section of an uncompressed OSM XML file in parallel. The file is mapped
+ * and cut into byte ranges; each worker thread scans its range for node elements with a
+ * small byte-level parser and collects them, along with the names of named nodes, into
+ * arrays of its own. The results are handed to the GraphLoader in file order, so the loaded
+ * graph is the same as with a sequential read. A node belongs to the range in which its
+ * opening tag starts, and workers stop at the first way element, whose offset is reported
+ * so that the ways can then be read from there on.
+ * The byte-level parser only understands what node elements contain: attributes quoted with
+ * " or ' and the five predefined entities and character references in values.
+ */
+final class OsmNodeScanner {
+    private static final byte[] NODE = "<node".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WAY = "<way".getBytes(StandardCharsets.US_ASCII);
+    /** Largest range a single worker scans, to stay within the limit of a mapped buffer. */
+    private static final long MAX_RANGE = 1 << 30;
+    /** How far past the end of its range a worker may read to finish its last node. */
+    private static final long OVERLAP = 1 << 20;
+
+    private OsmNodeScanner() {
+    }
+
+    /** Nodes found in one range, in file order. */
+    private static final class Chunk {
+        long[] ids = new long[1024];
+        double[] lons = new double[1024];
+        double[] lats = new double[1024];
+        int count;
+        /** Index in ids of each location, and its name. */
+        List<Integer> locationNodes = new ArrayList<>();
+        List<String> locationNames = new ArrayList<>();
+        /** Offset of the first way element in the range, or -1. */
+        long firstWay = -1;
+
+        void add(long id, double lon, double lat) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                lons = Arrays.copyOf(lons, count * 2);
+                lats = Arrays.copyOf(lats, count * 2);
+            }
+            ids[count] = id;
+            lons[count] = lon;
+            lats[count] = lat;
+            count += 1;
+        }
+    }
+
+    /**
+     * Reads every node of the file into loader.
+     * @param path The uncompressed OSM XML file.
+     * @param loader Receives the nodes and locations.
+     * @param threads The number of worker threads.
+     * @return The offset of the first way element, or the file size if there is none.
+     * @throws IOException If the file cannot be read.
+     */
+    static long scan(String path, GraphLoader loader, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int ranges = (int) Math.max(threads, (size + MAX_RANGE - 1) / MAX_RANGE);
+            long step = (size + ranges - 1) / Math.max(1, ranges);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Chunk>> futures = new ArrayList<>();
+                for (long start = 0; start < size; start += step) {
+                    long from = start;
+                    long to = Math.min(size, start + step);
+                    long mapped = Math.min(size, to + OVERLAP) - from;
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, mapped);
+                    futures.add(pool.submit(() -> scanRange(buf, from, (int) (to - from))));
+                }
+                long firstWay = size;
+                for (Future<Chunk> future : futures) {
+                    Chunk chunk = future.get();
+                    if (firstWay < size) {
+                        /* Anything after the first way is not part of the node section. */
+                        break;
+                    }
+                    int location = 0;
+                    for (int i = 0; i < chunk.count; i += 1) {
+                        loader.addNode(chunk.ids[i], chunk.lons[i], chunk.lats[i]);
+                        while (location < chunk.locationNodes.size()
+                                && chunk.locationNodes.get(location) == i) {
+                            loader.addLocation(chunk.ids[i], chunk.lons[i], chunk.lats[i],
+                                    chunk.locationNames.get(location));
+                            location += 1;
+                        }
+                    }
+                    if (chunk.firstWay >= 0) {
+                        firstWay = chunk.firstWay;
+                    }
+                }
+                return firstWay;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + path, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not read the nodes of " + path, e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Scans the node elements that start in [0, length) of buf.
+     * @param buf The mapped range, possibly extending past length.
+     * @param offset The file offset of buf.
+     * @param length The length of the range.
+     * @return The nodes found.
+     */
+    private static Chunk scanRange(ByteBuffer buf, long offset, int length) {
+        Chunk chunk = new Chunk();
+        int p = 0;
+        while (p < length) {
+            int lt = indexOf(buf, (byte) '<', p, length);
+            if (lt < 0) {
+                break;
+            }
+            if (startsWith(buf, lt, WAY) && isNameEnd(buf, lt + WAY.length)) {
+                chunk.firstWay = offset + lt;
+                break;
+            }
+            if (startsWith(buf, lt, NODE) && isNameEnd(buf, lt + NODE.length)) {
+                p = parseNode(buf, lt + NODE.length, chunk);
+            } else {
+                p = lt + 1;
+            }
+        }
+        return chunk;
+    }
+
+    /** Parses one node element whose attributes start at p; returns the position after it. */
+    private static int parseNode(ByteBuffer buf, int p, Chunk chunk) {
+        long id = 0;
+        double lon = 0;
+        double lat = 0;
+        String name = null;
+        Attribute a = new Attribute();
+        p = parseAttribute(buf, p, a);
+        while (a.name != null) {
+            switch (a.name) {
+                case "id":
+                    id = Long.parseLong(a.value);
+                    break;
+                case "lon":
+                    lon = Double.parseDouble(a.value);
+                    break;
+                case "lat":
+                    lat = Double.parseDouble(a.value);
+                    break;
+                default:
+                    break;
+            }
+            p = parseAttribute(buf, p, a);
+        }
+        boolean selfClosing = buf.get(p) == '/';
+        p = indexOf(buf, (byte) '>', p, buf.limit()) + 1;
+        while (!selfClosing) {
+            int lt = indexOf(buf, (byte) '<', p, buf.limit());
+            if (buf.get(lt + 1) == '/') {
+                /* </node> */
+                p = indexOf(buf, (byte) '>', lt, buf.limit()) + 1;
+                break;
+            }
+            int q = lt + 1;
+            while (!isNameEnd(buf, q)) {
+                q += 1;
+            }
+            boolean isTag = q - lt - 1 == 3 && buf.get(lt + 1) == 't' && buf.get(lt + 2) == 'a'
+                    && buf.get(lt + 3) == 'g';
+            String k = null;
+            String v = null;
+            q = parseAttribute(buf, q, a);
+            while (a.name != null) {
+                if (a.name.equals("k")) {
+                    k = a.value;
+                } else if (a.name.equals("v")) {
+                    v = a.value;
+                }
+                q = parseAttribute(buf, q, a);
+            }
+            if (isTag && "name".equals(k) && v != null) {
+                name = v;
+            }
+            boolean childClosed = buf.get(q) == '/';
+            p = indexOf(buf, (byte) '>', q, buf.limit()) + 1;
+            if (!childClosed) {
+                /* A child with content of its own; skip to its end tag. */
+                p = indexOf(buf, (byte) '>', indexOf(buf, (byte) '<', p, buf.limit()), buf.limit())
+                        + 1;
+            }
+        }
+        chunk.add(id, lon, lat);
+        if (name != null) {
+            chunk.locationNodes.add(chunk.count - 1);
+            chunk.locationNames.add(name);
+        }
+        return p;
+    }
+
+    /** Name and value of the attribute last parsed; name is null at the end of a tag. */
+    private static final class Attribute {
+        String name;
+        String value;
+    }
+
+    /**
+     * Parses the attribute starting at or after p into a, or sets a.name to null if the tag
+     * ends first.
+     * @return The position after the attribute, or of the '/' or '>' that ends the tag.
+     */
+    private static int parseAttribute(ByteBuffer buf, int p, Attribute a) {
+        while (isSpace(buf.get(p))) {
+            p += 1;
+        }
+        byte c = buf.get(p);
+        if (c == '/' || c == '>') {
+            a.name = null;
+            return p;
+        }
+        int nameStart = p;
+        while (buf.get(p) != '=' && !isSpace(buf.get(p))) {
+            p += 1;
+        }
+        a.name = ascii(buf, nameStart, p);
+        p = indexOf(buf, (byte) '=', p, buf.limit()) + 1;
+        while (isSpace(buf.get(p))) {
+            p += 1;
+        }
+        byte quote = buf.get(p);
+        int valueEnd = indexOf(buf, quote, p + 1, buf.limit());
+        a.value = decode(buf, p + 1, valueEnd);
+        return valueEnd + 1;
+    }
+
+    private static String ascii(ByteBuffer buf, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; i += 1) {
+            chars[i - from] = (char) buf.get(i);
+        }
+        return new String(chars);
+    }
+
+    /** Decodes an attribute value: UTF-8 with entity and character references. */
+    private static String decode(ByteBuffer buf, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        boolean entities = false;
+        for (int i = from; i < to; i += 1) {
+            bytes[i - from] = buf.get(i);
+            entities |= bytes[i - from] == '&';
+        }
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        if (!entities) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semi = c == '&' ? s.indexOf(';', i) : -1;
+            if (semi < 0) {
+                sb.append(c);
+                i += 1;
+                continue;
+            }
+            String entity = s.substring(i + 1, semi);
+            switch (entity) {
+                case "amp":
+                    sb.append('&');
+                    break;
+                case "lt":
+                    sb.append('<');
+                    break;
+                case "gt":
+                    sb.append('>');
+                    break;
+                case "quot":
+                    sb.append('"');
+                    break;
+                case "apos":
+                    sb.append('\'');
+                    break;
+                default:
+                    if (entity.startsWith("#x")) {
+                        sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                    } else if (entity.startsWith("#")) {
+                        sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                    } else {
+                        sb.append(s, i, semi + 1);
+                    }
+                    break;
+            }
+            i = semi + 1;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /** Whether position p ends an element name. */
+    private static boolean isNameEnd(ByteBuffer buf, int p) {
+        if (p >= buf.limit()) {
+            return true;
+        }
+        byte c = buf.get(p);
+        return isSpace(c) || c == '/' || c == '>';
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int p, byte[] prefix) {
+        if (p + prefix.length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i += 1) {
+            if (buf.get(p + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for OSM PBF files that feeds nodes, locations and ways into a GraphLoader, like
+ * OsmXmlReader does for XML. A PBF file is a sequence of blobs, each a zlib compressed
+ * protocol buffer message holding a block of a few thousand elements. The calling thread
+ * only reads the blobs off the file; inflating and decoding them happens on a pool of
+ * threads, and the decoded blocks are handed to the loader in file order, so the loader sees
+ * exactly the sequence of elements an XML export of the same data would give it.
+ * Node coordinates are kept in nanodegrees until they are converted to doubles, which
+ * gives the same doubles that parsing the decimal values of the XML does.
+ * Only the features every PBF writer produces are supported: plain and dense nodes, ways,
+ * and zlib or uncompressed blobs. Relations are skipped.
+ */
+final class OsmPbfReader {
+    /** Largest blob header and blob the format allows. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final List<String> SUPPORTED_FEATURES =
+        Arrays.asList("OsmSchema-V0.6", "DenseNodes");
+
+    private OsmPbfReader() {
+    }
+
+    /** The elements of one primitive block, in the order they appear in it. */
+    private static final class Block {
+        /* Nodes. */
+        long[] nodeIds = new long[0];
+        double[] nodeLons = new double[0];
+        double[] nodeLats = new double[0];
+        String[] nodeNames = new String[0];
+        int nodeCount;
+        /* Ways: the references of way i are wayRefs[wayStart[i]] to wayRefs[wayStart[i + 1]]. */
+        ProtobufReader.Longs wayRefs = new ProtobufReader.Longs();
+        List<Integer> wayStart = new ArrayList<>();
+        List<Map<String, String>> wayTags = new ArrayList<>();
+
+        void addNode(long id, double lon, double lat, String name) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = Math.max(64, nodeCount * 2);
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                nodeLons = Arrays.copyOf(nodeLons, capacity);
+                nodeLats = Arrays.copyOf(nodeLats, capacity);
+                nodeNames = Arrays.copyOf(nodeNames, capacity);
+            }
+            nodeIds[nodeCount] = id;
+            nodeLons[nodeCount] = lon;
+            nodeLats[nodeCount] = lat;
+            nodeNames[nodeCount] = name;
+            nodeCount += 1;
+        }
+
+        /** Hands the elements to loader: all nodes first, as they precede ways in a file. */
+        void deliver(GraphLoader loader) {
+            for (int i = 0; i < nodeCount; i += 1) {
+                loader.addNode(nodeIds[i], nodeLons[i], nodeLats[i]);
+                if (nodeNames[i] != null) {
+                    loader.addLocation(nodeIds[i], nodeLons[i], nodeLats[i], nodeNames[i]);
+                }
+            }
+            long[] refs = new long[0];
+            for (int w = 0; w < wayTags.size(); w += 1) {
+                int start = wayStart.get(w);
+                int end = w + 1 < wayStart.size() ? wayStart.get(w + 1) : wayRefs.size;
+                if (refs.length < end - start) {
+                    refs = new long[end - start];
+                }
+                System.arraycopy(wayRefs.values, start, refs, 0, end - start);
+                loader.addWay(refs, end - start, wayTags.get(w));
+            }
+        }
+    }
+
+    /**
+     * Reads an OSM PBF file.
+     * @param path The file.
+     * @param loader Receives the nodes, locations and ways.
+     * @param threads The number of threads that decode blobs.
+     * @throws IOException If the file cannot be read or is not a supported PBF file.
+     */
+    static void read(String path, GraphLoader loader, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            /* Blocks being decoded, oldest first; bounded so that reading stays ahead only
+             * as far as the pool can use. */
+            ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+            boolean sawHeader = false;
+            while (true) {
+                int headerSize;
+                try {
+                    headerSize = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                    throw new IOException("Bad blob header size " + headerSize + " in " + path);
+                }
+                byte[] header = new byte[headerSize];
+                in.readFully(header);
+                String type = null;
+                int dataSize = -1;
+                ProtobufReader h = new ProtobufReader(header, 0, headerSize);
+                while (h.next()) {
+                    switch (h.field()) {
+                        case 1:
+                            type = h.string();
+                            break;
+                        case 3:
+                            dataSize = (int) h.varint();
+                            break;
+                        default:
+                            h.skip();
+                            break;
+                    }
+                }
+                if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Bad blob size " + dataSize + " in " + path);
+                }
+                byte[] blob = new byte[dataSize];
+                in.readFully(blob);
+                if ("OSMHeader".equals(type)) {
+                    checkHeader(inflate(blob));
+                    sawHeader = true;
+                } else if ("OSMData".equals(type)) {
+                    if (!sawHeader) {
+                        throw new IOException("OSMData before OSMHeader in " + path);
+                    }
+                    if (pending.size() >= 2 * threads) {
+                        pending.poll().get().deliver(loader);
+                    }
+                    pending.add(pool.submit(() -> decode(inflate(blob))));
+                }
+                /* Blobs of other types may be ignored, says the format. */
+            }
+            while (!pending.isEmpty()) {
+                pending.poll().get().deliver(loader);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + path, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not decode " + path, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Returns the uncompressed content of a Blob message. */
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ProtobufReader r = new ProtobufReader(blob, 0, blob.length);
+        byte[] raw = null;
+        byte[] zlib = null;
+        int rawSize = -1;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    raw = r.bytes();
+                    break;
+                case 2:
+                    rawSize = (int) r.varint();
+                    break;
+                case 3:
+                    zlib = r.bytes();
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    throw new IOException("Unsupported blob compression " + r.field());
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlib == null || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Blob without data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte[] data = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int k = inflater.inflate(data, n, rawSize - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != rawSize) {
+                throw new IOException("Blob inflated to " + n + " bytes instead of " + rawSize);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Rejects files that need features this reader does not have. */
+    private static void checkHeader(byte[] data) throws IOException {
+        ProtobufReader r = new ProtobufReader(data, 0, data.length);
+        while (r.next()) {
+            if (r.field() == 4) {
+                String feature = r.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                r.skip();
+            }
+        }
+    }
+
+    /** Decodes a PrimitiveBlock. */
+    private static Block decode(byte[] data) throws IOException {
+        ProtobufReader r = new ProtobufReader(data, 0, data.length);
+        List<String> strings = new ArrayList<>();
+        List<ProtobufReader> groups = new ArrayList<>();
+        long granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    ProtobufReader table = r.message();
+                    while (table.next()) {
+                        if (table.field() == 1) {
+                            strings.add(table.string());
+                        } else {
+                            table.skip();
+                        }
+                    }
+                    break;
+                case 2:
+                    groups.add(r.message());
+                    break;
+                case 17:
+                    granularity = r.varint();
+                    break;
+                case 19:
+                    latOffset = r.varint();
+                    break;
+                case 20:
+                    lonOffset = r.varint();
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        String[] table = strings.toArray(new String[0]);
+        Coordinates c = new Coordinates(granularity, latOffset, lonOffset);
+        Block block = new Block();
+        for (ProtobufReader group : groups) {
+            while (group.next()) {
+                switch (group.field()) {
+                    case 1:
+                        decodeNode(group.message(), table, c, block);
+                        break;
+                    case 2:
+                        decodeDenseNodes(group.message(), table, c, block);
+                        break;
+                    case 3:
+                        decodeWay(group.message(), table, block);
+                        break;
+                    default:
+                        group.skip();
+                        break;
+                }
+            }
+        }
+        return block;
+    }
+
+    /** Turns the coordinates of a block into degrees. */
+    private static final class Coordinates {
+        private final long granularity;
+        private final long latOffset;
+        private final long lonOffset;
+
+        Coordinates(long granularity, long latOffset, long lonOffset) {
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /*
+         * A coordinate is an exact number of nanodegrees, well below 2^53, so the division
+         * is correctly rounded, just like Double.parseDouble of its decimal form.
+         */
+
+        double lat(long lat) {
+            return (latOffset + granularity * lat) / 1e9;
+        }
+
+        double lon(long lon) {
+            return (lonOffset + granularity * lon) / 1e9;
+        }
+    }
+
+    private static void decodeNode(ProtobufReader r, String[] table, Coordinates c,
+                                   Block block) throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        ProtobufReader.Longs keys = new ProtobufReader.Longs();
+        ProtobufReader.Longs vals = new ProtobufReader.Longs();
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    id = r.sint64();
+                    break;
+                case 2:
+                    r.repeated(keys, false);
+                    break;
+                case 3:
+                    r.repeated(vals, false);
+                    break;
+                case 8:
+                    lat = r.sint64();
+                    break;
+                case 9:
+                    lon = r.sint64();
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        String name = null;
+        for (int i = 0; i < keys.size && i < vals.size; i += 1) {
+            if ("name".equals(table[(int) keys.values[i]])) {
+                name = table[(int) vals.values[i]];
+            }
+        }
+        block.addNode(id, c.lon(lon), c.lat(lat), name);
+    }
+
+    private static void decodeDenseNodes(ProtobufReader r, String[] table, Coordinates c,
+                                         Block block) throws IOException {
+        ProtobufReader.Longs ids = new ProtobufReader.Longs();
+        ProtobufReader.Longs lats = new ProtobufReader.Longs();
+        ProtobufReader.Longs lons = new ProtobufReader.Longs();
+        ProtobufReader.Longs keysVals = new ProtobufReader.Longs();
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    r.repeated(ids, true);
+                    break;
+                case 8:
+                    r.repeated(lats, true);
+                    break;
+                case 9:
+                    r.repeated(lons, true);
+                    break;
+                case 10:
+                    r.repeated(keysVals, false);
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        if (lats.size != ids.size || lons.size != ids.size) {
+            throw new IOException("Dense nodes with " + ids.size + " ids but " + lats.size
+                    + " latitudes and " + lons.size + " longitudes");
+        }
+        /* Ids and coordinates are delta coded; keysVals holds key, value pairs for each
+         * node in turn, each node's list ended by a 0. */
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        int kv = 0;
+        for (int i = 0; i < ids.size; i += 1) {
+            id += ids.values[i];
+            lat += lats.values[i];
+            lon += lons.values[i];
+            String name = null;
+            while (kv < keysVals.size && keysVals.values[kv] != 0) {
+                if (kv + 1 == keysVals.size) {
+                    throw new IOException("Dense node " + id + " has a key without a value");
+                }
+                if ("name".equals(table[(int) keysVals.values[kv]])) {
+                    name = table[(int) keysVals.values[kv + 1]];
+                }
+                kv += 2;
+            }
+            kv += 1;
+            block.addNode(id, c.lon(lon), c.lat(lat), name);
+        }
+    }
+
+    private static void decodeWay(ProtobufReader r, String[] table, Block block)
+            throws IOException {
+        ProtobufReader.Longs keys = new ProtobufReader.Longs();
+        ProtobufReader.Longs vals = new ProtobufReader.Longs();
+        int start = block.wayRefs.size;
+        while (r.next()) {
+            switch (r.field()) {
+                case 2:
+                    r.repeated(keys, false);
+                    break;
+                case 3:
+                    r.repeated(vals, false);
+                    break;
+                case 8:
+                    r.repeated(block.wayRefs, true);
+                    break;
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        /* Refs are delta coded. */
+        long ref = 0;
+        for (int i = start; i < block.wayRefs.size; i += 1) {
+            ref += block.wayRefs.values[i];
+            block.wayRefs.values[i] = ref;
+        }
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keys.size && i < vals.size; i += 1) {
+            tags.put(table[(int) keys.values[i]], table[(int) vals.values[i]]);
+        }
+        block.wayStart.add(start);
+        block.wayTags.add(tags);
+    }
+}
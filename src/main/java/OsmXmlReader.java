@@ -0,0 +1,136 @@
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull (StAX) reader for OSM XML that feeds nodes, locations and ways into a GraphLoader.
+ * Compared with the SAX GraphBuildingHandler it dispatches on element names with a string
+ * switch instead of a chain of equals calls, tracks the enclosing element as an int, reuses
+ * one reference array and one tag map for every way, and can skip the nodes or the ways of
+ * the file, which is what the two passes of a two-pass load need.
+ * Like all OSM tooling it expects the standard order of elements: all nodes, then all ways,
+ * then all relations. A pass that only wants nodes stops at the first way.
+ */
+final class OsmXmlReader {
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /* The element whose children are being read. */
+    private static final int OTHER = 0;
+    private static final int NODE = 1;
+    private static final int WAY = 2;
+
+    private OsmXmlReader() {
+    }
+
+    /**
+     * Reads an OSM XML document.
+     * @param in The document.
+     * @param loader Receives the nodes, locations and ways.
+     * @param readNodes Whether to pass on nodes and locations.
+     * @param readWays Whether to pass on ways.
+     * @throws XMLStreamException If the document is not well-formed.
+     */
+    static void read(InputStream in, GraphLoader loader, boolean readNodes, boolean readWays)
+            throws XMLStreamException {
+        XMLStreamReader r = FACTORY.createXMLStreamReader(in);
+        try {
+            int element = OTHER;
+            long nodeId = 0;
+            double lon = 0;
+            double lat = 0;
+            String nodeName = null;
+            long[] refs = new long[64];
+            int refCount = 0;
+            Map<String, String> tags = new HashMap<>();
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            element = NODE;
+                            nodeName = null;
+                            if (readNodes) {
+                                for (int i = 0; i < r.getAttributeCount(); i += 1) {
+                                    switch (r.getAttributeLocalName(i)) {
+                                        case "id":
+                                            nodeId = Long.parseLong(r.getAttributeValue(i));
+                                            break;
+                                        case "lon":
+                                            lon = Double.parseDouble(r.getAttributeValue(i));
+                                            break;
+                                        case "lat":
+                                            lat = Double.parseDouble(r.getAttributeValue(i));
+                                            break;
+                                        default:
+                                            break;
+                                    }
+                                }
+                            }
+                            break;
+                        case "way":
+                            if (!readWays) {
+                                return;
+                            }
+                            element = WAY;
+                            refCount = 0;
+                            tags.clear();
+                            break;
+                        case "nd":
+                            if (element == WAY) {
+                                if (refCount == refs.length) {
+                                    refs = Arrays.copyOf(refs, refCount * 2);
+                                }
+                                refs[refCount] = Long.parseLong(r.getAttributeValue(null, "ref"));
+                                refCount += 1;
+                            }
+                            break;
+                        case "tag":
+                            if (element == WAY) {
+                                tags.put(r.getAttributeValue(null, "k"),
+                                        r.getAttributeValue(null, "v"));
+                            } else if (element == NODE && readNodes
+                                    && "name".equals(r.getAttributeValue(null, "k"))) {
+                                nodeName = r.getAttributeValue(null, "v");
+                            }
+                            break;
+                        case "relation":
+                            element = OTHER;
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            if (readNodes) {
+                                loader.addNode(nodeId, lon, lat);
+                                if (nodeName != null) {
+                                    loader.addLocation(nodeId, lon, lat, nodeName);
+                                }
+                            }
+                            element = OTHER;
+                            break;
+                        case "way":
+                            loader.addWay(refs, refCount, tags);
+                            element = OTHER;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a background thread, a chunk at a time, through a bounded queue.
+ * Wrapped around a decompressing stream, this lets inflating the input and parsing it run
+ * on two cores at once, while the queue bounds how far the decompressor can run ahead.
+ * Errors of the source stream are rethrown by the reading thread once it has consumed
+ * everything read before them.
+ */
+final class PipelinedInputStream extends InputStream {
+    /** Marks the end of the source stream in the queue. */
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks;
+    private final Thread producer;
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private byte[] current = new byte[0];
+    private int position;
+    private int limit;
+
+    /**
+     * Starts reading source in the background.
+     * @param source The stream to read, closed once it is exhausted or this stream is closed.
+     * @param chunkSize The number of bytes per queued chunk.
+     * @param capacity The number of chunks the background thread may read ahead.
+     */
+    PipelinedInputStream(InputStream source, int chunkSize, int capacity) {
+        chunks = new ArrayBlockingQueue<>(capacity);
+        producer = new Thread(() -> pump(source, chunkSize), "osm-input-pipeline");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void pump(InputStream source, int chunkSize) {
+        try (InputStream in = source) {
+            boolean more = true;
+            while (more && !closed) {
+                byte[] chunk = new byte[chunkSize];
+                int n = 0;
+                try {
+                    while (n < chunkSize) {
+                        int read = in.read(chunk, n, chunkSize - n);
+                        if (read < 0) {
+                            more = false;
+                            break;
+                        }
+                        n += read;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    more = false;
+                }
+                if (n > 0) {
+                    /* Whatever was read before an error is still handed on. */
+                    chunks.put(n == chunkSize ? chunk : Arrays.copyOf(chunk, n));
+                }
+            }
+        } catch (IOException e) {
+            /* Closing the source failed after everything was read from it. */
+            if (failure == null) {
+                failure = e;
+            }
+        } catch (InterruptedException e) {
+            /* Closed while the queue was full; nobody is reading any more. */
+            return;
+        }
+        try {
+            chunks.put(END);
+        } catch (InterruptedException e) {
+            /* Closed; nobody is waiting for the end. */
+        }
+    }
+
+    /** Makes the next chunk current; returns false at the end of the stream. */
+    private boolean fill() throws IOException {
+        if (current == END) {
+            return false;
+        }
+        try {
+            current = chunks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for input", e);
+        }
+        position = 0;
+        limit = current.length;
+        if (current == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int b = current[position] & 0xff;
+        position += 1;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    /** Stops the background thread, which then closes the source stream. */
+    @Override
+    public void close() {
+        closed = true;
+        producer.interrupt();
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal reader for the protocol buffer wire format, enough to decode OSM PBF files
+ * without generated classes. It walks the fields of one message held in a byte array;
+ * nested messages are read by creating a reader over the bytes of the field.
+ * Typical use:
+ * <pre>
+ *     while (r.next()) {
+ *         switch (r.field()) {
+ *             case 1: id = r.sint64(); break;
+ *             default: r.skip(); break;
+ *         }
+ *     }
+ * </pre>
+ */
+final class ProtobufReader {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private final byte[] buf;
+    private int position;
+    private final int limit;
+    private int field;
+    private int wireType;
+
+    /**
+     * Creates a reader over buf[offset, offset + length).
+     * @param buf The encoded message.
+     * @param offset Where the message starts.
+     * @param length Its length in bytes.
+     */
+    ProtobufReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Reads the key of the next field.
+     * @return False at the end of the message.
+     * @throws IOException If the message is truncated.
+     */
+    boolean next() throws IOException {
+        if (position >= limit) {
+            return false;
+        }
+        long key = varint();
+        field = (int) (key >>> 3);
+        wireType = (int) (key & 7);
+        return true;
+    }
+
+    /** The number of the current field. */
+    int field() {
+        return field;
+    }
+
+    /** The wire type of the current field. */
+    int wireType() {
+        return wireType;
+    }
+
+    /** Reads the current field as an unsigned varint. */
+    long varint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buf[position];
+            position += 1;
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Reads the current field as a zigzag encoded sint64. */
+    long sint64() throws IOException {
+        long v = varint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Reads the length of the current length-delimited field and checks it. */
+    int length() throws IOException {
+        long n = varint();
+        if (n < 0 || n > limit - position) {
+            throw new IOException("Truncated field " + field);
+        }
+        return (int) n;
+    }
+
+    /** Reads the current field as a nested message. */
+    ProtobufReader message() throws IOException {
+        int n = length();
+        ProtobufReader r = new ProtobufReader(buf, position, n);
+        position += n;
+        return r;
+    }
+
+    /** Reads the current field as a UTF-8 string. */
+    String string() throws IOException {
+        int n = length();
+        String s = new String(buf, position, n, StandardCharsets.UTF_8);
+        position += n;
+        return s;
+    }
+
+    /** Reads the current field as raw bytes, which are copied. */
+    byte[] bytes() throws IOException {
+        int n = length();
+        byte[] b = new byte[n];
+        System.arraycopy(buf, position, b, 0, n);
+        position += n;
+        return b;
+    }
+
+    /** A growable list of longs, for repeated fields. */
+    static final class Longs {
+        long[] values = new long[16];
+        int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = v;
+            size += 1;
+        }
+    }
+
+    /**
+     * Appends the values of the current field, a repeated integer field, to out. Both the
+     * packed encoding and a single unpacked element are understood.
+     * @param out Receives the values.
+     * @param zigzag Whether the values are sint32/sint64.
+     */
+    void repeated(Longs out, boolean zigzag) throws IOException {
+        if (wireType != LENGTH_DELIMITED) {
+            out.add(zigzag ? sint64() : varint());
+            return;
+        }
+        int n = length();
+        int end = position + n;
+        while (position < end) {
+            out.add(zigzag ? sint64() : varint());
+        }
+    }
+
+    /** Skips the current field. */
+    void skip() throws IOException {
+        switch (wireType) {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                position += 8;
+                break;
+            case LENGTH_DELIMITED:
+                int n = length();
+                position += n;
+                break;
+            case FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+        }
+        if (position > limit) {
+            throw new IOException("Truncated field " + field);
+        }
+    }
+}
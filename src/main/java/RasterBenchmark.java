@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class provides a main method for timing the Rasterer. It runs random query boxes of
+ * all sizes inside the root tile, first on one thread and then on one shared Rasterer from
+ * every available core, as the server's threads do, and reports the average latency of
+ * getMapRaster and the throughput of all threads together.
+ */
+public class RasterBenchmark {
+    private static final int WARMUP_QUERIES = 200000;
+    private static final int QUERIES = 1000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        Rasterer rasterer = new Rasterer();
+        List<Map<String, Double>> queries = randomQueries(4096);
+        for (int i = 0; i < WARMUP_QUERIES; i++) {
+            rasterer.getMapRaster(queries.get(i % queries.size()));
+        }
+        for (int round = 0; round < ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            long rows = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                Map<String, Double> params = queries.get(i % queries.size());
+                Map<String, Object> result = rasterer.getMapRaster(params);
+                rows += ((String[][]) result.get("render_grid")).length;
+            }
+            System.out.printf("1 thread:   %8.1f ns/query (%d rows)%n",
+                    (double) (System.nanoTime() - start) / QUERIES, rows);
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < ROUNDS; round += 1) {
+                long start = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int offset = t;
+                    futures.add(pool.submit(() -> {
+                        for (int i = 0; i < QUERIES; i++) {
+                            rasterer.getMapRaster(queries.get((i + offset) % queries.size()));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%d threads: %8.2f million queries/s%n", threads,
+                        threads * (double) QUERIES / seconds / 1e6);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Random query boxes inside the root tile, with widths from a pixel to the whole map. */
+    private static List<Map<String, Double>> randomQueries(int n) {
+        Random r = new Random(42);
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        List<Map<String, Double>> queries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            double scale = Math.pow(2, -r.nextInt(Rasterer.MAX_DEPTH + 2) - r.nextDouble());
+            double ullon = MapServer.ROOT_ULLON + r.nextDouble() * width * (1 - scale);
+            double ullat = MapServer.ROOT_ULLAT - r.nextDouble() * height * (1 - scale);
+            Map<String, Double> params = new HashMap<>();
+            params.put("ullon", ullon);
+            params.put("ullat", ullat);
+            params.put("lrlon", ullon + width * scale);
+            params.put("lrlat", ullat - height * scale);
+            params.put("w", 1024.0);
+            params.put("h", 768.0);
+            queries.add(params);
+        }
+        return queries;
+    }
+}
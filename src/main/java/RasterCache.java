@@ -0,0 +1,159 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finished raster images as encoded PNG files, so that a client asking for the same view
+ * again, as polling clients do, is answered without stitching tiles or encoding a PNG.
+ * An image is determined by the tiles of its Rasterer.Raster and by the route drawn over
+ * them. Routes are immutable once stored in a RouteStore, so the route id is the version
+ * of the overlay: a new route gets a new id and so new keys, and invalidateRoute drops the
+ * images of a route that was replaced or cleared.
+ * <p>
+ * The cache is bounded by the size of the encoded images and evicts the least recently
+ * used when full. The cached arrays are shared and must not be modified. All methods are
+ * thread-safe.
+ */
+final class RasterCache {
+    /** What an image was drawn from: its tiles and the id of its route, if any. */
+    private static final class Key {
+        final Rasterer.Raster raster;
+        final String routeId;
+
+        Key(Rasterer.Raster raster, String routeId) {
+            this.raster = raster;
+            this.routeId = routeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return raster.equals(other.raster) && Objects.equals(routeId, other.routeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * raster.hashCode() + Objects.hashCode(routeId);
+        }
+    }
+
+    /** Encoded images in order of last access, so the eldest is evicted first. */
+    private final LinkedHashMap<Key, byte[]> images = new LinkedHashMap<>(64, 0.75f, true);
+    private final long capacity;
+    /** Total size of the images in the cache; guarded by the lock on images. */
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The largest number of bytes of encoded images held at once.
+     */
+    RasterCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the image of a raster with a route drawn over it, if it is cached.
+     * @param raster The tiles of the image.
+     * @param routeId The id of the route drawn over the tiles, or null if there is none.
+     * @return The PNG file, or null if it is not cached.
+     */
+    byte[] get(Rasterer.Raster raster, String routeId) {
+        byte[] image;
+        synchronized (images) {
+            image = images.get(new Key(raster, routeId));
+        }
+        if (image == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return image;
+    }
+
+    /**
+     * Caches the image of a raster with a route drawn over it.
+     * @param raster The tiles of the image.
+     * @param routeId The id of the route drawn over the tiles, or null if there is none.
+     * @param image The PNG file.
+     */
+    void put(Rasterer.Raster raster, String routeId, byte[] image) {
+        if (image.length > capacity) {
+            return;
+        }
+        synchronized (images) {
+            byte[] old = images.put(new Key(raster, routeId), image);
+            bytes += image.length - (old == null ? 0 : old.length);
+            Iterator<byte[]> eldest = images.values().iterator();
+            while (bytes > capacity) {
+                bytes -= eldest.next().length;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops every image with a given route drawn over it, once the route is gone.
+     * @param routeId The id of the route.
+     * @return The number of images dropped.
+     */
+    int invalidateRoute(String routeId) {
+        if (routeId == null) {
+            return 0;
+        }
+        int dropped = 0;
+        synchronized (images) {
+            Iterator<Map.Entry<Key, byte[]>> it = images.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, byte[]> entry = it.next();
+                if (routeId.equals(entry.getKey().routeId)) {
+                    bytes -= entry.getValue().length;
+                    it.remove();
+                    dropped += 1;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /** Number of images in the cache. */
+    int size() {
+        synchronized (images) {
+            return images.size();
+        }
+    }
+
+    /** Number of bytes the images in the cache take up. */
+    long byteSize() {
+        synchronized (images) {
+            return bytes;
+        }
+    }
+
+    /** Number of calls to get that found their image. */
+    long hits() {
+        return hits.sum();
+    }
+
+    /** Number of calls to get that did not find their image. */
+    long misses() {
+        return misses.sum();
+    }
+
+    /** Number of images evicted to make room for others. */
+    long evictions() {
+        return evictions.sum();
+    }
+}
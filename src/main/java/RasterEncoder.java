@@ -0,0 +1,334 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Stitches tiles into raster images and encodes them, for the /raster endpoints.
+ * <p>
+ * Canvases are TYPE_INT_RGB images pooled by size and reused by later rasters of the same
+ * size, since a client mostly asks for rasters the size of its window. Tiles are copied into
+ * them a row of pixels at a time with setDataElements instead of being drawn.
+ * <p>
+ * PNG files are written by the encoder here rather than by ImageIO, which always deflates at
+ * the same level on Java 8. The deflate level trades size for speed: interactive use wants
+ * the fastest levels, as the files go over a local network and into the raster cache. Each
+ * thread keeps its own Deflater and row buffers. JPEG files, for clients that accept lossy
+ * images, are written by ImageIO at a set quality. All methods are thread-safe.
+ */
+final class RasterEncoder {
+    /** The file formats of encoded rasters. */
+    enum Format {
+        PNG("image/png"), JPEG("image/jpeg");
+
+        /** The Content-Type of files in this format. */
+        final String mediaType;
+
+        Format(String mediaType) {
+            this.mediaType = mediaType;
+        }
+    }
+
+    private static final byte[] PNG_SIGNATURE =
+        {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2;
+    /** Distance between the bytes of a row that choose its filter; prime, to mix channels. */
+    private static final int ROW_SAMPLE_STEP = 7;
+
+    /** Buffers one thread reuses for every PNG it encodes. */
+    private static final class Scratch {
+        final Deflater deflater;
+        final byte[] deflated = new byte[1 << 16];
+        final ByteArrayOutputStream idat = new ByteArrayOutputStream(1 << 16);
+        /* The unfiltered current and previous rows, and the current row under each filter. */
+        byte[] row = new byte[0], previous = new byte[0];
+        byte[][] filtered = new byte[3][0];
+
+        Scratch(int level) {
+            deflater = new Deflater(level);
+        }
+
+        /** Makes the row buffers fit rows of a given number of bytes, with a filter byte. */
+        void fit(int rowBytes) {
+            if (row.length != rowBytes + 1) {
+                row = new byte[rowBytes + 1];
+                previous = new byte[rowBytes + 1];
+                filtered = new byte[3][rowBytes + 1];
+            }
+        }
+    }
+
+    private final float jpegQuality;
+    private final ThreadLocal<Scratch> scratch;
+
+    /** Free canvases by size, for reuse by the next raster of that size. */
+    private final Map<Long, ConcurrentLinkedQueue<BufferedImage>> canvases =
+            new ConcurrentHashMap<>();
+    private final long poolCapacity;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Creates an encoder.
+     * @param deflateLevel The deflate level of PNG files, from Deflater.BEST_SPEED (1) to
+     *                     Deflater.BEST_COMPRESSION (9), or 0 to store them uncompressed.
+     * @param jpegQuality The quality of JPEG files, from 0 to 1.
+     * @param poolCapacity The largest number of bytes of free canvases kept for reuse.
+     */
+    RasterEncoder(int deflateLevel, float jpegQuality, long poolCapacity) {
+        if (deflateLevel < Deflater.NO_COMPRESSION || deflateLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("No such deflate level: " + deflateLevel);
+        }
+        if (!(jpegQuality >= 0 && jpegQuality <= 1)) {
+            throw new IllegalArgumentException("The JPEG quality must be in [0, 1]: "
+                    + jpegQuality);
+        }
+        if (poolCapacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative: "
+                    + poolCapacity);
+        }
+        this.jpegQuality = jpegQuality;
+        this.poolCapacity = poolCapacity;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(deflateLevel));
+    }
+
+    /**
+     * Takes a canvas from the pool, or makes one if none of its size is free. Its pixels are
+     * left from its last use, so every pixel must be drawn.
+     * @param columns The width of the canvas in tiles.
+     * @param rows The height of the canvas in tiles.
+     * @return A TYPE_INT_RGB image to stitch tiles into, to be given back with release.
+     */
+    BufferedImage acquire(int columns, int rows) {
+        ConcurrentLinkedQueue<BufferedImage> free = canvases.get(sizeKey(columns, rows));
+        BufferedImage canvas = free == null ? null : free.poll();
+        if (canvas == null) {
+            return new BufferedImage(columns * MapServer.TILE_SIZE, rows * MapServer.TILE_SIZE,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+        pooledBytes.addAndGet(-TileCache.weigh(canvas));
+        return canvas;
+    }
+
+    /**
+     * Gives a canvas back to the pool once its raster is encoded. Canvases that do not fit
+     * in the pool are left to the garbage collector.
+     * @param canvas An image acquire returned, which the caller must not use again.
+     */
+    void release(BufferedImage canvas) {
+        long size = TileCache.weigh(canvas);
+        if (pooledBytes.addAndGet(size) > poolCapacity) {
+            pooledBytes.addAndGet(-size);
+            return;
+        }
+        int columns = canvas.getWidth() / MapServer.TILE_SIZE;
+        int rows = canvas.getHeight() / MapServer.TILE_SIZE;
+        canvases.computeIfAbsent(sizeKey(columns, rows), k -> new ConcurrentLinkedQueue<>())
+                .offer(canvas);
+    }
+
+    /** Number of bytes of free canvases in the pool. */
+    long pooledBytes() {
+        return Math.max(0, pooledBytes.get());
+    }
+
+    private static long sizeKey(int columns, int rows) {
+        return (long) columns << 32 | rows;
+    }
+
+    /**
+     * Copies a tile into a canvas. TYPE_INT_RGB tiles are copied a row at a time; other
+     * tiles are drawn. A missing tile leaves its square black.
+     * @param canvas The canvas.
+     * @param tile The tile, or null if there is none.
+     * @param x The left edge of the tile on the canvas.
+     * @param y The top edge of the tile on the canvas.
+     */
+    static void copyTile(BufferedImage canvas, BufferedImage tile, int x, int y) {
+        if (tile == null) {
+            int[] black = new int[MapServer.TILE_SIZE * MapServer.TILE_SIZE];
+            canvas.getRaster().setDataElements(x, y, MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                    black);
+        } else if (tile.getType() == BufferedImage.TYPE_INT_RGB) {
+            canvas.getRaster().setDataElements(x, y, tile.getRaster());
+        } else {
+            Graphics graphic = canvas.getGraphics();
+            graphic.drawImage(tile, x, y, null);
+            graphic.dispose();
+        }
+    }
+
+    /**
+     * Converts a decoded tile to TYPE_INT_RGB, so that copyTile can copy its pixels. Tiles
+     * that already are TYPE_INT_RGB are returned as they are.
+     * @param image The tile, or null.
+     * @return The tile as TYPE_INT_RGB, or null if image is null.
+     */
+    static BufferedImage toIntRgb(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = rgb.getGraphics();
+        graphic.drawImage(image, 0, 0, null);
+        graphic.dispose();
+        return rgb;
+    }
+
+    /**
+     * Encodes an image.
+     * @param image A TYPE_INT_RGB image, such as a canvas.
+     * @param format The file format.
+     * @return The file.
+     * @throws IOException If ImageIO could not write a JPEG file.
+     */
+    byte[] encode(BufferedImage image, Format format) throws IOException {
+        if (format == Format.JPEG) {
+            return encodeJpeg(image);
+        }
+        return encodePng(image);
+    }
+
+    /**
+     * Writes an 8 bit RGB PNG file with a single IDAT chunk. Each row gets whichever of the
+     * None, Sub and Up filters leaves the smallest sum of absolute byte values, the usual
+     * heuristic for true color images; see filterRow.
+     */
+    private byte[] encodePng(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            image = toIntRgb(image);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Scratch s = scratch.get();
+        s.fit(3 * width);
+        Arrays.fill(s.previous, (byte) 0);
+        Deflater deflater = s.deflater;
+        deflater.reset();
+        s.idat.reset();
+
+        for (int y = 0; y < height; y++) {
+            byte[] row = s.row;
+            for (int x = 0, i = y * width, b = 1; x < width; x++, i++, b += 3) {
+                int rgb = pixels[i];
+                row[b] = (byte) (rgb >> 16);
+                row[b + 1] = (byte) (rgb >> 8);
+                row[b + 2] = (byte) rgb;
+            }
+            byte[] filtered = filterRow(row, s.previous, s.filtered);
+            deflater.setInput(filtered);
+            while (!deflater.needsInput()) {
+                s.idat.write(s.deflated, 0, deflater.deflate(s.deflated));
+            }
+            s.row = s.previous;
+            s.previous = row;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            s.idat.write(s.deflated, 0, deflater.deflate(s.deflated));
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream(s.idat.size() + 64);
+        png.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // Bits per sample.
+        header[9] = 2; // True color, no alpha.
+        writeChunk(png, "IHDR", header, header.length);
+        writeChunk(png, "IDAT", s.idat.toByteArray(), s.idat.size());
+        writeChunk(png, "IEND", new byte[0], 0);
+        return png.toByteArray();
+    }
+
+    /**
+     * Filters a row under whichever of None, Sub and Up should compress best. The filters are
+     * compared on a sample of the row, every ROW_SAMPLE_STEP-th byte, which picks the same
+     * filter as comparing whole rows nearly always and costs a fraction of it.
+     * @param row The row, after the filter byte at index 0.
+     * @param previous The row above, all zero for the first row.
+     * @param filtered Buffers for the Sub and Up filtered rows, at FILTER_SUB and FILTER_UP.
+     * @return The filtered row, with its filter byte at index 0.
+     */
+    private static byte[] filterRow(byte[] row, byte[] previous, byte[][] filtered) {
+        long noneSum = 0, subSum = 0, upSum = 0;
+        for (int i = 4; i < row.length; i += ROW_SAMPLE_STEP) {
+            byte b = row[i];
+            noneSum += Math.abs(b);
+            subSum += Math.abs((byte) (b - row[i - 3]));
+            upSum += Math.abs((byte) (b - previous[i]));
+        }
+        if (noneSum <= subSum && noneSum <= upSum) {
+            row[0] = FILTER_NONE;
+            return row;
+        }
+        if (subSum <= upSum) {
+            byte[] sub = filtered[FILTER_SUB];
+            sub[0] = FILTER_SUB;
+            System.arraycopy(row, 1, sub, 1, 3);
+            for (int i = 4; i < row.length; i++) {
+                sub[i] = (byte) (row[i] - row[i - 3]);
+            }
+            return sub;
+        }
+        byte[] up = filtered[FILTER_UP];
+        up[0] = FILTER_UP;
+        for (int i = 1; i < row.length; i++) {
+            up[i] = (byte) (row[i] - previous[i]);
+        }
+        return up;
+    }
+
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data,
+                                   int length) {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+        out.write(header, 0, header.length);
+        out.write(data, 0, length);
+        out.write(trailer, 0, trailer.length);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(jpeg)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return jpeg.toByteArray();
+    }
+}
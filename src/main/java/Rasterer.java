@@ -6,9 +6,13 @@ import java.util.Map;
  * a query result. The getMapRaster method must return a Map containing all
  * seven of the required fields, otherwise the front end code will probably
  * not draw the output correctly.
+ * <p>
+ * A Rasterer holds no state that changes between queries, so one instance can serve
+ * every thread of the server at once. The depth and the range of tiles follow from the
+ * query box in closed form, and the names of all tiles are built once, when the class is
+ * loaded, so a query allocates little more than its result.
  */
 public class Rasterer {
-    private Boolean query_success;
     private static final double ROOT_LRLON = MapServer.ROOT_LRLON;
     private static final double ROOT_ULLON = MapServer.ROOT_ULLON;
     private static final double ROOT_ULLAT = MapServer.ROOT_ULLAT;
@@ -16,11 +20,145 @@ public class Rasterer {
     private static final double ROOT_WIDTH = ROOT_LRLON - ROOT_ULLON;
     private static final double ROOT_HEIGHT = ROOT_ULLAT - ROOT_LRLAT;
     private static final double ROOT_LONDPP = (ROOT_WIDTH)/MapServer.TILE_SIZE;
+    /** Depth of the most detailed tiles in the img/ folder. */
+    static final int MAX_DEPTH = 7;
+    /** TILE_NAMES[d][y * 2^d + x] is the file name of tile (x, y) at depth d. */
+    private static final String[][] TILE_NAMES = tileNames();
 
+    /**
+     * The result of a raster query: the depth and the range of tiles that cover the query
+     * box. Instances are immutable.
+     */
+    static final class Raster {
+        private final int depth;
+        private final int xMin;
+        private final int xMax;
+        private final int yMin;
+        private final int yMax;
+        private final boolean success;
 
-    public Rasterer() {
-        query_success = true;
+        /** A raster of tiles [xMin, xMax] by [yMin, yMax] at depth. */
+        private Raster(int depth, int xMin, int xMax, int yMin, int yMax, boolean success) {
+            this.depth = depth;
+            this.xMin = xMin;
+            this.xMax = xMax;
+            this.yMin = yMin;
+            this.yMax = yMax;
+            this.success = success;
+        }
+
+        /** Whether the query box overlapped the map; if not the raster has no tiles. */
+        boolean success() {
+            return success;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        /** Number of rows of tiles. */
+        int rows() {
+            return yMax - yMin + 1;
+        }
+
+        /** Number of columns of tiles. */
+        int columns() {
+            return xMax - xMin + 1;
+        }
+
+        /** Column of the leftmost tiles at this depth. */
+        int xMin() {
+            return xMin;
+        }
+
+        /** Column of the rightmost tiles at this depth. */
+        int xMax() {
+            return xMax;
+        }
 
+        /** Row of the top tiles at this depth. */
+        int yMin() {
+            return yMin;
+        }
+
+        /** Row of the bottom tiles at this depth. */
+        int yMax() {
+            return yMax;
+        }
+
+        /** File name of the tile in the given row and column of the raster. */
+        String tile(int row, int column) {
+            return TILE_NAMES[depth][((yMin + row) << depth) + xMin + column];
+        }
+
+        double ulLon() {
+            return ROOT_ULLON + xMin * (ROOT_WIDTH / (1 << depth));
+        }
+
+        double ulLat() {
+            return ROOT_ULLAT - yMin * (ROOT_HEIGHT / (1 << depth));
+        }
+
+        double lrLon() {
+            return ROOT_ULLON + (1.0 + xMax) * (ROOT_WIDTH / (1 << depth));
+        }
+
+        double lrLat() {
+            return ROOT_ULLAT - (1.0 + yMax) * (ROOT_HEIGHT / (1 << depth));
+        }
+
+        /** Returns a new grid of the file names of the tiles, one array per row. */
+        String[][] renderGrid() {
+            String[][] grid = new String[rows()][columns()];
+            for (int r = 0; r < grid.length; r += 1) {
+                System.arraycopy(TILE_NAMES[depth], ((yMin + r) << depth) + xMin, grid[r], 0,
+                        grid[r].length);
+            }
+            return grid;
+        }
+
+        /** Rasters are equal if they are made of the same tiles. */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Raster)) {
+                return false;
+            }
+            Raster other = (Raster) o;
+            return depth == other.depth && xMin == other.xMin && xMax == other.xMax
+                    && yMin == other.yMin && yMax == other.yMax && success == other.success;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = depth;
+            h = 31 * h + xMin;
+            h = 31 * h + xMax;
+            h = 31 * h + yMin;
+            h = 31 * h + yMax;
+            return success ? h : ~h;
+        }
+
+        /**
+         * Returns the raster as the map getMapRaster describes. The map and its grid are
+         * new on every call, so callers may add to them.
+         */
+        Map<String, Object> toMap() {
+            Map<String, Object> results = new HashMap<>();
+            results.put("raster_ul_lon", ulLon());
+            results.put("raster_lr_lon", lrLon());
+            results.put("raster_ul_lat", ulLat());
+            results.put("raster_lr_lat", lrLat());
+            results.put("render_grid", renderGrid());
+            results.put("depth", depth);
+            results.put("query_success", success);
+            return results;
+        }
+    }
+
+    /** A failed query: no tiles, at the upper left corner of the map. */
+    private static final Raster FAILED = new Raster(0, 0, -1, 0, -1, false);
+
+    public Rasterer() {
     }
 
     /**
@@ -52,99 +190,83 @@ public class Rasterer {
      *                    forget to set this to true on success! <br>
      */
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        Map<String, Object> results = new HashMap<>();
-        double lrlon = params.get("lrlon");
-        double ullon = params.get("ullon");
-        double lrlat = params.get("lrlat");
-        double ullat = params.get("ullat");
-        double width = params.get("w");
-        double lonDPP = ((lrlon - ullon)/width);
-        int depth = measureDepth(lonDPP);
-        int[] x_range = measureXRange(ullon, lrlon, depth);
-        int[] y_range = measureYRange(ullat, lrlat, depth);
-        System.out.println(y_range[0]);
-        System.out.println(y_range[1]);
-        if (ullon > lrlon || lrlat > ullat || lrlon <= ROOT_ULLON|| ullon >= ROOT_LRLON || lrlat >= ROOT_ULLAT||ullat <= ROOT_LRLAT){
-            query_success = false;
-        }
-
-        double x_step = ROOT_WIDTH / Math.pow(2, depth);
-        double y_step = ROOT_HEIGHT/ Math.pow(2, depth);
-        String[][] grid_render = getRenderDoc(depth, x_range, y_range);
-        results.put("raster_ul_lon", ROOT_ULLON + x_range[0] * x_step);
-        results.put("raster_lr_lon", ROOT_ULLON + (1.0 + x_range[1]) * x_step);
-        results.put("raster_ul_lat", ROOT_ULLAT - y_range[0] * y_step);
-        results.put("raster_lr_lat", ROOT_ULLAT - (1.0 + y_range[1]) * y_step);
-        results.put("render_grid", grid_render);
-        results.put("depth", depth);
-        results.put("query_success", query_success);
-        return results;
-
+        return raster(params.get("ullon"), params.get("ullat"), params.get("lrlon"),
+                params.get("lrlat"), params.get("w")).toMap();
+    }
 
+    /**
+     * Finds the tiles that cover a query box, like getMapRaster.
+     * @param ullon The upper left longitude of the query box.
+     * @param ullat The upper left latitude of the query box.
+     * @param lrlon The lower right longitude of the query box.
+     * @param lrlat The lower right latitude of the query box.
+     * @param width The width of the user viewport in pixels.
+     * @return The raster, which is unsuccessful if the box is empty or misses the map.
+     */
+    Raster raster(double ullon, double ullat, double lrlon, double lrlat, double width) {
+        if (ullon > lrlon || lrlat > ullat || lrlon <= ROOT_ULLON || ullon >= ROOT_LRLON
+                || lrlat >= ROOT_ULLAT || ullat <= ROOT_LRLAT) {
+            return FAILED;
+        }
+        int depth = depth((lrlon - ullon) / width);
+        int last = (1 << depth) - 1;
+        double xStep = ROOT_WIDTH / (1 << depth);
+        double yStep = ROOT_HEIGHT / (1 << depth);
+        int xMin = clamp(Math.ceil((ullon - ROOT_ULLON) / xStep) - 1, 0, last);
+        int xMax = clamp(Math.ceil((lrlon - ROOT_ULLON) / xStep) - 1, xMin, last);
+        int yMin = clamp(Math.ceil((ROOT_ULLAT - ullat) / yStep) - 1, 0, last);
+        int yMax = clamp(Math.ceil((ROOT_ULLAT - lrlat) / yStep) - 1, yMin, last);
+        return new Raster(depth, xMin, xMax, yMin, yMax, true);
     }
 
-    private int measureDepth(double user_DPP) {
-        int depth = 0;
-        double current_DPP = ROOT_LONDPP;
-        while (current_DPP > user_DPP && depth < 7) {
-            current_DPP /= 2;
-            depth++;
+    /**
+     * The depth of the tiles with the largest LonDPP that is at most lonDPP: the smallest
+     * depth d with ROOT_LONDPP / 2^d <= lonDPP, or MAX_DEPTH if there is none.
+     * @param lonDPP The longitude per pixel of the query.
+     * @return The depth, in [0, MAX_DEPTH].
+     */
+    static int depth(double lonDPP) {
+        if (!(lonDPP > 0)) {
+            return MAX_DEPTH;
+        }
+        int depth = clamp(Math.ceil(Math.log(ROOT_LONDPP / lonDPP) / Math.log(2)), 0,
+                MAX_DEPTH);
+        /* Halving is exact, so these correct any rounding in the logarithm. */
+        while (depth < MAX_DEPTH && Math.scalb(ROOT_LONDPP, -depth) > lonDPP) {
+            depth += 1;
+        }
+        while (depth > 0 && Math.scalb(ROOT_LONDPP, 1 - depth) <= lonDPP) {
+            depth -= 1;
         }
         return depth;
     }
 
-    private int[] measureXRange(double user_ullon, double user_lrlon, double depth) {
-         int[] result = new int[2];
-         double movement = ROOT_WIDTH/Math.pow(2, depth);
-         double current_x = ROOT_ULLON + movement;
-         int x1,x2;
-         for (x1 = 0; user_ullon > current_x; x1++){
-             current_x += movement;
-         }
-
-         for ( x2 = x1; user_lrlon > current_x; x2++ ) {
-             current_x += movement;
-             if (current_x > ROOT_LRLON) {
-                 break;
-             }
-         }
-
-         result[0] = x1;
-         result[1] = x2;
-         return result;
-
-
+    /**
+     * The file name of a tile.
+     * @param depth The depth of the tile, in [0, MAX_DEPTH].
+     * @param x The column of the tile, in [0, 2^depth).
+     * @param y The row of the tile, in [0, 2^depth).
+     * @return The name, such as d2_x1_y3.png.
+     */
+    static String tileName(int depth, int x, int y) {
+        return TILE_NAMES[depth][(y << depth) + x];
     }
 
-    private int[] measureYRange(double user_ullat, double user_lrlat, double depth) {
-        int[] result = new int[2];
-        double movement = ROOT_HEIGHT/Math.pow(2, depth);
-        double current_y = ROOT_ULLAT - movement;
-        int y1,y2;
-        for (y1 = 0; user_ullat < current_y; y1++){
-            current_y -= movement;
-        }
-
-        for (y2 = y1; user_lrlat < current_y; y2++) {
-            current_y -= movement;
-            if (current_y < ROOT_LRLAT) {
-                break;
-            }
-        }
-
-        result[0] = y1;
-        result[1] = y2;
-        return result;
+    private static int clamp(double x, int min, int max) {
+        return x <= min ? min : x >= max ? max : (int) x;
     }
 
-    private String[][] getRenderDoc(int depth, int[] x_range, int[] y_range ){
-        String[][] result = new String[y_range[1] - y_range[0] + 1][x_range[1] - x_range[0]+ 1];
-        for (int j = 0; j + y_range[0] <= y_range[1]; j++) {
-            for (int i = 0; i + x_range[0] <= x_range[1]; i++) {
-                String filename = "d" + Integer.toString(depth) + "_x" + Integer.toString(i + x_range[0]) + "_y" + Integer.toString(j + y_range[0])+ ".png";
-                result[j][i] = filename;
+    private static String[][] tileNames() {
+        String[][] names = new String[MAX_DEPTH + 1][];
+        for (int d = 0; d <= MAX_DEPTH; d += 1) {
+            int n = 1 << d;
+            names[d] = new String[n * n];
+            for (int y = 0; y < n; y += 1) {
+                for (int x = 0; x < n; x += 1) {
+                    names[d][y * n + x] = "d" + d + "_x" + x + "_y" + y + ".png";
+                }
             }
         }
-        return result;
+        return names;
     }
 }
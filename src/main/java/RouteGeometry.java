@@ -0,0 +1,200 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shape of a route as a line of longitude and latitude points, for clients that draw
+ * routes as a layer of their own over the map instead of having them painted into rasters.
+ * A route can be simplified for a depth of the map with the Douglas-Peucker algorithm, which
+ * drops the points that would move the line by less than half a pixel at that depth, and
+ * written as an encoded polyline or as a GeoJSON LineString.
+ */
+final class RouteGeometry {
+    /** Encoded polylines store coordinates in units of 1e-5 degrees. */
+    private static final double POLYLINE_PRECISION = 1e5;
+    /** Points closer than this many pixels to the simplified line are dropped. */
+    private static final double TOLERANCE_PIXELS = 0.5;
+
+    private final double[] lons;
+    private final double[] lats;
+
+    /**
+     * @param lons The longitudes of the points, in order.
+     * @param lats The latitudes of the points, in order.
+     */
+    RouteGeometry(double[] lons, double[] lats) {
+        if (lons.length != lats.length) {
+            throw new IllegalArgumentException("There are " + lons.length + " longitudes but "
+                    + lats.length + " latitudes.");
+        }
+        this.lons = lons;
+        this.lats = lats;
+    }
+
+    /**
+     * The shape of a route through a graph.
+     * @param g The graph.
+     * @param route The ids of the vertices on the route.
+     * @return The line through the vertices.
+     */
+    static RouteGeometry of(GraphDB g, List<Long> route) {
+        double[] lons = new double[route.size()];
+        double[] lats = new double[route.size()];
+        int i = 0;
+        for (long v : route) {
+            lons[i] = g.lon(v);
+            lats[i] = g.lat(v);
+            i += 1;
+        }
+        return new RouteGeometry(lons, lats);
+    }
+
+    /** Number of points on the line. */
+    int size() {
+        return lons.length;
+    }
+
+    double lon(int i) {
+        return lons[i];
+    }
+
+    double lat(int i) {
+        return lats[i];
+    }
+
+    /**
+     * Simplifies the line for drawing at a depth of the map, measuring distances in the
+     * pixels of the tiles at that depth, so each depth gets as few points as it can show.
+     * @param depth The depth, from 0 to Rasterer.MAX_DEPTH.
+     * @return The simplified line, which keeps the first and last point.
+     */
+    RouteGeometry simplify(int depth) {
+        if (depth < 0 || depth > Rasterer.MAX_DEPTH) {
+            throw new IllegalArgumentException("No such depth: " + depth);
+        }
+        double pixels = (double) MapServer.TILE_SIZE * (1 << depth);
+        double lonPerPixel = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / pixels;
+        double latPerPixel = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / pixels;
+        double[] x = new double[lons.length];
+        double[] y = new double[lats.length];
+        for (int i = 0; i < lons.length; i++) {
+            x[i] = lons[i] / lonPerPixel;
+            y[i] = lats[i] / latPerPixel;
+        }
+        boolean[] keep = douglasPeucker(x, y, TOLERANCE_PIXELS);
+        int kept = 0;
+        for (boolean k : keep) {
+            if (k) {
+                kept += 1;
+            }
+        }
+        double[] simpleLons = new double[kept];
+        double[] simpleLats = new double[kept];
+        for (int i = 0, j = 0; i < keep.length; i++) {
+            if (keep[i]) {
+                simpleLons[j] = lons[i];
+                simpleLats[j] = lats[i];
+                j += 1;
+            }
+        }
+        return new RouteGeometry(simpleLons, simpleLats);
+    }
+
+    /**
+     * The Douglas-Peucker algorithm: keeps the ends of a line, then the point farthest from
+     * the segment between kept points while it is farther than the tolerance, splitting the
+     * line there. Runs on an explicit stack, so long routes cannot overflow the call stack.
+     * @param x The x coordinates of the points.
+     * @param y The y coordinates of the points.
+     * @param tolerance The largest distance a dropped point may be from the simplified line.
+     * @return Whether each point is kept.
+     */
+    static boolean[] douglasPeucker(double[] x, double[] y, double tolerance) {
+        int n = x.length;
+        boolean[] keep = new boolean[n];
+        if (n == 0) {
+            return keep;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        ArrayDeque<int[]> spans = new ArrayDeque<>();
+        spans.push(new int[] {0, n - 1});
+        while (!spans.isEmpty()) {
+            int[] span = spans.pop();
+            int first = span[0], last = span[1];
+            double farthest = tolerance;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = segmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d > farthest) {
+                    farthest = d;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                spans.push(new int[] {first, split});
+                spans.push(new int[] {split, last});
+            }
+        }
+        return keep;
+    }
+
+    /** Distance from the point (px, py) to the segment from (ax, ay) to (bx, by). */
+    private static double segmentDistance(double px, double py, double ax, double ay,
+                                          double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        }
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+
+    /**
+     * Writes the line in the encoded polyline format of the Google Maps APIs: latitude and
+     * longitude pairs in units of 1e-5 degrees, each stored as the difference from the
+     * previous point in chunks of five bits.
+     * @return The encoded polyline.
+     */
+    String encodedPolyline() {
+        StringBuilder sb = new StringBuilder(lons.length * 8);
+        long lastLat = 0, lastLon = 0;
+        for (int i = 0; i < lons.length; i++) {
+            long lat = Math.round(lats[i] * POLYLINE_PRECISION);
+            long lon = Math.round(lons[i] * POLYLINE_PRECISION);
+            encodeSigned(lat - lastLat, sb);
+            encodeSigned(lon - lastLon, sb);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    private static void encodeSigned(long value, StringBuilder sb) {
+        long v = value < 0 ? ~(value << 1) : value << 1;
+        while (v >= 0x20) {
+            sb.append((char) ((0x20 | (v & 0x1f)) + 63));
+            v >>= 5;
+        }
+        sb.append((char) (v + 63));
+    }
+
+    /**
+     * The line as a GeoJSON LineString, ready to be written with Gson.
+     * @return A map with the type and the [lon, lat] coordinates of the line.
+     */
+    Map<String, Object> toGeoJson() {
+        List<double[]> coordinates = new ArrayList<>(lons.length);
+        for (int i = 0; i < lons.length; i++) {
+            coordinates.add(new double[] {lons[i], lats[i]});
+        }
+        Map<String, Object> geoJson = new HashMap<>();
+        geoJson.put("type", "LineString");
+        geoJson.put("coordinates", coordinates);
+        return geoJson;
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Routes found for the clients of the server, each under an id of its own, so that every
+ * client draws its own route onto its rasters instead of whichever route was found last.
+ * The store holds at most a fixed number of routes and forgets a route once it has not been
+ * asked for in a while, so clients that never clear their routes cannot exhaust the heap.
+ * When full it evicts the route that was used least recently.
+ * <p>
+ * Routes are kept as immutable lists, so a route handed out by get can be read while other
+ * threads keep adding and removing routes. All methods are thread-safe; each holds the
+ * store's lock for a few map operations only, never while a route is searched or drawn.
+ */
+final class RouteStore {
+    /** Routes by id, in order of last access, so the eldest entry expires first. */
+    private final LinkedHashMap<String, Entry> routes = new LinkedHashMap<>(16, 0.75f, true);
+    private final int capacity;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+
+    private static final class Entry {
+        final List<Long> route;
+        long lastAccess;
+
+        Entry(List<Long> route, long lastAccess) {
+            this.route = route;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Creates an empty store.
+     * @param capacity The largest number of routes held at once.
+     * @param ttlMillis How long a route is kept after it was last stored or read.
+     */
+    RouteStore(int capacity, long ttlMillis) {
+        this(capacity, ttlMillis, System::nanoTime);
+    }
+
+    /**
+     * Creates an empty store that reads the time from clock, for tests.
+     * @param capacity The largest number of routes held at once.
+     * @param ttlMillis How long a route is kept after it was last stored or read.
+     * @param clock Source of the current time in nanoseconds.
+     */
+    RouteStore(int capacity, long ttlMillis, LongSupplier clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+        }
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("The expiry time must be positive: " + ttlMillis);
+        }
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1000000;
+        this.clock = clock;
+    }
+
+    /**
+     * Stores a route under a new id.
+     * @param route The ids of the vertices on the route, in order.
+     * @return The id the route can be read back with.
+     */
+    String put(List<Long> route) {
+        List<Long> copy = Collections.unmodifiableList(new ArrayList<>(route));
+        String id = UUID.randomUUID().toString();
+        synchronized (routes) {
+            long now = clock.getAsLong();
+            expire(now);
+            if (routes.size() >= capacity) {
+                Iterator<String> eldest = routes.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            routes.put(id, new Entry(copy, now));
+        }
+        return id;
+    }
+
+    /**
+     * Returns the route stored under id, and keeps it for another full expiry time.
+     * @param id The id put returned.
+     * @return The route, which cannot be modified, or null if there is no route under id
+     * or it has expired.
+     */
+    List<Long> get(String id) {
+        if (id == null) {
+            return null;
+        }
+        synchronized (routes) {
+            long now = clock.getAsLong();
+            expire(now);
+            Entry entry = routes.get(id);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastAccess = now;
+            return entry.route;
+        }
+    }
+
+    /**
+     * Forgets the route stored under id.
+     * @param id The id put returned.
+     * @return Whether there was a route under id.
+     */
+    boolean remove(String id) {
+        if (id == null) {
+            return false;
+        }
+        synchronized (routes) {
+            return routes.remove(id) != null;
+        }
+    }
+
+    /** Number of routes currently held, including expired ones not yet dropped. */
+    int size() {
+        synchronized (routes) {
+            return routes.size();
+        }
+    }
+
+    /** Drops the routes that have not been used for longer than the expiry time. */
+    private void expire(long now) {
+        Iterator<Entry> it = routes.values().iterator();
+        while (it.hasNext()) {
+            /* Entries are in order of last access, so the first live one ends the scan. */
+            if (now - it.next().lastAccess <= ttlNanos) {
+                return;
+            }
+            it.remove();
+        }
+    }
+}
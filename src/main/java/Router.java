@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntToDoubleFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 /**
@@ -10,6 +12,43 @@ import java.util.regex.Pattern;
  * down to the priority you use to order your vertices.
  */
 public class Router {
+    /** The search algorithms shortestPath can use. */
+    public enum Algorithm {
+        /** A* on the full graph with the great-circle distance heuristic. */
+        ASTAR,
+        /**
+         * Bidirectional upward search on the graph's ContractionHierarchy, which must have
+         * been prepared with GraphDB.setContractionHierarchy.
+         */
+        CONTRACTION_HIERARCHIES,
+        /**
+         * A* with the landmark (ALT) heuristic, which needs the graph's Landmarks to have
+         * been prepared with GraphDB.setLandmarks.
+         */
+        ALT,
+        /**
+         * Bidirectional A*: searches forward from the start and backward from the
+         * destination at the same time, with the average of the two great-circle potentials
+         * so that both halves see the same consistent reduced edge costs. Needs no
+         * preprocessing.
+         */
+        BIDIRECTIONAL,
+        /**
+         * A* on the graph with its chains of degree-2 vertices collapsed into single edges,
+         * which must have been prepared with GraphDB.setChainGraph. The path is expanded
+         * back to every node of the full graph.
+         */
+        COMPRESSED_CHAINS
+    }
+
+    /** What a shortest path minimises. */
+    public enum Metric {
+        /** The length of the path, in miles. */
+        DISTANCE,
+        /** The time it takes to drive the path at the speed of its ways, in seconds. */
+        TIME
+    }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
@@ -23,18 +62,339 @@ public class Router {
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        return null; // FIXME
-//        Map<Long, Long> distance = new HashMap<>();
-//        long stLoc = g.closest(stlon, stlat);
-//        long destLoc = g.closest(destlon, destlat);
-//        PriorityQueue<Long> fringe = new PriorityQueue<Long>(new Comparator<Long>(){
-//            public int compare(Long w, Long v){
-//            double wPath = distance.get(w) + g.distance(w, destLoc);
-//            double vPath = distance.get(v) + g.distance(v, destLoc);
-//
-//            }
-//        }
-//        return null;
+        return search(g, stlon, stlat, destlon, destlat).path();
+    }
+
+    /**
+     * Like shortestPath(g, stlon, stlat, destlon, destlat), but with the given algorithm.
+     * Every algorithm returns a shortest path; when several paths have the same length
+     * they may pick different ones.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm) {
+        return search(g, stlon, stlat, destlon, destlat, algorithm).path();
+    }
+
+    /**
+     * Runs A* between the nodes closest to a start and a destination location and returns
+     * the path together with its length and search statistics.
+     * The search works on the dense vertex indices of the graph's CompactGraph and keeps
+     * its state in the calling thread's SearchWorkspace, so it does not allocate memory
+     * proportional to the size of the graph.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @return The result of the search. Its path is empty if the destination is unreachable.
+     */
+    public static PathResult search(GraphDB g, double stlon, double stlat,
+                                    double destlon, double destlat) {
+        return search(g, stlon, stlat, destlon, destlat, Algorithm.ASTAR);
+    }
+
+    /**
+     * Like search(g, stlon, stlat, destlon, destlat), but with the given algorithm.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm.
+     * @return The result of the search. Its path is empty if the destination is unreachable.
+     * @throws IllegalStateException If the algorithm needs preprocessing that has not been
+     * done for g.
+     */
+    public static PathResult search(GraphDB g, double stlon, double stlat,
+                                    double destlon, double destlat, Algorithm algorithm) {
+        return search(g, stlon, stlat, destlon, destlat, algorithm, Metric.DISTANCE);
+    }
+
+    /**
+     * Like search(g, stlon, stlat, destlon, destlat, algorithm), but finds the path that is
+     * shortest under the given metric. Edges are only followed in the directions the graph
+     * allows. Contraction hierarchies and landmarks are prepared for one metric, and can
+     * only answer queries for that one.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @param algorithm The search algorithm.
+     * @param metric Whether to minimise the length or the travel time of the path.
+     * @return The result of the search, with both the length and the travel time of the
+     * path. Its path is empty if the destination is unreachable.
+     * @throws IllegalStateException If the algorithm needs preprocessing that has not been
+     * done for g and metric.
+     */
+    public static PathResult search(GraphDB g, double stlon, double stlat,
+                                    double destlon, double destlat, Algorithm algorithm,
+                                    Metric metric) {
+        CompactGraph cg = g.compact();
+        ContractionHierarchy ch = g.contractionHierarchy();
+        if (algorithm == Algorithm.CONTRACTION_HIERARCHIES && ch == null) {
+            throw new IllegalStateException("No contraction hierarchy has been prepared");
+        }
+        if (algorithm == Algorithm.CONTRACTION_HIERARCHIES && ch.metric() != metric) {
+            throw new IllegalStateException(
+                    "The contraction hierarchy was built for another metric");
+        }
+        Landmarks landmarks = g.landmarks();
+        if (algorithm == Algorithm.ALT && landmarks == null) {
+            throw new IllegalStateException("No landmarks have been prepared");
+        }
+        if (algorithm == Algorithm.ALT && landmarks.metric() != metric) {
+            throw new IllegalStateException("The landmarks were computed for another metric");
+        }
+        ChainGraph chains = g.chainGraph();
+        if (algorithm == Algorithm.COMPRESSED_CHAINS && chains == null) {
+            throw new IllegalStateException("No chain graph has been prepared");
+        }
+        int source = g.closestIndex(stlon, stlat);
+        int target = g.closestIndex(destlon, destlat);
+        SearchWorkspace ws = SearchWorkspace.forThread(cg.size());
+        if (source < 0 || target < 0) {
+            return measure(cg, new ArrayList<>(), Double.POSITIVE_INFINITY, metric, 0);
+        }
+        switch (algorithm) {
+            case CONTRACTION_HIERARCHIES:
+                SearchWorkspace backward = SearchWorkspace.backwardForThread(cg.size());
+                int meeting = ch.meet(source, target, ws, backward);
+                int settled = ws.settledCount() + backward.settledCount();
+                if (meeting < 0) {
+                    return measure(cg, new ArrayList<>(), Double.POSITIVE_INFINITY, metric,
+                            settled);
+                }
+                double cost = ws.dist(meeting) + backward.dist(meeting);
+                return measure(cg, toPath(cg, ch.unpack(meeting, ws, backward)), cost, metric,
+                        settled);
+            case ALT:
+                return aStar(cg, source, target, ws, landmarks.heuristic(source, target),
+                        metric);
+            case BIDIRECTIONAL:
+                return bidirectionalAStar(cg, source, target, ws,
+                        SearchWorkspace.backwardForThread(cg.size()), metric);
+            case COMPRESSED_CHAINS:
+                return chains.route(source, target, ws, metric);
+            case ASTAR:
+            default:
+                double tlon = cg.lon(target);
+                double tlat = cg.lat(target);
+                return aStar(cg, source, target, ws,
+                    v -> cg.lowerBound(cg.lon(v), cg.lat(v), tlon, tlat, metric), metric);
+        }
+    }
+
+    /**
+     * Returns the shortest path lengths between every source and every target location.
+     * Each location is snapped to its closest node once. If the graph has a contraction
+     * hierarchy the bucket-based many-to-many algorithm is used, and otherwise one search
+     * per source that stops once it has reached every target.
+     * @param g The graph to use.
+     * @param sources The source locations, each a {lon, lat} pair.
+     * @param targets The target locations, each a {lon, lat} pair.
+     * @return A sources.size() by targets.size() matrix of distances in miles, with
+     * positive infinity where a target cannot be reached.
+     */
+    public static double[][] distanceMatrix(GraphDB g, List<double[]> sources,
+                                            List<double[]> targets) {
+        return DistanceMatrix.compute(g, sources, targets, null);
+    }
+
+    /**
+     * Like distanceMatrix(g, sources, targets), but computes the rows of the matrix in
+     * parallel on the given pool.
+     * @param g The graph to use.
+     * @param sources The source locations, each a {lon, lat} pair.
+     * @param targets The target locations, each a {lon, lat} pair.
+     * @param pool The pool to run the per-source searches on.
+     * @return A sources.size() by targets.size() matrix of distances in miles, with
+     * positive infinity where a target cannot be reached.
+     */
+    public static double[][] distanceMatrix(GraphDB g, List<double[]> sources,
+                                            List<double[]> targets, ForkJoinPool pool) {
+        return DistanceMatrix.compute(g, sources, targets, pool);
+    }
+
+    /**
+     * Finds everything reachable within a distance budget of a location, for coverage maps.
+     * @param g The graph to use.
+     * @param lon The longitude of the start location; the search starts from the closest node.
+     * @param lat The latitude of the start location.
+     * @param budget The largest distance to travel, in miles.
+     * @return The reachable vertices with their distances, and the hull of the reachable area.
+     */
+    public static Isochrone isochrone(GraphDB g, double lon, double lat, double budget) {
+        return Isochrone.compute(g, lon, lat, budget);
+    }
+
+    /**
+     * A* from source to target. The heuristic must be consistent (as both the great-circle
+     * distance and the landmark bounds are), so that every vertex is settled at most once.
+     * @param h Lower bound on the cost of getting from a vertex to the target.
+     * @return The path, its length and the number of settled vertices.
+     */
+    private static PathResult aStar(CompactGraph cg, int source, int target,
+                                    SearchWorkspace ws, IntToDoubleFunction h, Metric metric) {
+        IndexedMinHeap fringe = ws.heap();
+        double hs = h.applyAsDouble(source);
+        ws.reach(source, 0, -1, hs);
+        fringe.push(source, hs);
+        double distance = Double.POSITIVE_INFINITY;
+        while (!fringe.isEmpty()) {
+            int v = fringe.poll();
+            ws.settle(v);
+            if (v == target) {
+                distance = ws.dist(v);
+                break;
+            }
+            double dv = ws.dist(v);
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                if (!cg.isForward(e) || ws.settled(w)) {
+                    continue;
+                }
+                double dw = dv + cg.weight(e, metric);
+                if (!ws.reached(w)) {
+                    double hw = h.applyAsDouble(w);
+                    ws.reach(w, dw, v, hw);
+                    fringe.push(w, dw + hw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    fringe.push(w, dw + ws.heuristic(w));
+                }
+            }
+        }
+        return measure(cg, toPath(cg, ws, target, distance), distance, metric,
+                ws.settledCount());
+    }
+
+    /**
+     * Bidirectional A* from source to target with the average potential
+     * p(v) = (h_t(v) - h_s(v)) / 2, where h_t and h_s are the great-circle lower bounds on
+     * the cost to the target and from the source. The forward search orders vertices by
+     * d_s(v) + p(v) and the backward one by d_t(v) - p(v); both are Dijkstra's algorithm on
+     * the same graph with reduced, non-negative edge costs. Hence once the two smallest keys
+     * add up to at least the best path cost seen so far, no cheaper path can exist, and the
+     * search stops. The backward search follows edges against their direction.
+     * @return The path, its length and the number of vertices settled by both halves.
+     */
+    private static PathResult bidirectionalAStar(CompactGraph cg, int source, int target,
+                                                 SearchWorkspace forward,
+                                                 SearchWorkspace backward, Metric metric) {
+        double slon = cg.lon(source);
+        double slat = cg.lat(source);
+        double tlon = cg.lon(target);
+        double tlat = cg.lat(target);
+        double ps = potential(cg, source, slon, slat, tlon, tlat, metric);
+        double pt = potential(cg, target, slon, slat, tlon, tlat, metric);
+        forward.reach(source, 0, -1, ps);
+        forward.heap().push(source, ps);
+        backward.reach(target, 0, -1, -pt);
+        backward.heap().push(target, -pt);
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        while (forward.heap().minKey() + backward.heap().minKey() < best) {
+            boolean isForward = forward.heap().minKey() <= backward.heap().minKey();
+            SearchWorkspace ws = isForward ? forward : backward;
+            SearchWorkspace other = isForward ? backward : forward;
+            double sign = isForward ? 1 : -1;
+            int v = ws.heap().poll();
+            ws.settle(v);
+            double dv = ws.dist(v);
+            if (other.reached(v) && dv + other.dist(v) < best) {
+                best = dv + other.dist(v);
+                meeting = v;
+            }
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                if (!(isForward ? cg.isForward(e) : cg.isBackward(e)) || ws.settled(w)) {
+                    continue;
+                }
+                double dw = dv + cg.weight(e, metric);
+                if (!ws.reached(w)) {
+                    double pw = sign * potential(cg, w, slon, slat, tlon, tlat, metric);
+                    ws.reach(w, dw, v, pw);
+                    ws.heap().push(w, dw + pw);
+                } else if (dw < ws.dist(w)) {
+                    ws.relax(w, dw, v);
+                    ws.heap().push(w, dw + ws.heuristic(w));
+                } else {
+                    continue;
+                }
+                if (other.reached(w) && dw + other.dist(w) < best) {
+                    best = dw + other.dist(w);
+                    meeting = w;
+                }
+            }
+        }
+        int settled = forward.settledCount() + backward.settledCount();
+        List<Long> path = new ArrayList<>();
+        if (meeting < 0) {
+            return measure(cg, path, Double.POSITIVE_INFINITY, metric, settled);
+        }
+        for (int v = meeting; v >= 0; v = forward.parent(v)) {
+            path.add(cg.id(v));
+        }
+        Collections.reverse(path);
+        for (int v = backward.parent(meeting); v >= 0; v = backward.parent(v)) {
+            path.add(cg.id(v));
+        }
+        return measure(cg, path, best, metric, settled);
+    }
+
+    /** The forward potential (h_t(v) - h_s(v)) / 2 of bidirectional A*. */
+    private static double potential(CompactGraph cg, int v, double slon, double slat,
+                                    double tlon, double tlat, Metric metric) {
+        double vlon = cg.lon(v);
+        double vlat = cg.lat(v);
+        return (cg.lowerBound(vlon, vlat, tlon, tlat, metric)
+                - cg.lowerBound(vlon, vlat, slon, slat, metric)) / 2;
+    }
+
+    /**
+     * Wraps a path found by a search in a PathResult.
+     * @param cg The graph the path is on.
+     * @param path The node ids along the path, or an empty list if there is none.
+     * @param cost The cost of the path under metric, as found by the search.
+     * @param metric The metric the search minimised.
+     * @param settled The number of vertices the search settled.
+     * @return The result.
+     */
+    static PathResult measure(CompactGraph cg, List<Long> path, double cost, Metric metric,
+                              int settled) {
+        return new PathResult(cg, path, cost, metric, settled);
+    }
+
+    /** Converts a path of vertex indices to node ids. */
+    private static List<Long> toPath(CompactGraph cg, int[] vertices) {
+        List<Long> path = new ArrayList<>(vertices.length);
+        for (int v : vertices) {
+            path.add(cg.id(v));
+        }
+        return path;
+    }
+
+    /** Follows parent pointers back from target and returns the path as node ids. */
+    private static List<Long> toPath(CompactGraph cg, SearchWorkspace ws, int target,
+                                     double distance) {
+        List<Long> path = new ArrayList<>();
+        if (distance == Double.POSITIVE_INFINITY) {
+            return path;
+        }
+        for (int v = target; v >= 0; v = ws.parent(v)) {
+            path.add(cg.id(v));
+        }
+        Collections.reverse(path);
+        return path;
     }
 
     /**
@@ -50,6 +410,83 @@ public class Router {
     }
 
 
+    /**
+     * The outcome of a shortest path search: the path itself, its length in miles, the time
+     * it takes to drive in seconds, and the number of vertices the search settled to find it.
+     * The search only adds up the weights of the metric it minimises; the other total is
+     * added up along the path the first time it is asked for.
+     */
+    public static class PathResult {
+        private final CompactGraph graph;
+        private final List<Long> path;
+        private final double cost;
+        private final Metric metric;
+        private final int settled;
+        /** Cost of the path under the other metric, or NaN until it has been computed. */
+        private volatile double otherCost = Double.NaN;
+
+        PathResult(CompactGraph graph, List<Long> path, double cost, Metric metric,
+                   int settled) {
+            this.graph = graph;
+            this.path = path;
+            this.cost = cost;
+            this.metric = metric;
+            this.settled = settled;
+        }
+
+        private double otherCost() {
+            double c = otherCost;
+            if (Double.isNaN(c)) {
+                Metric other = metric == Metric.TIME ? Metric.DISTANCE : Metric.TIME;
+                c = path.isEmpty() ? Double.POSITIVE_INFINITY : 0;
+                for (int i = 1; i < path.size(); i++) {
+                    int v = graph.index(path.get(i - 1));
+                    int w = graph.index(path.get(i));
+                    /* Of parallel edges, the path took the cheapest it may travel. */
+                    int best = -1;
+                    for (int e = graph.edgeBegin(v); e < graph.edgeEnd(v); e++) {
+                        if (graph.edgeTarget(e) == w && graph.isForward(e) && (best < 0
+                                || graph.weight(e, metric) < graph.weight(best, metric))) {
+                            best = e;
+                        }
+                    }
+                    c += graph.weight(best, other);
+                }
+                otherCost = c;
+            }
+            return c;
+        }
+
+        /** The node ids along the path, or an empty list if there is no path. */
+        public List<Long> path() {
+            return path;
+        }
+
+        /** The length of the path in miles, or positive infinity if there is no path. */
+        public double distance() {
+            return metric == Metric.DISTANCE ? cost : otherCost();
+        }
+
+        /**
+         * The time it takes to drive the path at the speed of its ways in seconds, or
+         * positive infinity if there is no path.
+         */
+        public double duration() {
+            return metric == Metric.TIME ? cost : otherCost();
+        }
+
+        /** The number of vertices settled by the search. */
+        public int settled() {
+            return settled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d nodes, %.3f miles, %.0f s, %d settled", path.size(),
+                    distance(), duration(), settled);
+        }
+    }
+
     /**
      * Class to represent a navigation direction, which consists of 3 attributes:
      * a direction to go, a way, and the distance to travel for.
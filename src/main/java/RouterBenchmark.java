@@ -0,0 +1,93 @@
+import java.util.Random;
+
+/**
+ * This class provides a main method for comparing the Router's search algorithms on the
+ * OSM graph. It runs the same random queries inside the root tile with every algorithm
+ * and reports the average number of settled vertices and the average latency of each.
+ * Pass the OSM file as the first argument and HEAP or MAPPED as the second to compare the
+ * graph storage modes. It also reports how much the degree-2 chain compression shrinks the
+ * graph that searches run on. The algorithms that need no metric specific preprocessing
+ * are also timed under the travel time metric.
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int WARMUP_QUERIES = 500;
+    private static final int QUERIES = 2000;
+    /** Size of the per-vertex arrays of a SearchWorkspace and its IndexedMinHeap. */
+    private static final long WORKSPACE_BYTES_PER_VERTEX = 8 + 8 + 4 + 4 + 4 + 4 + 4 + 8 + 4;
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : OSM_DB_PATH;
+        GraphDB.Storage storage = args.length > 1 ? GraphDB.Storage.valueOf(args[1])
+                : GraphDB.Storage.HEAP;
+        GraphDB g = GraphDB.loadOrParse(dbPath, dbPath + ".snap", storage);
+        System.out.println("Graph has " + g.compact().size() + " vertices and "
+                + g.compact().edgeCount() + " edges.");
+
+        long start = System.nanoTime();
+        g.setLandmarks(Landmarks.select(g.compact(), Landmarks.DEFAULT_COUNT));
+        System.out.printf("Selected %d landmarks in %.0f ms.%n", Landmarks.DEFAULT_COUNT,
+                (System.nanoTime() - start) / 1e6);
+        start = System.nanoTime();
+        g.setContractionHierarchy(ContractionHierarchy.build(g.compact()));
+        System.out.printf("Built contraction hierarchy with %d shortcuts in %.0f ms.%n",
+                g.contractionHierarchy().shortcutCount(), (System.nanoTime() - start) / 1e6);
+        start = System.nanoTime();
+        g.setChainGraph(ChainGraph.build(g.compact()));
+        ChainGraph chains = g.chainGraph();
+        System.out.printf("Collapsed %d chains into %d core vertices and %d edges in %.0f ms.%n",
+                chains.chainCount(), chains.size(), chains.edgeCount(),
+                (System.nanoTime() - start) / 1e6);
+        /* Ids, coordinates and offsets per vertex; target and way name per edge. */
+        long fullBytes = (8L + 8 + 8 + 4) * g.compact().size()
+                + (4L + 4) * g.compact().edgeCount();
+        System.out.printf("Topology: full graph %.1f MB, chain graph %.1f MB more;"
+                + " search workspace %.1f MB full, %.1f MB on the core vertices.%n",
+                fullBytes / 1e6, chains.byteSize() / 1e6,
+                WORKSPACE_BYTES_PER_VERTEX * g.compact().size() / 1e6,
+                WORKSPACE_BYTES_PER_VERTEX * chains.size() / 1e6);
+
+        double[][] queries = randomQueries(WARMUP_QUERIES + QUERIES);
+        for (Router.Metric metric : Router.Metric.values()) {
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                if (metric != Router.Metric.DISTANCE
+                        && (algorithm == Router.Algorithm.CONTRACTION_HIERARCHIES
+                        || algorithm == Router.Algorithm.ALT)) {
+                    continue;
+                }
+                long settled = 0;
+                long nanos = 0;
+                for (int i = 0; i < queries.length; i++) {
+                    double[] q = queries[i];
+                    long t = System.nanoTime();
+                    Router.PathResult result = Router.search(g, q[0], q[1], q[2], q[3],
+                            algorithm, metric);
+                    if (i >= WARMUP_QUERIES) {
+                        nanos += System.nanoTime() - t;
+                        settled += result.settled();
+                    }
+                }
+                System.out.printf("%-24s %-8s %8d settled/query %10.1f us/query%n", algorithm,
+                        metric, settled / QUERIES, nanos / 1e3 / QUERIES);
+            }
+        }
+    }
+
+    /** Random start and destination points inside the root tile. */
+    private static double[][] randomQueries(int n) {
+        Random r = new Random(42);
+        double[][] queries = new double[n][];
+        for (int i = 0; i < n; i++) {
+            queries[i] = new double[] {randomLon(r), randomLat(r), randomLon(r), randomLat(r)};
+        }
+        return queries;
+    }
+
+    private static double randomLon(Random r) {
+        return MapServer.ROOT_ULLON + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+    }
+
+    private static double randomLat(Random r) {
+        return MapServer.ROOT_LRLAT + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.Arrays;
+
+/**
+ * Reusable per-thread state for shortest path searches over CompactGraph vertex indices:
+ * tentative distances, parent pointers, settled flags and the priority queue.
+ * Rather than clearing its O(V) arrays before every query, the workspace stamps each entry
+ * with the generation that wrote it and bumps the generation on reset(), so entries left
+ * over from earlier queries simply read as unvisited. A query therefore allocates nothing
+ * proportional to the size of the graph.
+ * Workspaces are not thread-safe; use forThread to get the one owned by the calling thread.
+ */
+final class SearchWorkspace {
+    private static final ThreadLocal<SearchWorkspace> WORKSPACE =
+            ThreadLocal.withInitial(() -> new SearchWorkspace(0));
+    /** Second workspace per thread, for the backward half of bidirectional searches. */
+    private static final ThreadLocal<SearchWorkspace> BACKWARD_WORKSPACE =
+            ThreadLocal.withInitial(() -> new SearchWorkspace(0));
+
+    private double[] dist;
+    private double[] heuristic;
+    private int[] parent;
+    /** Generation in which dist, heuristic and parent were last written. */
+    private int[] reached;
+    /** Generation in which the vertex was settled. */
+    private int[] settled;
+    /** Vertices settled by the current search, in the order they were settled. */
+    private int[] settledOrder;
+    private int generation;
+    private int settledCount;
+    private IndexedMinHeap heap;
+
+    /**
+     * Creates a workspace owned by the caller, for searches that run outside of the
+     * per-thread ones (for example while preprocessing the graph).
+     * @param n The number of vertices of the graph to be searched.
+     */
+    SearchWorkspace(int n) {
+        allocate(n);
+    }
+
+    /**
+     * Returns the calling thread's workspace, reset and large enough for n vertices.
+     * @param n The number of vertices of the graph about to be searched.
+     * @return The workspace.
+     */
+    static SearchWorkspace forThread(int n) {
+        return prepare(WORKSPACE.get(), n);
+    }
+
+    /**
+     * Returns the calling thread's second workspace, used by the backward half of a
+     * bidirectional search while forThread holds the forward half.
+     * @param n The number of vertices of the graph about to be searched.
+     * @return The workspace.
+     */
+    static SearchWorkspace backwardForThread(int n) {
+        return prepare(BACKWARD_WORKSPACE.get(), n);
+    }
+
+    private static SearchWorkspace prepare(SearchWorkspace ws, int n) {
+        if (ws.dist.length < n) {
+            ws.allocate(n);
+        }
+        ws.reset();
+        return ws;
+    }
+
+    private void allocate(int n) {
+        dist = new double[n];
+        heuristic = new double[n];
+        parent = new int[n];
+        reached = new int[n];
+        settled = new int[n];
+        settledOrder = new int[n];
+        heap = new IndexedMinHeap(n);
+        generation = 0;
+    }
+
+    /** Forgets the previous search in O(1) (amortized). */
+    void reset() {
+        heap.clear();
+        settledCount = 0;
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+    }
+
+    IndexedMinHeap heap() {
+        return heap;
+    }
+
+    /** Whether v has been reached by the current search. */
+    boolean reached(int v) {
+        return reached[v] == generation;
+    }
+
+    /** Tentative distance of v, or positive infinity if it has not been reached. */
+    double dist(int v) {
+        return reached[v] == generation ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Parent of v on its tentative shortest path, or -1 for the source. */
+    int parent(int v) {
+        return parent[v];
+    }
+
+    /** Cached heuristic value of v; only meaningful once v has been reached. */
+    double heuristic(int v) {
+        return heuristic[v];
+    }
+
+    /**
+     * Marks v as reached for the first time.
+     * @param v The vertex.
+     * @param d Its tentative distance.
+     * @param p Its parent, or -1.
+     * @param h Its heuristic value, cached for the rest of the search.
+     */
+    void reach(int v, double d, int p, double h) {
+        reached[v] = generation;
+        dist[v] = d;
+        parent[v] = p;
+        heuristic[v] = h;
+    }
+
+    /** Lowers the tentative distance of an already reached vertex. */
+    void relax(int v, double d, int p) {
+        dist[v] = d;
+        parent[v] = p;
+    }
+
+    boolean settled(int v) {
+        return settled[v] == generation;
+    }
+
+    void settle(int v) {
+        settled[v] = generation;
+        settledOrder[settledCount] = v;
+        settledCount += 1;
+    }
+
+    /** Number of vertices settled since the last reset. */
+    int settledCount() {
+        return settledCount;
+    }
+
+    /** The i-th vertex settled since the last reset, for i in [0, settledCount()). */
+    int settledVertex(int i) {
+        return settledOrder[i];
+    }
+}
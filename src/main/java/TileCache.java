@@ -0,0 +1,281 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Loaded tiles by tile name, so that panning around the map draws tiles from memory
+ * instead of reading the same files again for every request. The server keeps one cache of
+ * decoded images for stitching rasters, and one of the tile files as they are on disk for
+ * clients that lay the tiles out themselves.
+ * The cache is bounded by the number of bytes the loaded tiles take up, and when full it
+ * evicts the tiles that were used least recently.
+ * <p>
+ * Loading is single-flight: when several threads miss the same tile at once, one of them
+ * loads it and the others wait for that result, so a tile is never loaded twice
+ * concurrently. Loads run outside the cache's lock, so a slow load only holds up the
+ * threads waiting for that tile. Counters of hits, misses, loads and evictions show how
+ * well the cache is doing. All methods are thread-safe.
+ * <p>
+ * Tiles may also be prefetched ahead of the requests for them. A prefetched tile counts as a
+ * prefetch hit the first time get finds it, so prefetchHits over prefetches is the share of
+ * the prefetcher's work that paid off.
+ * Cached tiles are shared between threads and must only be read, never drawn onto.
+ * @param <T> The type of the loaded tiles.
+ */
+final class TileCache<T> {
+    /** Loads the tile with the given name. */
+    interface Loader<T> {
+        /**
+         * @param name The name of the tile.
+         * @return The loaded tile, or null if there is no such tile.
+         * @throws IOException If the tile could not be read.
+         */
+        T load(String name) throws IOException;
+    }
+
+    /** Tiles by name, in order of last access, so the eldest is evicted first. */
+    private final LinkedHashMap<String, T> tiles =
+            new LinkedHashMap<>(256, 0.75f, true);
+    /** Prefetched tiles that get has not asked for yet; guarded by the lock on tiles. */
+    private final Set<String> prefetched = new HashSet<>();
+    /** Loads in progress, by tile name. */
+    private final ConcurrentHashMap<String, FutureTask<T>> loading =
+            new ConcurrentHashMap<>();
+    private final Loader<T> loader;
+    private final ToLongFunction<? super T> weigher;
+    private final long capacity;
+    /** Bytes taken by the tiles in the cache; guarded by the lock on tiles. */
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     * @param loader Loads tiles that are not in the cache.
+     * @param weigher The number of bytes a loaded tile takes up, such as weigh for images.
+     * @param capacity The largest number of bytes the loaded tiles may take up.
+     */
+    TileCache(Loader<T> loader, ToLongFunction<? super T> weigher, long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative: " + capacity);
+        }
+        this.loader = loader;
+        this.weigher = weigher;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a tile, loading it if it is not in the cache.
+     * @param name The name of the tile.
+     * @return The tile, or null if the loader found none.
+     * @throws IOException If the tile could not be loaded.
+     */
+    T get(String name) throws IOException {
+        synchronized (tiles) {
+            T tile = tiles.get(name);
+            if (tile != null) {
+                hits.increment();
+                if (prefetched.remove(name)) {
+                    prefetchHits.increment();
+                }
+                return tile;
+            }
+        }
+        misses.increment();
+        T tile = await(name, false);
+        synchronized (tiles) {
+            /* A prefetch this call had to wait for did not save it the load. */
+            prefetched.remove(name);
+        }
+        return tile;
+    }
+
+    /**
+     * Loads a tile into the cache ahead of the first request for it, unless it is there
+     * already. Neither hits nor misses are counted.
+     * @param name The name of the tile.
+     * @return Whether the tile is now in the cache or was loaded.
+     * @throws IOException If the tile could not be loaded.
+     */
+    boolean prefetch(String name) throws IOException {
+        if (contains(name)) {
+            return true;
+        }
+        return await(name, true) != null;
+    }
+
+    /**
+     * Whether a tile is in the cache. Neither hits nor misses are counted, and the tile does
+     * not become more recently used.
+     * @param name The name of the tile.
+     */
+    boolean contains(String name) {
+        synchronized (tiles) {
+            return tiles.containsKey(name);
+        }
+    }
+
+    /**
+     * Loads a tile that missed the cache, or waits for the load already in progress.
+     * @param prefetch Whether the load, if this call starts one, is a prefetch.
+     */
+    private T await(String name, boolean prefetch) throws IOException {
+        FutureTask<T> task = new FutureTask<>(() -> load(name, prefetch));
+        FutureTask<T> running = loading.putIfAbsent(name, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(name, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for tile " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not load tile " + name, e.getCause());
+        }
+    }
+
+    /**
+     * Loads a tile and adds it to the cache. Only called by the one thread whose task
+     * won the race in get, so each miss loads the tile once.
+     */
+    private T load(String name, boolean prefetch) throws IOException {
+        synchronized (tiles) {
+            /* Another load of this tile may have finished since the caller missed. */
+            T tile = tiles.get(name);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        loads.increment();
+        T tile = loader.load(name);
+        if (tile != null) {
+            put(name, tile, prefetch);
+        }
+        return tile;
+    }
+
+    private void put(String name, T tile, boolean prefetch) {
+        long size = weigher.applyAsLong(tile);
+        if (size > capacity) {
+            return;
+        }
+        synchronized (tiles) {
+            T old = tiles.put(name, tile);
+            bytes += size - (old == null ? 0 : weigher.applyAsLong(old));
+            if (prefetch) {
+                prefetched.add(name);
+                prefetches.increment();
+            }
+            Iterator<Map.Entry<String, T>> eldest = tiles.entrySet().iterator();
+            while (bytes > capacity) {
+                Map.Entry<String, T> evicted = eldest.next();
+                eldest.remove();
+                bytes -= weigher.applyAsLong(evicted.getValue());
+                prefetched.remove(evicted.getKey());
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Loads tiles ahead of the first requests for them, for example the shallow depths
+     * every session starts out with. Tiles that cannot be loaded are skipped.
+     * @param names The names of the tiles.
+     * @return The number of tiles that are now cached or were loaded.
+     */
+    int warmUp(Iterable<String> names) {
+        int loaded = 0;
+        for (String name : names) {
+            try {
+                if (get(name) != null) {
+                    loaded += 1;
+                }
+            } catch (IOException e) {
+                System.out.println("Could not warm up tile " + name + ": " + e.getMessage());
+            }
+        }
+        return loaded;
+    }
+
+    /** Number of bytes a decoded image takes up. */
+    static long weigh(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    /** Number of tiles in the cache. */
+    int size() {
+        synchronized (tiles) {
+            return tiles.size();
+        }
+    }
+
+    /** Number of bytes the tiles in the cache take up. */
+    long byteSize() {
+        synchronized (tiles) {
+            return bytes;
+        }
+    }
+
+    /** Number of calls to get that found their tile in the cache. */
+    long hits() {
+        return hits.sum();
+    }
+
+    /** Number of calls to get that did not find their tile in the cache. */
+    long misses() {
+        return misses.sum();
+    }
+
+    /** Number of times the loader was called. */
+    long loads() {
+        return loads.sum();
+    }
+
+    /** Number of tiles evicted to make room for others. */
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /** Number of tiles prefetch loaded into the cache. */
+    long prefetches() {
+        return prefetches.sum();
+    }
+
+    /** Number of prefetched tiles that get later found in the cache. */
+    long prefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tiles, %.1f MB; %d hits, %d misses, %d loads, %d evictions; "
+                + "%d of %d prefetches hit", size(), byteSize() / 1e6, hits(), misses(), loads(),
+                evictions(), prefetchHits(), prefetches());
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The tile images on disk, for serving them to browsers one by one instead of stitching
+ * them into rasters. Tiles are static files that never change while the server runs, so
+ * every response can carry a strong ETag and let browsers and proxies keep the tile for a
+ * long time; a client that asks again with a matching If-None-Match gets 304 Not Modified.
+ * Tile files are sent as they are, without decoding and re-encoding the image, from a cache
+ * of their contents that is filled ahead of requests by a TilePrefetcher.
+ */
+final class TileFiles {
+    /** Tiles never change, so clients may keep them for a year without asking again. */
+    static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    private final File root;
+
+    /**
+     * @param root The folder the tiles are in, such as MapServer's IMG_ROOT.
+     */
+    TileFiles(String root) {
+        this.root = new File(root);
+    }
+
+    /**
+     * Returns the file of a tile.
+     * @param depth The depth of the tile.
+     * @param x The column of the tile.
+     * @param y The row of the tile.
+     * @return The file, which need not exist.
+     * @throws IllegalArgumentException If there is no such tile at any depth of the map.
+     */
+    File file(int depth, int x, int y) {
+        if (depth < 0 || depth > Rasterer.MAX_DEPTH) {
+            throw new IllegalArgumentException("No tiles at depth " + depth);
+        }
+        if (x < 0 || y < 0 || x >= 1 << depth || y >= 1 << depth) {
+            throw new IllegalArgumentException("No tile " + x + ", " + y + " at depth " + depth);
+        }
+        return new File(root, Rasterer.tileName(depth, x, y));
+    }
+
+    /**
+     * A strong entity tag for the current contents of a file, made of its length and the
+     * time it was last modified, so it needs no read of the file.
+     * @param file The file.
+     * @return The quoted entity tag.
+     */
+    static String etag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    /**
+     * Whether a client already has the current version of a file, by the weak comparison
+     * that If-None-Match calls for.
+     * @param ifNoneMatch The If-None-Match header of the request, or null if it had none.
+     * @param etag The entity tag of the file.
+     * @return Whether the response can be 304 Not Modified.
+     */
+    static boolean notModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a tile file whole, for the cache of tile files.
+     * @param name The name of the tile, as Rasterer.tileName gives it.
+     * @return The contents of the file, or null if there is no such file.
+     * @throws IOException If the file could not be read.
+     */
+    byte[] read(String name) throws IOException {
+        File file = new File(root, name);
+        return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads the tiles a client is likely to ask for next into the tile cache, in the background,
+ * after each raster is served: first the ring of tiles around the raster, which panning
+ * brings into view, then the tiles under the raster one depth deeper, which zooming in does.
+ * <p>
+ * Prefetching never holds up a request. Tiles are loaded by a few daemon threads from a
+ * bounded queue, and when the queue is full the rest of a raster's tiles are dropped, so
+ * a burst of requests sheds prefetch work instead of piling it up. Tiles already cached or
+ * queued are skipped. Since clients move on quickly, a queued tile is stale and skipped too
+ * once a few later rasters have covered the area around its raster, which is what a client
+ * panning or zooming from there asks for. Rasters of other areas, such as those of other
+ * clients, do not make it stale. All methods are thread-safe.
+ */
+final class TilePrefetcher {
+    /** Number of recent rasters whose areas are remembered for deciding what is stale. */
+    private static final int HISTORY = 256;
+
+    private final TileCache<?> cache;
+    private final ThreadPoolExecutor executor;
+    /** Number of later rasters over the area of a raster after which its tiles are stale. */
+    private final int liveRasters;
+    /** Number of rasters prefetch was called for. */
+    private final AtomicLong rasters = new AtomicLong();
+    /* The areas around the last HISTORY rasters, with raster number k at k % HISTORY;
+     * guarded by the lock on areas. */
+    private final double[][] areas = new double[HISTORY][];
+    private final long[] areaRasters = new long[HISTORY];
+    /** Tiles in the queue, so no tile is queued twice. */
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a prefetcher and starts its threads.
+     * @param cache The cache to load tiles into.
+     * @param threads The number of threads that load tiles.
+     * @param queueCapacity The largest number of tiles waiting to be loaded.
+     * @param liveRasters The number of later rasters over the area around a raster after
+     *                    which the tiles still queued for it are skipped.
+     */
+    TilePrefetcher(TileCache<?> cache, int threads, int queueCapacity, int liveRasters) {
+        if (threads < 1 || queueCapacity < 1 || liveRasters < 1) {
+            throw new IllegalArgumentException("The threads, queue capacity and live rasters "
+                    + "must be positive.");
+        }
+        this.cache = cache;
+        this.liveRasters = liveRasters;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "tile-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Queues the tiles around a raster that was just served, and returns at once.
+     * @param raster The raster.
+     * @return The number of tiles queued.
+     */
+    int prefetch(Rasterer.Raster raster) {
+        if (!raster.success()) {
+            return 0;
+        }
+        long number = rasters.incrementAndGet();
+        double[] area = area(raster);
+        synchronized (areas) {
+            int slot = (int) (number % HISTORY);
+            areas[slot] = area;
+            areaRasters[slot] = number;
+        }
+        int count = 0;
+        for (String name : tilesAround(raster)) {
+            if (cache.contains(name) || !queued.add(name)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> load(name, number, area));
+            } catch (RejectedExecutionException e) {
+                /* The queue is full; the rest of this raster's tiles are left out. */
+                queued.remove(name);
+                rejected.increment();
+                break;
+            }
+            submitted.increment();
+            count += 1;
+        }
+        return count;
+    }
+
+    private void load(String name, long raster, double[] area) {
+        queued.remove(name);
+        if (isStale(raster, area)) {
+            stale.increment();
+            return;
+        }
+        try {
+            cache.prefetch(name);
+        } catch (IOException e) {
+            failed.increment();
+        }
+    }
+
+    /**
+     * Whether at least liveRasters rasters served after a raster covered some of the area
+     * around it. Rasters too old to be remembered are not counted.
+     * @param raster The number of the raster.
+     * @param area The area around it, see area.
+     */
+    private boolean isStale(long raster, double[] area) {
+        int later = 0;
+        synchronized (areas) {
+            for (int i = 0; i < HISTORY; i++) {
+                double[] other = areas[i];
+                if (areaRasters[i] > raster && other[0] < area[2] && area[0] < other[2]
+                        && other[3] < area[1] && area[3] < other[1]) {
+                    later += 1;
+                }
+            }
+        }
+        return later >= liveRasters;
+    }
+
+    /**
+     * The area a raster's tiles are prefetched for: the raster and its ring of tiles.
+     * @return The west, north, east and south edges of the area.
+     */
+    static double[] area(Rasterer.Raster raster) {
+        double tileWidth = (raster.lrLon() - raster.ulLon()) / raster.columns();
+        double tileHeight = (raster.ulLat() - raster.lrLat()) / raster.rows();
+        return new double[] {raster.ulLon() - tileWidth, raster.ulLat() + tileHeight,
+            raster.lrLon() + tileWidth, raster.lrLat() - tileHeight};
+    }
+
+    /**
+     * The tiles to prefetch for a raster, most likely needed first: the ring of tiles just
+     * outside it at its depth, then the tiles covering it one depth deeper, if there is one.
+     * @param raster A raster whose query succeeded.
+     * @return The names of the tiles.
+     */
+    static List<String> tilesAround(Rasterer.Raster raster) {
+        List<String> names = new ArrayList<>();
+        int depth = raster.depth();
+        int last = (1 << depth) - 1;
+        for (int y = Math.max(0, raster.yMin() - 1); y <= Math.min(last, raster.yMax() + 1); y++) {
+            boolean edgeRow = y < raster.yMin() || y > raster.yMax();
+            for (int x = Math.max(0, raster.xMin() - 1); x <= Math.min(last, raster.xMax() + 1);
+                 x++) {
+                if (edgeRow || x < raster.xMin() || x > raster.xMax()) {
+                    names.add(Rasterer.tileName(depth, x, y));
+                }
+            }
+        }
+        if (depth < Rasterer.MAX_DEPTH) {
+            for (int y = 2 * raster.yMin(); y <= 2 * raster.yMax() + 1; y++) {
+                for (int x = 2 * raster.xMin(); x <= 2 * raster.xMax() + 1; x++) {
+                    names.add(Rasterer.tileName(depth + 1, x, y));
+                }
+            }
+        }
+        return names;
+    }
+
+    /** Stops the threads; queued tiles are not loaded. */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Number of tiles queued for loading. */
+    long submitted() {
+        return submitted.sum();
+    }
+
+    /** Number of times the queue was full and the rest of a raster's tiles were dropped. */
+    long rejected() {
+        return rejected.sum();
+    }
+
+    /** Number of queued tiles skipped because later rasters had covered their area. */
+    long stale() {
+        return stale.sum();
+    }
+
+    /** Number of queued tiles that could not be loaded. */
+    long failed() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tiles queued, %d rejected, %d stale, %d failed; "
+                + "%d of %d prefetched tiles hit", submitted(), rejected(), stale(), failed(),
+                cache.prefetchHits(), cache.prefetches());
+    }
+}
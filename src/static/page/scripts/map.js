@@ -29,7 +29,12 @@ $(function() {
     // psueod-lock
     var getInProgress = false;
     var route_params = {};
+    var route_id; // Id the server keeps our route under, so rasters draw our route only.
     var map;
+    var map_url; // Object URL of the current raster, released when it is replaced.
+    var route_layer; // SVG our route is drawn on, so rasters never need to include it.
+    var route_coordinates = []; // [lon, lat] points of our route.
+    var geometry_level; // Depth route_coordinates were simplified for.
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -44,6 +49,10 @@ $(function() {
     const base_move_delta = 0.03;
     const max_level = 7;
     const min_level = 2; // Level limits based on pulled data
+    /* Lay the render grid out here from /tiles, which browsers cache, and draw the route as
+       a vector layer, instead of fetching one stitched image from /raster.png. */
+    const client_tiles = true;
+    const tile_size = 256;
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
     var current_level = 0;
@@ -54,8 +63,11 @@ $(function() {
     } else {
         host = 'http://localhost:4567';
     }
-    const raster_server = host + '/raster';
+    const raster_png_server = host + '/raster.png';
+    const raster_grid_server = host + '/raster_grid';
+    const tiles_server = host + '/tiles/';
     const route_server = host + '/route';
+    const route_geometry_server = host + '/route_geometry';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
 
@@ -86,6 +98,11 @@ $(function() {
         ty -= delta * (1 / hdpp);
     }
 
+    /* Copy of request parameters that also names our route, if we have one. */
+    function withRouteId(data) {
+        return route_id ? $.extend({}, data, {route_id: route_id}) : data;
+    }
+
     function removeMarkers() {
         for (var i = 0; i < markers.length; i++) {
             markers[i].element.remove();
@@ -101,60 +118,177 @@ $(function() {
         }
     }
 
-    function updateImg(successCallback) {
-        /* Synchronous ajax call for image update.
-           Could be async for better experience but then user spam locks up the server.
-           Uses a small setTimeout since synchronous AJAX freezes UI updates, including
-           updates which are called before ajax() is called #sigh #why #justjavascriptthings */
+    /* Take on the bounds of a new raster and recompute the transforms that depend on them. */
+    function setRaster(ullon, ullat, lrlon, lrlat, depth, width, height) {
+        ullon_bound = ullon;
+        ullat_bound = ullat;
+        lrlon_bound = lrlon;
+        lrlat_bound = lrlat;
+        current_level = depth;
+        img_w = width;
+        img_h = height;
+        wdpp = (lrlon_bound - ullon_bound) / img_w;
+        hdpp = (ullat_bound - lrlat_bound) / img_h;
+        // Compute initial transform
+        tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+        ty = (params.ullat - ullat_bound) * (1 / hdpp);
+        rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+        rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+        updateMarkers();
+        drawRouteLayer();
+    }
+
+    /* Place an img for each tile of the render grid; tile names are dD_xX_yY.png. */
+    function layoutTiles(grid) {
+        const $tiles = $(map).empty();
+        for (var r = 0; r < grid.length; r++) {
+            for (var c = 0; c < grid[r].length; c++) {
+                const name = /^d(\d+)_x(\d+)_y(\d+)\.png$/.exec(grid[r][c]);
+                $('<img/>', {src: tiles_server + name[1] + '/' + name[2] + '/' + name[3] + '.png'})
+                    .css({left: c * tile_size, top: r * tile_size})
+                    .appendTo($tiles);
+            }
+        }
+    }
+
+    /* Draw our route over the current raster, in the raster's pixel coordinates. */
+    function drawRouteLayer() {
+        if (!img_w) {
+            return;
+        }
+        if (route_id && geometry_level !== current_level) {
+            updateRouteGeometry();
+        }
+        route_layer.setAttribute('width', img_w);
+        route_layer.setAttribute('height', img_h);
+        const points = route_coordinates.map(function(p) {
+            return (p[0] - ullon_bound) / wdpp + ',' + (ullat_bound - p[1]) / hdpp;
+        });
+        $(route_layer).children('polyline').attr('points', points.join(' '));
+    }
+
+    /* Decode an encoded polyline (lat, lon pairs in 1e-5 degrees) into [lon, lat] points. */
+    function decodePolyline(encoded) {
+        const points = [];
+        var index = 0, lat = 0, lon = 0;
+        while (index < encoded.length) {
+            const delta = [0, 0];
+            for (var k = 0; k < 2; k++) {
+                var shift = 0, result = 0, b;
+                do {
+                    b = encoded.charCodeAt(index++) - 63;
+                    result |= (b & 0x1f) << shift;
+                    shift += 5;
+                } while (b >= 0x20);
+                delta[k] = (result & 1) ? ~(result >> 1) : (result >> 1);
+            }
+            lat += delta[0];
+            lon += delta[1];
+            points.push([lon * 1e-5, lat * 1e-5]);
+        }
+        return points;
+    }
+
+    /* Fetch the shape of our route, simplified for the depth we are now at. */
+    function updateRouteGeometry() {
+        const level = current_level;
+        geometry_level = level;
+        $.get({
+            async: true,
+            url: route_geometry_server,
+            data: {route_id: route_id, geometry: 'polyline', depth: level},
+            dataType: 'json',
+            success: function(data) {
+                if (data.geometry_success && level === geometry_level) {
+                    route_coordinates = decodePolyline(data.geometry);
+                    drawRouteLayer();
+                }
+            },
+        });
+    }
+
+    function showError() {
+        getInProgress = false;
+        $loadingStatus.hide();
+        $errorStatus.show();
+        setTimeout(function() {
+            $errorStatus.fadeOut();
+        }, 4000);
+    }
+
+    function updateTiles(successCallback) {
+        /* The server only works out which tiles to show; the route is not drawn into them. */
         $loadingStatus.show();
         getInProgress = true;
         $.get({
             async: true,
-            url: raster_server,
+            url: raster_grid_server,
             data: params,
+            dataType: 'json',
             success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingstatus.hide();
-                }
-            },
-            error: function() {
+                $loadingStatus.hide();
                 getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
+                if (!data.query_success) {
+                    return;
+                }
+                layoutTiles(data.render_grid);
+                setRaster(data.raster_ul_lon, data.raster_ul_lat, data.raster_lr_lon,
+                          data.raster_lr_lat, data.depth, data.raster_width,
+                          data.raster_height);
+                if (successCallback) {
+                    successCallback();
+                }
             },
-            dataType: 'json'
+            error: showError,
         });
     }
 
+    function updateImg(successCallback) {
+        if (client_tiles) {
+            updateTiles(successCallback);
+            return;
+        }
+        /* Asynchronous request for the PNG itself; the raster bounds come back in headers,
+           which saves the Base64 and Json encoding of the image. */
+        $loadingStatus.show();
+        getInProgress = true;
+        const xhr = new XMLHttpRequest();
+        xhr.open('GET', raster_png_server + '?' + $.param(params));
+        xhr.responseType = 'blob';
+        xhr.onload = function() {
+            if (xhr.status !== 200 && xhr.status !== 204) {
+                xhr.onerror();
+                return;
+            }
+            $loadingStatus.hide();
+            getInProgress = false;
+            if (xhr.getResponseHeader('X-Raster-Query-Success') !== 'true') {
+                return;
+            }
+            if (map_url) {
+                URL.revokeObjectURL(map_url);
+            }
+            map_url = URL.createObjectURL(xhr.response);
+            map.src = map_url;
+            console.log('Updating map with image size: ' + xhr.response.size);
+            setRaster(parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lon')),
+                      parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lat')),
+                      parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lon')),
+                      parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lat')),
+                      parseInt(xhr.getResponseHeader('X-Raster-Depth'), 10),
+                      parseInt(xhr.getResponseHeader('X-Raster-Width'), 10),
+                      parseInt(xhr.getResponseHeader('X-Raster-Height'), 10));
+            if (successCallback) {
+                successCallback();
+            }
+        };
+        xhr.onerror = showError;
+        xhr.send();
+    }
+
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        route_layer.style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -170,10 +304,14 @@ $(function() {
         $.get({
             async: true,
             url: route_server,
-            data: route_params,
+            data: withRouteId($.extend({geometry: 'polyline', depth: current_level},
+                                       route_params)),
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                route_id = data.route_id;
+                route_coordinates = decodePolyline(data.geometry);
+                geometry_level = current_level;
+                drawRouteLayer();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -312,7 +450,14 @@ $(function() {
 
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
-    map = document.getElementById('map');
+    if (client_tiles) {
+        $('#map').hide();
+        map = document.getElementById('tiles');
+    } else {
+        $('#tiles').hide();
+        map = document.getElementById('map');
+    }
+    route_layer = document.getElementById('route-layer');
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
@@ -407,10 +552,13 @@ $(function() {
         $.get({
             async: true,
             url: clear_route,
+            data: withRouteId({}),
             success: function() {
+                route_id = undefined;
+                route_coordinates = [];
+                drawRouteLayer();
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
-                update();
             },
         });
     });
@@ -0,0 +1,68 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that bidirectional A* returns paths of exactly the same length as unidirectional
+ * A*, and that those paths are real paths through the graph.
+ */
+public class TestBidirectionalSearch {
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int NUM_TESTS = 8;
+    private static final int NUM_RANDOM_TESTS = 500;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testPathParams() throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        int lineIdx = 2; // ignore comment lines
+        for (int i = 0; i < NUM_TESTS; i++) {
+            checkQuery(Double.parseDouble(lines.get(lineIdx)),
+                    Double.parseDouble(lines.get(lineIdx + 1)),
+                    Double.parseDouble(lines.get(lineIdx + 2)),
+                    Double.parseDouble(lines.get(lineIdx + 3)));
+            lineIdx += 4;
+        }
+    }
+
+    @Test
+    public void testRandomPairs() {
+        Random r = new Random(6);
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            checkQuery(TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r));
+        }
+    }
+
+    @Test
+    public void testSameStartAndDestination() {
+        long v = graph.vertices().iterator().next();
+        List<Long> path = Router.shortestPath(graph, graph.lon(v), graph.lat(v),
+                graph.lon(v), graph.lat(v), Router.Algorithm.BIDIRECTIONAL);
+        assertEquals(1, path.size());
+        assertEquals(v, (long) path.get(0));
+    }
+
+    private void checkQuery(double stlon, double stlat, double destlon, double destlat) {
+        TestPaths.checkQuery(graph, Router.Algorithm.BIDIRECTIONAL, stlon, stlat, destlon,
+                destlat);
+    }
+}
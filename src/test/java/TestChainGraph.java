@@ -0,0 +1,150 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that A* on the degree-2 chain compressed graph finds paths exactly as long as A*
+ * on the full graph, and that the paths it expands are real paths through the full graph.
+ */
+public class TestChainGraph {
+    private static final int NUM_RANDOM_TESTS = 500;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graph.setChainGraph(ChainGraph.build(graph.compact()));
+        initialized = true;
+    }
+
+    @Test
+    public void testCompresses() {
+        CompactGraph cg = graph.compact();
+        ChainGraph chains = graph.chainGraph();
+        int expected = 0;
+        for (int v = 0; v < cg.size(); v++) {
+            expected += cg.degree(v) == 2 ? 0 : 1;
+        }
+        assertTrue(chains.size() >= expected);
+        assertTrue(chains.size() < cg.size());
+        assertTrue(chains.edgeCount() < cg.edgeCount());
+    }
+
+    @Test
+    public void testRandomPairs() {
+        Random r = new Random(14);
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            checkQuery(graph, TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r));
+        }
+    }
+
+    @Test
+    public void testVertexPairs() {
+        /* Exact vertices, so that starts and destinations fall inside chains, often the
+         * same one. */
+        CompactGraph cg = graph.compact();
+        Random r = new Random(15);
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            int s = r.nextInt(cg.size());
+            int t = r.nextInt(10) == 0 ? s : r.nextInt(cg.size());
+            if (i % 2 == 0) {
+                /* A vertex near s, likely on its chain. */
+                t = s;
+                for (int k = r.nextInt(5); k > 0; k--) {
+                    t = cg.edgeTarget(cg.edgeBegin(t) + r.nextInt(cg.degree(t)));
+                }
+            }
+            checkVertices(graph, s, t);
+        }
+    }
+
+    @Test
+    public void testRingsAndLoops() {
+        /* 0-1-2-3-0 is a ring of degree-2 vertices, 4-5 a single segment, and 6-7-8-9-6 a
+         * loop hanging off 6, which also leads to 10. */
+        double[][] coords = {
+            {0, 0}, {0.001, 0}, {0.001, 0.001}, {0, 0.001},
+            {0.01, 0}, {0.011, 0},
+            {0.02, 0}, {0.021, 0}, {0.023, 0.002}, {0.021, 0.001}, {0.019, 0}
+        };
+        int[][] edges = {{0, 1}, {1, 2}, {2, 3}, {3, 0}, {4, 5}, {6, 7}, {7, 8}, {8, 9},
+            {9, 6}, {6, 10}};
+        GraphDB g = smallGraph(coords, edges);
+        g.setChainGraph(ChainGraph.build(g.compact()));
+        assertEquals(5, g.chainGraph().size());
+        for (int s = 0; s < coords.length; s++) {
+            for (int t = 0; t < coords.length; t++) {
+                checkVertices(g, g.compact().index(100 + s), g.compact().index(100 + t));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherGraph() {
+        GraphDB other = new GraphDB(OSM_DB_PATH);
+        try {
+            other.setChainGraph(graph.chainGraph());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("The chains were built for another graph", e.getMessage());
+        }
+    }
+
+    /** Builds a graph whose vertex i has id 100 + i and the given coordinates. */
+    private static GraphDB smallGraph(double[][] coords, int[][] edges) {
+        int n = coords.length;
+        List<List<Integer>> adj = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            adj.add(new ArrayList<>());
+        }
+        for (int[] e : edges) {
+            adj.get(e[0]).add(e[1]);
+            adj.get(e[1]).add(e[0]);
+        }
+        long[] ids = new long[n];
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[2 * edges.length];
+        for (int v = 0; v < n; v++) {
+            ids[v] = 100 + v;
+            lons[v] = coords[v][0];
+            lats[v] = coords[v][1];
+            Collections.sort(adj.get(v));
+            offsets[v + 1] = offsets[v] + adj.get(v).size();
+            for (int k = 0; k < adj.get(v).size(); k++) {
+                targets[offsets[v] + k] = adj.get(v).get(k);
+            }
+        }
+        CompactGraph cg = new CompactGraph(ids, lons, lats, offsets, targets,
+                new int[targets.length], new String[] {""});
+        return new GraphDB(cg, KdTree.build(cg), new ArrayList<>());
+    }
+
+    private static void checkVertices(GraphDB g, int s, int t) {
+        CompactGraph cg = g.compact();
+        checkQuery(g, cg.lon(s), cg.lat(s), cg.lon(t), cg.lat(t));
+    }
+
+    private static void checkQuery(GraphDB g, double stlon, double stlat, double destlon,
+                                   double destlat) {
+        List<Long> path = TestPaths.checkQuery(g, Router.Algorithm.COMPRESSED_CHAINS, stlon,
+                stlat, destlon, destlat);
+        assertEquals("Path visits a vertex twice", new HashSet<>(path).size(), path.size());
+    }
+}
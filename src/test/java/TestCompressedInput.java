@@ -0,0 +1,159 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that gzip and bzip2 compressed OSM files, and uncompressed ones read with parallel
+ * node parsing, load into exactly the graph that a plain sequential read builds.
+ */
+public class TestCompressedInput {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        File gz = File.createTempFile("berkeley", ".osm.xml.gz");
+        gz.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            Files.copy(Paths.get(OSM_DB_PATH), out);
+        }
+        TestGraphs.checkSameGraph(graph, new GraphDB(gz.getPath()));
+        TestGraphs.checkSameGraph(graph, new GraphDB(gz.getPath(),
+                GraphLoader.Options.defaults().twoPass(true)));
+    }
+
+    @Test
+    public void testBzip2() throws Exception {
+        File bz2 = File.createTempFile("tiny", ".osm.xml.bz2");
+        bz2.deleteOnExit();
+        try (OutputStream out = new BZip2CompressorOutputStream(new FileOutputStream(bz2))) {
+            Files.copy(Paths.get(OSM_DB_PATH_TINY), out);
+        }
+        TestGraphs.checkSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(bz2.getPath()));
+    }
+
+    @Test
+    public void testParallelNodes() {
+        for (int threads : new int[] {2, 3, 8}) {
+            TestGraphs.checkSameGraph(graph, new GraphDB(OSM_DB_PATH,
+                    GraphLoader.Options.defaults().parallel(threads)));
+            TestGraphs.checkSameGraph(new GraphDB(OSM_DB_PATH_TINY), new GraphDB(OSM_DB_PATH_TINY,
+                    GraphLoader.Options.defaults().parallel(threads)));
+        }
+    }
+
+    @Test
+    public void testParallelEntities() throws Exception {
+        File osm = File.createTempFile("entities", ".osm.xml");
+        osm.deleteOnExit();
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n"
+                + " <node id=\"1\" lat=\"37.87\" lon=\"-122.26\">\n"
+                + "  <tag k=\"name\" v=\"Caf&#233; &amp; Bar &quot;Z&quot;\"/>\n"
+                + " </node>\n"
+                + " <node id='2' lat='37.88' lon='-122.25'/>\n"
+                + " <way id=\"3\">\n  <nd ref=\"1\"/>\n  <nd ref=\"2\"/>\n"
+                + "  <tag k=\"highway\" v=\"residential\"/>\n </way>\n</osm>\n";
+        Files.write(osm.toPath(), xml.getBytes("UTF-8"));
+        GraphDB sequential = new GraphDB(osm.getPath());
+        GraphDB parallel = new GraphDB(osm.getPath(),
+                GraphLoader.Options.defaults().parallel(2));
+        TestGraphs.checkSameGraph(sequential, parallel);
+        assertEquals(2, parallel.compact().size());
+        assertEquals("Caf\u00e9 & Bar \"Z\"", parallel.locations().get(0).name);
+    }
+
+    @Test
+    public void testPipelineCopiesInput() throws Exception {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        try (InputStream in = new PipelinedInputStream(new ByteArrayInputStream(data), 1000, 2)) {
+            byte[] copy = new byte[data.length];
+            int n = 0;
+            int read;
+            while ((read = in.read(copy, n, Math.min(777, copy.length - n))) > 0) {
+                n += read;
+            }
+            assertEquals(data.length, n);
+            assertEquals(-1, in.read());
+            assertArrayEquals(data, copy);
+        }
+    }
+
+    @Test
+    public void testPipelineRethrowsErrors() throws Exception {
+        InputStream failing = new InputStream() {
+            private int left = 5000;
+
+            @Override
+            public int read() throws IOException {
+                if (left == 0) {
+                    throw new IOException("broken");
+                }
+                left -= 1;
+                return 7;
+            }
+        };
+        try (InputStream in = new PipelinedInputStream(failing, 1024, 2)) {
+            byte[] buf = new byte[100];
+            int n = 0;
+            try {
+                while (true) {
+                    n += Math.max(0, in.read(buf));
+                }
+            } catch (IOException e) {
+                assertEquals("broken", e.getMessage());
+            }
+            assertEquals(5000, n);
+        }
+    }
+
+    @Test
+    public void testPipelineCloseEarly() throws Exception {
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 1;
+            }
+        };
+        InputStream in = new PipelinedInputStream(endless, 16, 1);
+        assertEquals(1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testParallelRejectsZeroThreads() {
+        try {
+            GraphLoader.Options.defaults().parallel(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Thread count must be positive: 0", e.getMessage());
+        }
+    }
+}
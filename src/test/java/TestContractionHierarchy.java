@@ -0,0 +1,72 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks contraction hierarchy queries against plain A*: both must find paths of the same
+ * length, and the unpacked hierarchy path must be a real path through the graph.
+ */
+public class TestContractionHierarchy {
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int NUM_TESTS = 8;
+    private static final int NUM_RANDOM_TESTS = 500;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graph.setContractionHierarchy(ContractionHierarchy.build(graph.compact()));
+        initialized = true;
+    }
+
+    @Test
+    public void testPathParams() throws Exception {
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        int lineIdx = 2; // ignore comment lines
+        for (int i = 0; i < NUM_TESTS; i++) {
+            checkQuery(Double.parseDouble(lines.get(lineIdx)),
+                    Double.parseDouble(lines.get(lineIdx + 1)),
+                    Double.parseDouble(lines.get(lineIdx + 2)),
+                    Double.parseDouble(lines.get(lineIdx + 3)));
+            lineIdx += 4;
+        }
+    }
+
+    @Test
+    public void testRandomPairs() {
+        Random r = new Random(4);
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            checkQuery(TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r));
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("berkeley", ".ch");
+        file.deleteOnExit();
+        graph.contractionHierarchy().save(file.getPath());
+        ContractionHierarchy loaded = ContractionHierarchy.load(file.getPath());
+        assertTrue(loaded.matches(graph.compact()));
+        assertEquals(graph.contractionHierarchy().shortcutCount(), loaded.shortcutCount());
+    }
+
+    private void checkQuery(double stlon, double stlat, double destlon, double destlat) {
+        TestPaths.checkQuery(graph, Router.Algorithm.CONTRACTION_HIERARCHIES, stlon, stlat, destlon,
+                destlat);
+    }
+}
@@ -0,0 +1,116 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the trig-free distance bound used as the search heuristic never exceeds the
+ * haversine distance, stays close to it, and leaves the routes the searches find unchanged.
+ */
+public class TestDistanceBound {
+    private static final int NUM_RANDOM_TESTS = 10000;
+    private static final double THRESHOLD = 1e-9;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testAdmissible() {
+        CompactGraph cg = graph.compact();
+        Random r = new Random(16);
+        double worst = 1;
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            long v = cg.id(r.nextInt(cg.size()));
+            long w = cg.id(r.nextInt(cg.size()));
+            double distance = graph.distance(v, w);
+            double bound = graph.distanceBound(v, w);
+            assertTrue(bound >= 0);
+            assertTrue(bound + " > " + distance, bound <= distance);
+            if (distance > 0) {
+                worst = Math.min(worst, bound / distance);
+            }
+        }
+        assertTrue("The bound is too loose to guide a search: " + worst, worst > 0.99);
+    }
+
+    @Test
+    public void testAdmissibleAcrossTheBox() {
+        /* Corners of the bounding box are the worst case for the longitude scale. */
+        CompactGraph cg = graph.compact();
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < cg.size(); v++) {
+            minLon = Math.min(minLon, cg.lon(v));
+            maxLon = Math.max(maxLon, cg.lon(v));
+            minLat = Math.min(minLat, cg.lat(v));
+            maxLat = Math.max(maxLat, cg.lat(v));
+        }
+        double[][] corners = {{minLon, minLat}, {minLon, maxLat}, {maxLon, minLat},
+            {maxLon, maxLat}};
+        for (double[] a : corners) {
+            for (double[] b : corners) {
+                assertTrue(cg.distanceBound(a[0], a[1], b[0], b[1])
+                        <= GraphDB.distance(a[0], a[1], b[0], b[1]));
+            }
+        }
+        Random r = new Random(17);
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            double lonV = minLon + r.nextDouble() * (maxLon - minLon);
+            double latV = minLat + r.nextDouble() * (maxLat - minLat);
+            double lonW = minLon + r.nextDouble() * (maxLon - minLon);
+            double latW = minLat + r.nextDouble() * (maxLat - minLat);
+            assertTrue(cg.distanceBound(lonV, latV, lonW, latW)
+                    <= GraphDB.distance(lonV, latV, lonW, latW));
+        }
+    }
+
+    @Test
+    public void testConsistent() {
+        CompactGraph cg = graph.compact();
+        Random r = new Random(18);
+        for (int i = 0; i < 20; i++) {
+            int t = r.nextInt(cg.size());
+            for (int v = 0; v < cg.size(); v++) {
+                double hv = cg.distanceBound(cg.lon(v), cg.lat(v), cg.lon(t), cg.lat(t));
+                for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                    int w = cg.edgeTarget(e);
+                    double hw = cg.distanceBound(cg.lon(w), cg.lat(w), cg.lon(t), cg.lat(t));
+                    assertTrue(hv <= cg.edgeLength(e) + hw);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoutesUnchanged() {
+        CompactGraph cg = graph.compact();
+        Random r = new Random(19);
+        for (int i = 0; i < 200; i++) {
+            double[] q = {TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r)};
+            double expected = TestPaths.dijkstra(cg, graph.closestIndex(q[0], q[1]),
+                    graph.closestIndex(q[2], q[3]), Router.Metric.DISTANCE);
+            for (Router.Algorithm algorithm : new Router.Algorithm[] {
+                Router.Algorithm.ASTAR, Router.Algorithm.BIDIRECTIONAL}) {
+                Router.PathResult actual = Router.search(graph, q[0], q[1], q[2], q[3],
+                        algorithm);
+                assertEquals(algorithm.toString(), expected, actual.distance(),
+                        expected * THRESHOLD);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every entry of a distance matrix equals the length of the shortest path
+ * between the same two locations, with and without a contraction hierarchy and whether the
+ * rows are computed sequentially or in parallel.
+ */
+public class TestDistanceMatrix {
+    private static final int NUM_SOURCES = 12;
+    private static final int NUM_TARGETS = 15;
+    private static final double DISTANCE_THRESHOLD = 1e-9;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static GraphDB graphWithCH;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graphWithCH = new GraphDB(OSM_DB_PATH);
+        graphWithCH.setContractionHierarchy(ContractionHierarchy.build(graphWithCH.compact()));
+        initialized = true;
+    }
+
+    @Test
+    public void testWithoutHierarchy() {
+        checkMatrix(graph, new Random(7), null);
+    }
+
+    @Test
+    public void testWithHierarchy() {
+        checkMatrix(graphWithCH, new Random(8), null);
+    }
+
+    @Test
+    public void testParallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            checkMatrix(graph, new Random(9), pool);
+            checkMatrix(graphWithCH, new Random(10), pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRepeatedPoints() {
+        List<double[]> points = new ArrayList<>();
+        Random r = new Random(11);
+        double[] p = {TestPoints.randomLon(r), TestPoints.randomLat(r)};
+        points.add(p);
+        points.add(p);
+        points.add(new double[] {TestPoints.randomLon(r), TestPoints.randomLat(r)});
+        double[][] distances = Router.distanceMatrix(graphWithCH, points, points);
+        assertEquals(0, distances[0][0], DISTANCE_THRESHOLD);
+        assertEquals(0, distances[0][1], DISTANCE_THRESHOLD);
+        assertEquals(distances[0][2], distances[1][2], DISTANCE_THRESHOLD);
+        assertEquals(distances[0][2], distances[2][0], DISTANCE_THRESHOLD);
+    }
+
+    @Test
+    public void testEmpty() {
+        List<double[]> points = randomPoints(new Random(12), 3);
+        assertEquals(0, Router.distanceMatrix(graph, new ArrayList<>(), points).length);
+        double[][] distances = Router.distanceMatrix(graph, points, new ArrayList<>());
+        assertEquals(3, distances.length);
+        assertEquals(0, distances[0].length);
+    }
+
+    private void checkMatrix(GraphDB g, Random r, ForkJoinPool pool) {
+        List<double[]> sources = randomPoints(r, NUM_SOURCES);
+        List<double[]> targets = randomPoints(r, NUM_TARGETS);
+        double[][] distances = pool == null ? Router.distanceMatrix(g, sources, targets)
+                : Router.distanceMatrix(g, sources, targets, pool);
+        assertEquals(NUM_SOURCES, distances.length);
+        for (int i = 0; i < NUM_SOURCES; i++) {
+            assertEquals(NUM_TARGETS, distances[i].length);
+            double[] s = sources.get(i);
+            for (int j = 0; j < NUM_TARGETS; j++) {
+                double[] t = targets.get(j);
+                Router.PathResult expected = Router.search(graph, s[0], s[1], t[0], t[1],
+                        Router.Algorithm.ASTAR);
+                assertEquals(expected.distance(), distances[i][j], DISTANCE_THRESHOLD);
+            }
+        }
+    }
+
+    private static List<double[]> randomPoints(Random r, int n) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            points.add(new double[] {TestPoints.randomLon(r), TestPoints.randomLat(r)});
+        }
+        return points;
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the streaming GraphLoader, in both its deferred and two-pass modes, builds
+ * exactly the graph that the SAX GraphBuildingHandler builds, and that the way filter can be
+ * replaced.
+ */
+public class TestGraphLoader {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testDeferredMatchesHandler() {
+        TestGraphs.checkSameGraph(GraphDB.parseWithHandler(OSM_DB_PATH, GraphLoader.HIGHWAYS),
+                new GraphDB(OSM_DB_PATH));
+    }
+
+    @Test
+    public void testTwoPassMatchesHandler() {
+        TestGraphs.checkSameGraph(GraphDB.parseWithHandler(OSM_DB_PATH, GraphLoader.HIGHWAYS),
+                new GraphDB(OSM_DB_PATH, GraphLoader.Options.defaults().twoPass(true)));
+    }
+
+    @Test
+    public void testTinyMatchesHandler() {
+        GraphDB handler = GraphDB.parseWithHandler(OSM_DB_PATH_TINY, GraphLoader.HIGHWAYS);
+        TestGraphs.checkSameGraph(handler, new GraphDB(OSM_DB_PATH_TINY));
+        TestGraphs.checkSameGraph(handler, new GraphDB(OSM_DB_PATH_TINY,
+                GraphLoader.Options.defaults().twoPass(true)));
+    }
+
+    /** Nodes out of id order, some listed twice, of which the last one counts. */
+    @Test
+    public void testUnsortedNodes() throws Exception {
+        Random r = new Random(11);
+        List<Integer> ids = new ArrayList<>();
+        StringBuilder way = new StringBuilder(" <way id='1'>\n");
+        for (int id = 1; id <= 500; id++) {
+            ids.add(id);
+            if (r.nextInt(5) == 0) {
+                ids.add(id);
+            }
+            way.append("  <nd ref='").append(id).append("'/>\n");
+        }
+        way.append("  <tag k='highway' v='residential'/>\n </way>\n");
+        for (boolean shuffle : new boolean[] {false, true}) {
+            if (shuffle) {
+                Collections.shuffle(ids, r);
+            }
+            StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n"
+                    + "<osm version='0.6'>\n");
+            for (int id : ids) {
+                xml.append(String.format(" <node id='%d' lat='%.6f' lon='%.6f'/>\n", id,
+                        37.85 + r.nextDouble() / 100, -122.27 + r.nextDouble() / 100));
+            }
+            xml.append(way).append("</osm>\n");
+            File osm = File.createTempFile("unsorted", ".osm.xml");
+            osm.deleteOnExit();
+            Files.write(osm.toPath(), xml.toString().getBytes("UTF-8"));
+            GraphDB handler = GraphDB.parseWithHandler(osm.getPath(), GraphLoader.HIGHWAYS);
+            assertEquals(500, handler.compact().size());
+            TestGraphs.checkSameGraph(handler, new GraphDB(osm.getPath()));
+            TestGraphs.checkSameGraph(handler, new GraphDB(osm.getPath(),
+                    GraphLoader.Options.defaults().twoPass(true)));
+        }
+    }
+
+    @Test
+    public void testCustomWayFilter() {
+        GraphDB none = new GraphDB(OSM_DB_PATH,
+                GraphLoader.Options.defaults().wayFilter(tags -> false));
+        assertEquals(0, none.compact().size());
+        GraphDB roads = new GraphDB(OSM_DB_PATH);
+        GraphDB all = new GraphDB(OSM_DB_PATH,
+                GraphLoader.Options.defaults().wayFilter(tags -> tags.containsKey("highway")));
+        assertTrue(all.compact().size() >= roads.compact().size());
+        TestGraphs.checkSameGraph(GraphDB.parseWithHandler(OSM_DB_PATH,
+                tags -> tags.containsKey("highway")), all);
+    }
+}
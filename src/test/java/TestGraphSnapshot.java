@@ -0,0 +1,134 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a graph snapshot loads back into exactly the graph it was written from, and
+ * that stale or corrupt snapshots are detected.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip(GraphDB.Storage.HEAP);
+    }
+
+    @Test
+    public void testMappedRoundTrip() throws Exception {
+        checkRoundTrip(GraphDB.Storage.MAPPED);
+    }
+
+    private void checkRoundTrip(GraphDB.Storage storage) throws Exception {
+        File source = new File(OSM_DB_PATH);
+        File snapshot = File.createTempFile("graph", ".snap");
+        snapshot.deleteOnExit();
+        GraphSnapshot.save(graph, snapshot.getPath(), source);
+        GraphDB loaded = GraphSnapshot.load(snapshot.getPath(), source, storage);
+        assertNotNull(loaded);
+
+        CompactGraph expected = graph.compact();
+        CompactGraph actual = loaded.compact();
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.edgeCount(), actual.edgeCount());
+        assertEquals(expected.fingerprint(), actual.fingerprint());
+        for (int v = 0; v < expected.size(); v++) {
+            assertEquals(expected.id(v), actual.id(v));
+            assertEquals(expected.lon(v), actual.lon(v), 0);
+            assertEquals(expected.lat(v), actual.lat(v), 0);
+            for (int e = expected.edgeBegin(v); e < expected.edgeEnd(v); e++) {
+                assertEquals(expected.edgeTarget(e), actual.edgeTarget(e));
+                assertEquals(expected.wayName(e), actual.wayName(e));
+            }
+        }
+        assertEquals(graph.locations().size(), loaded.locations().size());
+        for (int i = 0; i < graph.locations().size(); i++) {
+            GraphDB.Location a = graph.locations().get(i);
+            GraphDB.Location b = loaded.locations().get(i);
+            assertEquals(a.id, b.id);
+            assertEquals(a.lon, b.lon, 0);
+            assertEquals(a.lat, b.lat, 0);
+            assertEquals(a.name, b.name);
+        }
+        long v = graph.closest(-122.258207, 37.875352);
+        assertEquals(v, loaded.closest(-122.258207, 37.875352));
+        assertEquals(graph.withinRadius(-122.258207, 37.875352, 0.2),
+                loaded.withinRadius(-122.258207, 37.875352, 0.2));
+        Router.PathResult expectedPath = Router.search(graph, -122.28, 37.87, -122.24, 37.84);
+        Router.PathResult actualPath = Router.search(loaded, -122.28, 37.87, -122.24, 37.84);
+        assertEquals(expectedPath.path(), actualPath.path());
+    }
+
+    @Test
+    public void testStaleSnapshot() throws Exception {
+        File source = File.createTempFile("graph", ".osm.xml");
+        source.deleteOnExit();
+        File snapshot = File.createTempFile("graph", ".snap");
+        snapshot.deleteOnExit();
+        GraphSnapshot.save(graph, snapshot.getPath(), source);
+        assertNotNull(GraphSnapshot.load(snapshot.getPath(), source));
+        source.setLastModified(source.lastModified() - 60000);
+        assertNull(GraphSnapshot.load(snapshot.getPath(), source));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        File source = new File(OSM_DB_PATH);
+        File snapshot = File.createTempFile("graph", ".snap");
+        snapshot.deleteOnExit();
+        GraphSnapshot.save(graph, snapshot.getPath(), source);
+        try (RandomAccessFile f = new RandomAccessFile(snapshot, "rw")) {
+            f.seek(f.length() / 2);
+            int b = f.read();
+            f.seek(f.length() / 2);
+            f.write(b ^ 1);
+        }
+        try {
+            GraphSnapshot.load(snapshot.getPath(), source);
+            fail("A corrupt snapshot was loaded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLoadOrParse() throws Exception {
+        File dir = Files.createTempDirectory("graph").toFile();
+        File source = new File(dir, "tiny.osm.xml");
+        File snapshot = new File(dir, "tiny.osm.xml.snap");
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        GraphDB parsed = GraphDB.loadOrParse(source.getPath(), snapshot.getPath());
+        assertEquals(true, snapshot.isFile());
+        GraphDB loaded = GraphDB.loadOrParse(source.getPath(), snapshot.getPath());
+        assertEquals(parsed.compact().fingerprint(), loaded.compact().fingerprint());
+        GraphDB mapped = GraphDB.loadOrParse(source.getPath(), snapshot.getPath(),
+                GraphDB.Storage.MAPPED);
+        assertEquals(parsed.compact().fingerprint(), mapped.compact().fingerprint());
+        snapshot.delete();
+        source.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/** Comparisons of loaded graphs, shared by the tests of the different loaders. */
+final class TestGraphs {
+    private TestGraphs() {
+    }
+
+    /**
+     * Checks that two loaders built the same graph: the same vertices, edges and way names,
+     * and the same locations with the same ids, names and coordinates.
+     */
+    static void checkSameGraph(GraphDB expected, GraphDB actual) {
+        CompactGraph a = expected.compact();
+        CompactGraph b = actual.compact();
+        assertEquals(a.size(), b.size());
+        assertEquals(a.edgeCount(), b.edgeCount());
+        assertEquals(a.fingerprint(), b.fingerprint());
+        for (int v = 0; v < a.size(); v++) {
+            assertEquals(a.lon(v), b.lon(v), 0);
+            assertEquals(a.lat(v), b.lat(v), 0);
+            for (int e = a.edgeBegin(v); e < a.edgeEnd(v); e++) {
+                assertEquals(a.wayName(e), b.wayName(e));
+            }
+        }
+        List<GraphDB.Location> la = expected.locations();
+        List<GraphDB.Location> lb = actual.locations();
+        assertEquals(la.size(), lb.size());
+        for (int i = 0; i < la.size(); i++) {
+            assertEquals(la.get(i).id, lb.get(i).id);
+            assertEquals(la.get(i).name, lb.get(i).name);
+            assertEquals(la.get(i).lon, lb.get(i).lon, 0);
+            assertEquals(la.get(i).lat, lb.get(i).lat, 0);
+        }
+    }
+}
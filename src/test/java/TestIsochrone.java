@@ -0,0 +1,122 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an isochrone holds exactly the vertices whose shortest path distance is within
+ * the budget, with those distances, and that its hull encloses all of them.
+ */
+public class TestIsochrone {
+    private static final int NUM_TESTS = 10;
+    private static final int NUM_SAMPLES = 100;
+    private static final double DISTANCE_THRESHOLD = 1e-9;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testRandomIsochrones() {
+        Random r = new Random(13);
+        long[] vertices = vertices();
+        for (int i = 0; i < NUM_TESTS; i++) {
+            double lon = TestPoints.randomLon(r);
+            double lat = TestPoints.randomLat(r);
+            double budget = r.nextDouble();
+            Isochrone iso = Router.isochrone(graph, lon, lat, budget);
+            Map<Long, Double> reachable = new HashMap<>();
+            for (int j = 0; j < iso.size(); j++) {
+                assertTrue(iso.distance(j) <= budget);
+                if (j > 0) {
+                    assertTrue(iso.distance(j - 1) <= iso.distance(j));
+                }
+                reachable.put(iso.id(j), iso.distance(j));
+                assertTrue("Hull misses a reachable vertex",
+                        inside(iso.hull(), graph.lon(iso.id(j)), graph.lat(iso.id(j))));
+            }
+            for (int j = 0; j < NUM_SAMPLES; j++) {
+                long v = vertices[r.nextInt(vertices.length)];
+                if (graph.closest(graph.lon(v), graph.lat(v)) != v) {
+                    continue; // another vertex at the same location
+                }
+                double expected = Router.search(graph, lon, lat, graph.lon(v), graph.lat(v),
+                        Router.Algorithm.ASTAR).distance();
+                if (expected <= budget) {
+                    assertTrue("Reachable vertex missing", reachable.containsKey(v));
+                    assertEquals(expected, reachable.get(v), DISTANCE_THRESHOLD);
+                } else {
+                    assertFalse("Unreachable vertex included", reachable.containsKey(v));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testZeroBudget() {
+        long v = graph.vertices().iterator().next();
+        Isochrone iso = Router.isochrone(graph, graph.lon(v), graph.lat(v), 0);
+        assertEquals(1, iso.size());
+        assertEquals(v, iso.id(0));
+        assertEquals(0, iso.distance(0), DISTANCE_THRESHOLD);
+    }
+
+    @Test
+    public void testRepeatedQueries() {
+        Random r = new Random(14);
+        double lon = TestPoints.randomLon(r);
+        double lat = TestPoints.randomLat(r);
+        Isochrone first = Router.isochrone(graph, lon, lat, 0.5);
+        Router.isochrone(graph, TestPoints.randomLon(r), TestPoints.randomLat(r), 0.5);
+        Isochrone again = Router.isochrone(graph, lon, lat, 0.5);
+        assertEquals(first.size(), again.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.id(i), again.id(i));
+        }
+    }
+
+    private static long[] vertices() {
+        int n = 0;
+        for (long v : graph.vertices()) {
+            n++;
+        }
+        long[] vertices = new long[n];
+        int i = 0;
+        for (long v : graph.vertices()) {
+            vertices[i] = v;
+            i++;
+        }
+        return vertices;
+    }
+
+    /** Whether a point lies in or on a counter-clockwise convex polygon. */
+    private static boolean inside(List<double[]> hull, double lon, double lat) {
+        if (hull.size() < 3) {
+            return true;
+        }
+        for (int i = 0; i < hull.size(); i++) {
+            double[] a = hull.get(i);
+            double[] b = hull.get((i + 1) % hull.size());
+            double cross = (b[0] - a[0]) * (lat - a[1]) - (b[1] - a[1]) * (lon - a[0]);
+            if (cross < -1e-12) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that A* with the landmark heuristic finds paths as short as plain A*, while
+ * settling no more vertices.
+ */
+public class TestLandmarks {
+    private static final int NUM_RANDOM_TESTS = 500;
+    private static final double DISTANCE_THRESHOLD = 1e-9;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        graph.setLandmarks(Landmarks.select(graph.compact(), Landmarks.DEFAULT_COUNT));
+        initialized = true;
+    }
+
+    @Test
+    public void testRandomPairs() {
+        Random r = new Random(5);
+        long settledAStar = 0;
+        long settledAlt = 0;
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            double stlon = TestPoints.randomLon(r);
+            double stlat = TestPoints.randomLat(r);
+            double destlon = TestPoints.randomLon(r);
+            double destlat = TestPoints.randomLat(r);
+            Router.PathResult expected = Router.search(graph, stlon, stlat, destlon, destlat,
+                    Router.Algorithm.ASTAR);
+            Router.PathResult actual = Router.search(graph, stlon, stlat, destlon, destlat,
+                    Router.Algorithm.ALT);
+            assertEquals(expected.distance(), actual.distance(), DISTANCE_THRESHOLD);
+            settledAStar += expected.settled();
+            settledAlt += actual.settled();
+        }
+        assertTrue("ALT settled " + settledAlt + " vertices, A* only " + settledAStar,
+                settledAlt <= settledAStar);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("berkeley", ".landmarks");
+        file.deleteOnExit();
+        graph.landmarks().save(file.getPath());
+        Landmarks loaded = Landmarks.load(file.getPath());
+        assertTrue(loaded.matches(graph.compact()));
+        assertEquals(graph.landmarks().count(), loaded.count());
+        for (int i = 0; i < loaded.count(); i++) {
+            assertEquals(graph.landmarks().landmark(i), loaded.landmark(i));
+        }
+    }
+}
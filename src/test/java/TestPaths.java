@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks of the paths the routing algorithms find, shared by their tests. */
+final class TestPaths {
+    /** Largest difference in miles allowed between the lengths of equally short paths. */
+    static final double DISTANCE_THRESHOLD = 1e-9;
+
+    private TestPaths() {
+    }
+
+    /**
+     * Checks a shortest path query against A*: the path found must be as short, run between
+     * the same vertices, use only edges of the graph, and add up to the distance reported.
+     * @param algorithm The algorithm under test.
+     * @return The path the algorithm found.
+     */
+    static List<Long> checkQuery(GraphDB g, Router.Algorithm algorithm, double stlon,
+                                 double stlat, double destlon, double destlat) {
+        Router.PathResult expected = Router.search(g, stlon, stlat, destlon, destlat,
+                Router.Algorithm.ASTAR);
+        Router.PathResult actual = Router.search(g, stlon, stlat, destlon, destlat, algorithm);
+        assertEquals(expected.distance(), actual.distance(), DISTANCE_THRESHOLD);
+        List<Long> path = actual.path();
+        if (expected.path().isEmpty()) {
+            assertTrue(path.isEmpty());
+            return path;
+        }
+        assertEquals(expected.path().get(0), path.get(0));
+        assertEquals(expected.path().get(expected.path().size() - 1), path.get(path.size() - 1));
+        double length = 0;
+        for (int i = 1; i < path.size(); i++) {
+            Set<Long> neighbors = new HashSet<>();
+            for (long w : g.adjacent(path.get(i - 1))) {
+                neighbors.add(w);
+            }
+            assertTrue(algorithm + " path uses a missing edge", neighbors.contains(path.get(i)));
+            length += g.distance(path.get(i - 1), path.get(i));
+        }
+        assertEquals(actual.distance(), length, DISTANCE_THRESHOLD);
+        return path;
+    }
+
+    /**
+     * Plain Dijkstra on the compact graph, the reference the searches are checked against.
+     * @return The cost of the cheapest path from source to target under the metric, or
+     * positive infinity if there is none.
+     */
+    static double dijkstra(CompactGraph cg, int source, int target, Router.Metric metric) {
+        double[] dist = new double[cg.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[source] = 0;
+        PriorityQueue<double[]> fringe = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        fringe.add(new double[] {0, source});
+        while (!fringe.isEmpty()) {
+            double[] item = fringe.poll();
+            int v = (int) item[1];
+            if (item[0] > dist[v]) {
+                continue;
+            }
+            if (v == target) {
+                return dist[v];
+            }
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                double dw = dist[v] + cg.weight(e, metric);
+                if (cg.isForward(e) && dw < dist[w]) {
+                    dist[w] = dw;
+                    fringe.add(new double[] {dw, w});
+                }
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
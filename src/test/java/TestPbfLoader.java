@@ -0,0 +1,70 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that an OSM PBF file loads into exactly the graph its XML twin does. The fixture
+ * pair under src/test/resources holds the same data in both formats; the PBF file mixes
+ * dense and plain nodes, zlib and uncompressed blobs, node ids above 2^32, a relation, and
+ * spreads its elements over several blocks so that they are decoded in parallel.
+ */
+public class TestPbfLoader {
+    private static final String PBF_PATH = "src/test/resources/pbf-fixture.osm.pbf";
+    private static final String XML_PATH = "src/test/resources/pbf-fixture.osm.xml";
+
+    @Test
+    public void testMatchesXml() {
+        GraphDB xml = new GraphDB(XML_PATH);
+        for (int threads : new int[] {1, 2, 4}) {
+            TestGraphs.checkSameGraph(xml, new GraphDB(PBF_PATH,
+                    GraphLoader.Options.defaults().parallel(threads)));
+        }
+        TestGraphs.checkSameGraph(xml, new GraphDB(PBF_PATH));
+    }
+
+    @Test
+    public void testContent() {
+        GraphDB g = new GraphDB(PBF_PATH);
+        /* 999 does not exist, 4294967398 is on no way and the footway does not count. */
+        assertEquals(11, g.compact().size());
+        List<GraphDB.Location> locations = g.locations();
+        assertEquals(4, locations.size());
+        assertEquals("Caf\u00e9 & Bar \"Z\"", locations.get(0).name);
+        assertEquals(4294967398L, locations.get(3).id);
+        assertEquals(-0.0000001, locations.get(3).lat, 0);
+        assertEquals(0.0000001, locations.get(3).lon, 0);
+        int v = g.compact().index(101);
+        assertEquals(-122.25956, g.compact().lon(v), 0);
+        assertEquals(37.87035, g.compact().lat(v), 0);
+    }
+
+    @Test
+    public void testCustomWayFilter() {
+        TestGraphs.checkSameGraph(new GraphDB(XML_PATH,
+                GraphLoader.Options.defaults().wayFilter(tags -> tags.containsKey("highway"))),
+                new GraphDB(PBF_PATH,
+                GraphLoader.Options.defaults().wayFilter(tags -> tags.containsKey("highway"))));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        byte[] pbf = Files.readAllBytes(Paths.get(PBF_PATH));
+        File truncated = File.createTempFile("truncated", ".osm.pbf");
+        truncated.deleteOnExit();
+        Files.write(truncated.toPath(), Arrays.copyOf(pbf, pbf.length - 10));
+        try {
+            OsmPbfReader.read(truncated.getPath(), new GraphLoader(GraphLoader.HIGHWAYS), 2);
+            fail();
+        } catch (IOException e) {
+            /* Expected. */
+        }
+    }
+}
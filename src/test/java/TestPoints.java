@@ -0,0 +1,19 @@
+import java.util.Random;
+
+/** Random query points inside the root tile of the map, shared by the tests. */
+final class TestPoints {
+    private TestPoints() {
+    }
+
+    /** A longitude drawn uniformly from the root tile. */
+    static double randomLon(Random r) {
+        return MapServer.ROOT_ULLON
+                + r.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+    }
+
+    /** A latitude drawn uniformly from the root tile. */
+    static double randomLat(Random r) {
+        return MapServer.ROOT_LRLAT
+                + r.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the cache of finished raster images: that it is keyed by the tiles and the route,
+ * that a route's images go when the route does, and that it stays within its capacity.
+ */
+public class TestRasterCache {
+    private static final Rasterer RASTERER = new Rasterer();
+
+    @Test
+    public void testKeyedByTilesAndRoute() {
+        RasterCache cache = new RasterCache(1000);
+        Rasterer.Raster raster = view(0.45, 0.45, 0.1);
+        /* A slightly different box over the same tiles makes the same image. */
+        Rasterer.Raster same = view(0.45 + 1e-6, 0.45, 0.1);
+        Rasterer.Raster other = view(0.2, 0.2, 0.1);
+        assertEquals(raster, same);
+        assertEquals(raster.hashCode(), same.hashCode());
+        assertNotEquals(raster, other);
+
+        cache.put(raster, null, bytes("plain"));
+        cache.put(raster, "route-1", bytes("with route 1"));
+        assertArrayEquals(bytes("plain"), cache.get(same, null));
+        assertArrayEquals(bytes("with route 1"), cache.get(same, "route-1"));
+        assertNull(cache.get(raster, "route-2"));
+        assertNull(cache.get(other, null));
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testInvalidateRoute() {
+        RasterCache cache = new RasterCache(1000);
+        Rasterer.Raster a = view(0.45, 0.45, 0.1);
+        Rasterer.Raster b = view(0.2, 0.2, 0.1);
+        cache.put(a, null, bytes("a"));
+        cache.put(a, "route-1", bytes("a1"));
+        cache.put(b, "route-1", bytes("b1"));
+        cache.put(b, "route-2", bytes("b2"));
+        assertEquals(2, cache.invalidateRoute("route-1"));
+        assertEquals(0, cache.invalidateRoute(null));
+        assertNull(cache.get(a, "route-1"));
+        assertNull(cache.get(b, "route-1"));
+        assertArrayEquals(bytes("a"), cache.get(a, null));
+        assertArrayEquals(bytes("b2"), cache.get(b, "route-2"));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.byteSize());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RasterCache cache = new RasterCache(10);
+        Rasterer.Raster a = view(0.1, 0.1, 0.1);
+        Rasterer.Raster b = view(0.4, 0.4, 0.1);
+        Rasterer.Raster c = view(0.7, 0.7, 0.1);
+        cache.put(a, null, bytes("aaaa"));
+        cache.put(b, null, bytes("bbbb"));
+        cache.get(a, null);
+        cache.put(c, null, bytes("cccc"));
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get(b, null));
+        assertArrayEquals(bytes("aaaa"), cache.get(a, null));
+        assertArrayEquals(bytes("cccc"), cache.get(c, null));
+        assertEquals(8, cache.byteSize());
+        /* An image larger than the whole cache is not kept. */
+        cache.put(b, null, bytes("bbbbbbbbbbb"));
+        assertNull(cache.get(b, null));
+        assertEquals(2, cache.size());
+    }
+
+    private static byte[] bytes(String image) {
+        return image.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The raster of a square view.
+     * @param x The left edge as a fraction of the width of the map.
+     * @param y The top edge as a fraction of the height of the map.
+     * @param size The size as a fraction of the map.
+     */
+    private static Rasterer.Raster view(double x, double y, double size) {
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        double ullon = MapServer.ROOT_ULLON + x * width;
+        double ullat = MapServer.ROOT_ULLAT - y * height;
+        return RASTERER.raster(ullon, ullat, ullon + size * width, ullat - size * height, 512);
+    }
+}
@@ -0,0 +1,170 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the raster encoder: that its PNG files decode to exactly the pixels encoded at
+ * every deflate level, that its JPEG files decode, that tiles are copied into canvases
+ * unchanged, and that canvases are reused within the pool's capacity.
+ */
+public class TestRasterEncoder {
+    private static final int TILE = MapServer.TILE_SIZE;
+
+    @Test
+    public void testPngRoundTrip() throws IOException {
+        BufferedImage[] images = {mapLike(3, 2, 1), noise(1, 1, 2), solid(2, 1, 0x123456)};
+        for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+            RasterEncoder encoder = new RasterEncoder(level, 0.85f, 0);
+            for (BufferedImage image : images) {
+                byte[] png = encoder.encode(image, RasterEncoder.Format.PNG);
+                assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(png)));
+            }
+        }
+    }
+
+    @Test
+    public void testDeflateLevel() throws IOException {
+        BufferedImage image = mapLike(4, 3, 3);
+        int stored = new RasterEncoder(Deflater.NO_COMPRESSION, 0.85f, 0)
+                .encode(image, RasterEncoder.Format.PNG).length;
+        int fast = new RasterEncoder(Deflater.BEST_SPEED, 0.85f, 0)
+                .encode(image, RasterEncoder.Format.PNG).length;
+        int best = new RasterEncoder(Deflater.BEST_COMPRESSION, 0.85f, 0)
+                .encode(image, RasterEncoder.Format.PNG).length;
+        assertTrue(stored > 3 * 4 * 3 * TILE * TILE);
+        assertTrue(fast < stored);
+        assertTrue(best <= fast);
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        BufferedImage image = mapLike(2, 2, 4);
+        RasterEncoder encoder = new RasterEncoder(Deflater.BEST_SPEED, 0.85f, 0);
+        byte[] jpeg = encoder.encode(image, RasterEncoder.Format.JPEG);
+        assertEquals((byte) 0xff, jpeg[0]);
+        assertEquals((byte) 0xd8, jpeg[1]);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+    }
+
+    @Test
+    public void testCopyTile() {
+        BufferedImage canvas = solid(2, 2, 0xffffff);
+        BufferedImage intTile = noise(1, 1, 5);
+        BufferedImage byteTile = new BufferedImage(TILE, TILE, BufferedImage.TYPE_3BYTE_BGR);
+        byteTile.setRGB(10, 20, 0xabcdef);
+        RasterEncoder.copyTile(canvas, intTile, TILE, 0);
+        RasterEncoder.copyTile(canvas, byteTile, 0, TILE);
+        RasterEncoder.copyTile(canvas, null, TILE, TILE);
+        for (int y = 0; y < TILE; y++) {
+            for (int x = 0; x < TILE; x++) {
+                assertEquals(0xffffff, canvas.getRGB(x, y) & 0xffffff);
+                assertEquals(intTile.getRGB(x, y), canvas.getRGB(TILE + x, y));
+                assertEquals(byteTile.getRGB(x, y), canvas.getRGB(x, TILE + y));
+                assertEquals(0, canvas.getRGB(TILE + x, TILE + y) & 0xffffff);
+            }
+        }
+        BufferedImage converted = RasterEncoder.toIntRgb(byteTile);
+        assertEquals(BufferedImage.TYPE_INT_RGB, converted.getType());
+        assertEquals(0xabcdef, converted.getRGB(10, 20) & 0xffffff);
+        assertSame(intTile, RasterEncoder.toIntRgb(intTile));
+    }
+
+    @Test
+    public void testPool() {
+        long canvasBytes = 4L * 2 * 3 * TILE * TILE;
+        RasterEncoder encoder = new RasterEncoder(Deflater.BEST_SPEED, 0.85f, canvasBytes);
+        BufferedImage a = encoder.acquire(2, 3);
+        assertEquals(2 * TILE, a.getWidth());
+        assertEquals(3 * TILE, a.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, a.getType());
+        BufferedImage b = encoder.acquire(2, 3);
+        encoder.release(a);
+        /* Only one canvas of this size fits in the pool. */
+        encoder.release(b);
+        assertEquals(canvasBytes, encoder.pooledBytes());
+        assertNotSame(a, encoder.acquire(3, 2));
+        assertSame(a, encoder.acquire(2, 3));
+        assertEquals(0, encoder.pooledBytes());
+        assertNotSame(a, encoder.acquire(2, 3));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        float[][] arguments = {{-1, 0.5f, 0}, {10, 0.5f, 0}, {1, -0.1f, 0}, {1, 1.1f, 0},
+            {1, Float.NaN, 0}, {1, 0.5f, -1}};
+        for (float[] a : arguments) {
+            try {
+                new RasterEncoder((int) a[0], a[1], (long) a[2]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y) & 0xffffff, actual.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    private static BufferedImage solid(int columns, int rows, int rgb) {
+        BufferedImage image = new BufferedImage(columns * TILE, rows * TILE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(rgb));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage noise(int columns, int rows, long seed) {
+        Random r = new Random(seed);
+        BufferedImage image = new BufferedImage(columns * TILE, rows * TILE,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, r.nextInt());
+            }
+        }
+        return image;
+    }
+
+    /** Flat areas crossed by lines, which compress the way map tiles do. */
+    static BufferedImage mapLike(int columns, int rows, long seed) {
+        Random r = new Random(seed);
+        BufferedImage image = solid(columns, rows, 0xf2efe9);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 40 * columns * rows; i++) {
+            g.setColor(new Color(r.nextInt(0x1000000)));
+            if (i % 4 == 0) {
+                g.fillRect(r.nextInt(image.getWidth()), r.nextInt(image.getHeight()),
+                        r.nextInt(60), r.nextInt(60));
+            } else {
+                g.drawLine(r.nextInt(image.getWidth()), r.nextInt(image.getHeight()),
+                        r.nextInt(image.getWidth()), r.nextInt(image.getHeight()));
+            }
+        }
+        g.dispose();
+        return image;
+    }
+}
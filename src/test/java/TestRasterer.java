@@ -12,9 +12,13 @@ import java.util.Map;
 import java.util.Collections;
 import java.util.StringJoiner;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestRasterer {
@@ -47,6 +51,56 @@ public class TestRasterer {
         }
     }
 
+    @Test
+    public void testFailedQueryDoesNotStick() throws Exception {
+        Map<String, Double> outside = new HashMap<>();
+        outside.put("ullon", MapServer.ROOT_LRLON + 1);
+        outside.put("ullat", MapServer.ROOT_ULLAT);
+        outside.put("lrlon", MapServer.ROOT_LRLON + 2);
+        outside.put("lrlat", MapServer.ROOT_LRLAT);
+        outside.put("w", 500.0);
+        outside.put("h", 500.0);
+        assertFalse((Boolean) rasterer.getMapRaster(outside).get("query_success"));
+        testGetMapRaster();
+    }
+
+    /**
+     * Many threads share one Rasterer, as the server's threads do, and each runs the test
+     * queries in an order of its own, mixed with failing queries. Every result must match
+     * raster_results.txt.
+     */
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<Map<String, Object>> expectedResults = resultsFromFile();
+        Map<String, Double> outside = new HashMap<>(testParams.get(0));
+        outside.put("ullon", outside.get("lrlon") + 1);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> clients = new ArrayList<>();
+            for (int t = 0; t < 64; t++) {
+                int offset = t;
+                clients.add(pool.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        int k = (i + offset) % NUM_TESTS;
+                        if (i % 7 == 0) {
+                            assertFalse((Boolean) rasterer.getMapRaster(outside)
+                                    .get("query_success"));
+                        }
+                        Map<String, Object> actual = rasterer.getMapRaster(testParams.get(k));
+                        checkParamsMap("Concurrent query " + k + " differs.\n",
+                                expectedResults.get(k), actual);
+                    }
+                }));
+            }
+            for (Future<?> client : clients) {
+                client.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,177 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the shapes of routes: Douglas-Peucker simplification against its tolerance and
+ * across depths, and the encoded polyline and GeoJSON formats.
+ */
+public class TestRouteGeometry {
+    private static final double LON_SPAN = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+    private static final double LAT_SPAN = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+
+    @Test
+    public void testDouglasPeucker() {
+        /* Collinear points go, a corner stays, and so does a spike above the tolerance. */
+        double[] x = {0, 1, 2, 3, 3, 3, 4, 5, 6};
+        double[] y = {0, 0, 0, 0, 1, 2, 2, 2.4, 2};
+        boolean[] keep = RouteGeometry.douglasPeucker(x, y, 0.5);
+        assertEquals(Arrays.toString(new boolean[] {true, false, false, true, false, true, false,
+            false, true}), Arrays.toString(keep));
+        keep = RouteGeometry.douglasPeucker(x, y, 0.3);
+        assertTrue(keep[7]);
+
+        assertEquals(0, RouteGeometry.douglasPeucker(new double[0], new double[0], 1).length);
+        assertEquals("[true]", Arrays.toString(
+                RouteGeometry.douglasPeucker(new double[] {1}, new double[] {1}, 1)));
+        /* A closed loop keeps its far side. */
+        keep = RouteGeometry.douglasPeucker(new double[] {0, 5, 0}, new double[] {0, 0, 0}, 1);
+        assertEquals("[true, true, true]", Arrays.toString(keep));
+    }
+
+    /** Every dropped point is within the tolerance of the simplified line. */
+    @Test
+    public void testSimplifiedWithinTolerance() {
+        Random r = new Random(7);
+        for (int trial = 0; trial < 50; trial++) {
+            int n = 2 + r.nextInt(500);
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 1; i < n; i++) {
+                x[i] = x[i - 1] + r.nextGaussian();
+                y[i] = y[i - 1] + r.nextGaussian();
+            }
+            double tolerance = r.nextDouble() * 3;
+            boolean[] keep = RouteGeometry.douglasPeucker(x, y, tolerance);
+            assertTrue(keep[0] && keep[n - 1]);
+            int previous = 0;
+            for (int i = 1; i < n; i++) {
+                if (!keep[i]) {
+                    continue;
+                }
+                for (int j = previous + 1; j < i; j++) {
+                    assertTrue(distance(x[j], y[j], x[previous], y[previous], x[i], y[i])
+                            <= tolerance + 1e-9);
+                }
+                previous = i;
+            }
+        }
+    }
+
+    @Test
+    public void testSimplifyByDepth() {
+        RouteGeometry route = randomWalk(2000, 3);
+        int last = 0;
+        for (int depth = 0; depth <= Rasterer.MAX_DEPTH; depth++) {
+            RouteGeometry simple = route.simplify(depth);
+            assertTrue(simple.size() >= last);
+            assertTrue(simple.size() <= route.size());
+            assertEquals(route.lon(0), simple.lon(0), 0);
+            assertEquals(route.lat(route.size() - 1), simple.lat(simple.size() - 1), 0);
+            last = simple.size();
+        }
+        assertTrue(route.simplify(0).size() < route.simplify(Rasterer.MAX_DEPTH).size());
+        for (int depth : new int[] {-1, Rasterer.MAX_DEPTH + 1}) {
+            try {
+                route.simplify(depth);
+                fail();
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testEncodedPolyline() {
+        /* The example from the documentation of the format. */
+        RouteGeometry route = new RouteGeometry(new double[] {-120.2, -120.95, -126.453},
+                new double[] {38.5, 40.7, 43.252});
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", route.encodedPolyline());
+        assertEquals("", new RouteGeometry(new double[0], new double[0]).encodedPolyline());
+
+        RouteGeometry walk = randomWalk(1000, 11);
+        List<double[]> decoded = decode(walk.encodedPolyline());
+        assertEquals(walk.size(), decoded.size());
+        for (int i = 0; i < walk.size(); i++) {
+            assertEquals(walk.lon(i), decoded.get(i)[0], 0.6e-5);
+            assertEquals(walk.lat(i), decoded.get(i)[1], 0.6e-5);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGeoJson() {
+        RouteGeometry route = new RouteGeometry(new double[] {-122.25, -122.26},
+                new double[] {37.86, 37.87});
+        Map<String, Object> geoJson = route.toGeoJson();
+        assertEquals("LineString", geoJson.get("type"));
+        List<double[]> coordinates = (List<double[]>) geoJson.get("coordinates");
+        assertArrayEquals(new double[] {-122.25, 37.86}, coordinates.get(0), 0);
+        assertArrayEquals(new double[] {-122.26, 37.87}, coordinates.get(1), 0);
+    }
+
+    @Test
+    public void testMismatchedCoordinates() {
+        try {
+            new RouteGeometry(new double[2], new double[3]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+
+    /** A wandering route inside the root tile with steps of a few meters. */
+    private static RouteGeometry randomWalk(int n, long seed) {
+        Random r = new Random(seed);
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        lons[0] = MapServer.ROOT_ULLON + LON_SPAN / 2;
+        lats[0] = MapServer.ROOT_LRLAT + LAT_SPAN / 2;
+        for (int i = 1; i < n; i++) {
+            lons[i] = lons[i - 1] + r.nextGaussian() * LON_SPAN / 2000;
+            lats[i] = lats[i - 1] + r.nextGaussian() * LAT_SPAN / 2000;
+        }
+        return new RouteGeometry(lons, lats);
+    }
+
+    private static double distance(double px, double py, double ax, double ay,
+                                   double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double t = dx == 0 && dy == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / (dx * dx + dy * dy)));
+        return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+    }
+
+    /** Decodes an encoded polyline into [lon, lat] points. */
+    private static List<double[]> decode(String encoded) {
+        List<double[]> points = new ArrayList<>();
+        int index = 0;
+        long lat = 0, lon = 0;
+        while (index < encoded.length()) {
+            long[] delta = new long[2];
+            for (int k = 0; k < 2; k++) {
+                long result = 0;
+                int shift = 0, b;
+                do {
+                    b = encoded.charAt(index++) - 63;
+                    result |= (long) (b & 0x1f) << shift;
+                    shift += 5;
+                } while (b >= 0x20);
+                delta[k] = (result & 1) != 0 ? ~(result >> 1) : result >> 1;
+            }
+            lat += delta[0];
+            lon += delta[1];
+            points.add(new double[] {lon * 1e-5, lat * 1e-5});
+        }
+        return points;
+    }
+}
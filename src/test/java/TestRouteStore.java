@@ -0,0 +1,181 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the server keeps one route per client: ids, expiry and eviction of the store,
+ * and a load test in which many clients route and draw their overlays at the same time.
+ */
+public class TestRouteStore {
+    private static final int NUM_CLIENTS = 64;
+    private static final int REQUESTS_PER_CLIENT = 20;
+    private static final int RASTER_SIZE = 256;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        RouteStore store = new RouteStore(10, 1000);
+        String a = store.put(Arrays.asList(1L, 2L, 3L));
+        String b = store.put(Arrays.asList(4L, 5L));
+        assertNotEquals(a, b);
+        assertEquals(Arrays.asList(1L, 2L, 3L), store.get(a));
+        assertEquals(Arrays.asList(4L, 5L), store.get(b));
+        assertNull(store.get("no such route"));
+        assertNull(store.get(null));
+        assertTrue(store.remove(a));
+        assertFalse(store.remove(a));
+        assertNull(store.get(a));
+        assertEquals(1, store.size());
+        try {
+            store.get(b).add(6L);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        AtomicLong now = new AtomicLong();
+        RouteStore store = new RouteStore(10, 1000, now::get);
+        String a = store.put(Arrays.asList(1L));
+        String b = store.put(Arrays.asList(2L));
+        now.addAndGet(600 * 1000000L);
+        /* Reading a route keeps it alive. */
+        assertEquals(Arrays.asList(1L), store.get(a));
+        now.addAndGet(600 * 1000000L);
+        assertNull(store.get(b));
+        assertEquals(Arrays.asList(1L), store.get(a));
+        now.addAndGet(1001 * 1000000L);
+        store.put(Arrays.asList(3L));
+        assertEquals(1, store.size());
+        assertNull(store.get(a));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RouteStore store = new RouteStore(3, 1000);
+        String a = store.put(Arrays.asList(1L));
+        String b = store.put(Arrays.asList(2L));
+        String c = store.put(Arrays.asList(3L));
+        store.get(a);
+        String d = store.put(Arrays.asList(4L));
+        assertEquals(3, store.size());
+        assertNull(store.get(b));
+        assertEquals(Arrays.asList(1L), store.get(a));
+        assertEquals(Arrays.asList(3L), store.get(c));
+        assertEquals(Arrays.asList(4L), store.get(d));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        try {
+            new RouteStore(0, 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+        try {
+            new RouteStore(10, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+
+    /**
+     * Many clients at once each route between points of their own, replace their previous
+     * route like the /route endpoint does, and draw the route stored under their id. Every
+     * overlay must be exactly the one drawn from that client's own route.
+     */
+    @Test
+    public void testConcurrentClients() throws Exception {
+        RouteStore store = new RouteStore(NUM_CLIENTS * 2, 60 * 1000);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Integer>> clients = new ArrayList<>();
+            for (int i = 0; i < NUM_CLIENTS; i++) {
+                Random r = new Random(i);
+                clients.add(pool.submit((Callable<Integer>) () -> runClient(store, r)));
+            }
+            int drawn = 0;
+            for (Future<Integer> client : clients) {
+                drawn += client.get();
+            }
+            assertEquals(NUM_CLIENTS * REQUESTS_PER_CLIENT, drawn);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(NUM_CLIENTS, store.size());
+    }
+
+    /**
+     * Plays one client of testConcurrentClients. Each overlay is drawn from the store only
+     * after the client has searched its next route, while the other clients keep storing
+     * theirs. Returns the number of overlays checked.
+     */
+    private static int runClient(RouteStore store, Random r) {
+        String routeId = null;
+        List<Long> previous = null;
+        int checked = 0;
+        for (int i = 0; i <= REQUESTS_PER_CLIENT; i++) {
+            List<Long> route = i < REQUESTS_PER_CLIENT ? Router.shortestPath(graph,
+                    TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r)) : null;
+            if (routeId != null) {
+                List<Long> stored = store.get(routeId);
+                assertEquals(previous, stored);
+                assertTrue(Arrays.equals(draw(previous), draw(stored)));
+                checked += 1;
+            }
+            if (route != null) {
+                store.remove(routeId);
+                routeId = store.put(route);
+                previous = route;
+            }
+        }
+        return checked;
+    }
+
+    /** Draws a route onto a blank raster of the whole map and returns its pixels. */
+    private static int[] draw(List<Long> route) {
+        BufferedImage img = new BufferedImage(RASTER_SIZE, RASTER_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = img.createGraphics();
+        double wdpp = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / RASTER_SIZE;
+        double hdpp = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / RASTER_SIZE;
+        MapServer.drawRoute(g2d, graph, route, MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                wdpp, hdpp);
+        g2d.dispose();
+        return img.getRGB(0, 0, RASTER_SIZE, RASTER_SIZE, null, 0, RASTER_SIZE);
+    }
+}
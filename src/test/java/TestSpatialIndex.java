@@ -0,0 +1,93 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the spatial index behind GraphDB.closest and its k-nearest and radius queries
+ * against a brute force scan over every vertex, on random points inside the map.
+ */
+public class TestSpatialIndex {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int NUM_TESTS = 1000;
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH);
+        initialized = true;
+    }
+
+    @Test
+    public void testClosestMatchesBruteForce() {
+        Random r = new Random(61);
+        for (int i = 0; i < NUM_TESTS; i++) {
+            double lon = TestPoints.randomLon(r);
+            double lat = TestPoints.randomLat(r);
+            assertEquals("Closest vertex to " + lon + ", " + lat,
+                    bruteForceClosest(lon, lat), graph.closest(lon, lat));
+        }
+    }
+
+    @Test
+    public void testKNearestMatchesBruteForce() {
+        Random r = new Random(62);
+        for (int i = 0; i < NUM_TESTS / 10; i++) {
+            double lon = TestPoints.randomLon(r);
+            double lat = TestPoints.randomLat(r);
+            int k = 1 + r.nextInt(20);
+            List<Long> actual = graph.closest(lon, lat, k);
+            assertEquals(k, actual.size());
+            assertEquals(bruteForceClosest(lon, lat), (long) actual.get(0));
+            double kth = GraphDB.distance(graph.lon(actual.get(k - 1)),
+                    graph.lat(actual.get(k - 1)), lon, lat);
+            int closer = 0;
+            for (long v : graph.vertices()) {
+                if (GraphDB.distance(graph.lon(v), graph.lat(v), lon, lat) < kth) {
+                    closer++;
+                }
+            }
+            assertEquals("Vertices strictly closer than the k-th result", k - 1, closer);
+        }
+    }
+
+    @Test
+    public void testWithinRadiusMatchesBruteForce() {
+        Random r = new Random(63);
+        for (int i = 0; i < NUM_TESTS / 10; i++) {
+            double lon = TestPoints.randomLon(r);
+            double lat = TestPoints.randomLat(r);
+            double radius = r.nextDouble() * 0.5;
+            HashSet<Long> expected = new HashSet<>();
+            for (long v : graph.vertices()) {
+                if (GraphDB.distance(graph.lon(v), graph.lat(v), lon, lat) <= radius) {
+                    expected.add(v);
+                }
+            }
+            List<Long> actual = graph.withinRadius(lon, lat, radius);
+            assertEquals(expected, new HashSet<>(actual));
+            assertEquals(expected.size(), actual.size());
+        }
+    }
+
+    private static long bruteForceClosest(double lon, double lat) {
+        double shortest = Double.MAX_VALUE;
+        long res = 0;
+        for (long v : graph.vertices()) {
+            double d = GraphDB.distance(graph.lon(v), graph.lat(v), lon, lat);
+            if (d < shortest) {
+                shortest = d;
+                res = v;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,195 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the tile cache on made-up tiles: hits and misses, eviction of the least recently
+ * used tiles once the decoded bytes exceed the capacity, and single-flight loading.
+ */
+public class TestTileCache {
+    /** Bytes of a decoded TYPE_INT_RGB tile. */
+    private static final long TILE_BYTES = 4L * MapServer.TILE_SIZE * MapServer.TILE_SIZE;
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        TileCache<BufferedImage> cache = images(name -> {
+            loads.incrementAndGet();
+            return tile();
+        }, 10 * TILE_BYTES);
+        BufferedImage a = cache.get("a.png");
+        assertSame(a, cache.get("a.png"));
+        cache.get("b.png");
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(2, cache.loads());
+        assertEquals(2, cache.size());
+        assertEquals(2 * TILE_BYTES, cache.byteSize());
+        assertEquals(TILE_BYTES, TileCache.weigh(a));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        TileCache<BufferedImage> cache = images(name -> tile(), 3 * TILE_BYTES);
+        BufferedImage a = cache.get("a.png");
+        BufferedImage b = cache.get("b.png");
+        cache.get("c.png");
+        cache.get("a.png");
+        cache.get("d.png");
+        assertEquals(3, cache.size());
+        assertEquals(3 * TILE_BYTES, cache.byteSize());
+        assertEquals(1, cache.evictions());
+        assertSame(a, cache.get("a.png"));
+        /* b was evicted, so it is decoded again. */
+        assertTrue(b != cache.get("b.png"));
+        assertEquals(2, cache.evictions());
+        assertEquals(5, cache.loads());
+    }
+
+    @Test
+    public void testTooLargeToCache() throws Exception {
+        TileCache<BufferedImage> cache = images(name -> tile(), TILE_BYTES - 1);
+        cache.get("a.png");
+        cache.get("a.png");
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.loads());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        TileCache<BufferedImage> cache = images(name -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IOException("Cannot read " + name);
+            }
+            return name.startsWith("missing") ? null : tile();
+        }, 10 * TILE_BYTES);
+        try {
+            cache.get("a.png");
+            fail();
+        } catch (IOException e) {
+            /* Expected. */
+        }
+        cache.get("a.png");
+        assertNull(cache.get("missing.png"));
+        assertNull(cache.get("missing.png"));
+        assertEquals(1, cache.size());
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        TileCache<BufferedImage> cache = images(name -> {
+            if (name.startsWith("d1")) {
+                throw new IOException("Cannot read " + name);
+            }
+            return tile();
+        }, 100 * TILE_BYTES);
+        List<String> names = new ArrayList<>();
+        for (int d = 0; d <= 2; d++) {
+            for (int y = 0; y < 1 << d; y++) {
+                for (int x = 0; x < 1 << d; x++) {
+                    names.add(Rasterer.tileName(d, x, y));
+                }
+            }
+        }
+        assertEquals(Arrays.asList("d0_x0_y0.png", "d1_x0_y0.png"), names.subList(0, 2));
+        assertEquals(1 + 16, cache.warmUp(names));
+        long loads = cache.loads();
+        cache.get("d2_x3_y1.png");
+        assertEquals(loads, cache.loads());
+        assertEquals(1, cache.hits());
+    }
+
+    /**
+     * Many threads miss the same tile at once while the only load of it is still running;
+     * all of them must get the image of that one load.
+     */
+    @Test
+    public void testSingleFlight() throws Exception {
+        int threads = 16;
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch allWaiting = new CountDownLatch(threads);
+        TileCache<BufferedImage> cache = images(name -> {
+            loads.incrementAndGet();
+            /* Hold the load until every thread has asked for the tile. */
+            try {
+                allWaiting.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return tile();
+        }, 10 * TILE_BYTES);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<BufferedImage>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(pool.submit(() -> {
+                    allWaiting.countDown();
+                    return cache.get("a.png");
+                }));
+            }
+            BufferedImage first = results.get(0).get();
+            for (Future<BufferedImage> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.loads());
+        assertEquals(threads, cache.hits() + cache.misses());
+    }
+
+    /** The cache of tile files weighs them by their length. */
+    @Test
+    public void testWeigher() throws Exception {
+        TileCache<byte[]> cache = new TileCache<>(name -> new byte[name.length() * 100],
+                file -> file.length, 1000);
+        cache.get("aaa");
+        cache.get("bbbb");
+        assertEquals(700, cache.byteSize());
+        cache.get("cccc");
+        assertEquals(2, cache.size());
+        assertEquals(800, cache.byteSize());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void testNegativeCapacity() {
+        try {
+            images(name -> tile(), -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+
+    /** A cache of decoded images, weighed as the server weighs them. */
+    private static TileCache<BufferedImage> images(TileCache.Loader<BufferedImage> loader,
+                                                   long capacity) {
+        return new TileCache<>(loader, TileCache::weigh, capacity);
+    }
+
+    private static BufferedImage tile() {
+        return new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the serving of single tiles on made-up files: which tiles exist, entity tags and
+ * conditional requests, and that reading a tile returns the whole file.
+ */
+public class TestTileFiles {
+    private File root;
+    private TileFiles tiles;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("tiles").toFile();
+        tiles = new TileFiles(root.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : root.listFiles()) {
+            f.delete();
+        }
+        root.delete();
+    }
+
+    @Test
+    public void testFile() {
+        assertEquals(new File(root, "d0_x0_y0.png"), tiles.file(0, 0, 0));
+        assertEquals(new File(root, "d3_x7_y2.png"), tiles.file(3, 7, 2));
+        assertEquals(new File(root, "d7_x127_y127.png"),
+                tiles.file(Rasterer.MAX_DEPTH, 127, 127));
+        int[][] missing = {{-1, 0, 0}, {Rasterer.MAX_DEPTH + 1, 0, 0}, {0, 1, 0}, {0, 0, 1},
+            {2, 4, 0}, {2, 0, 4}, {2, -1, 0}, {2, 0, -1}};
+        for (int[] t : missing) {
+            try {
+                tiles.file(t[0], t[1], t[2]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testEtag() throws IOException {
+        File tile = tiles.file(1, 0, 1);
+        Files.write(tile.toPath(), new byte[100]);
+        tile.setLastModified(1000000000000L);
+        String etag = TileFiles.etag(tile);
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(etag, TileFiles.etag(tile));
+        /* A different file or a new version of the same file has a different tag. */
+        Files.write(tile.toPath(), new byte[101]);
+        tile.setLastModified(1000000000000L);
+        assertNotEquals(etag, TileFiles.etag(tile));
+        Files.write(tile.toPath(), new byte[100]);
+        tile.setLastModified(1000000001000L);
+        assertNotEquals(etag, TileFiles.etag(tile));
+    }
+
+    @Test
+    public void testNotModified() {
+        String etag = "\"64-e8d4a51000\"";
+        assertFalse(TileFiles.notModified(null, etag));
+        assertTrue(TileFiles.notModified(etag, etag));
+        assertTrue(TileFiles.notModified("W/" + etag, etag));
+        assertTrue(TileFiles.notModified("\"1-2\", " + etag, etag));
+        assertTrue(TileFiles.notModified("*", etag));
+        assertFalse(TileFiles.notModified("\"1-2\"", etag));
+        assertFalse(TileFiles.notModified("64-e8d4a51000", etag));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        byte[] png = new byte[300000];
+        new Random(42).nextBytes(png);
+        Files.write(tiles.file(2, 3, 1).toPath(), png);
+        assertArrayEquals(png, tiles.read("d2_x3_y1.png"));
+
+        Files.write(tiles.file(0, 0, 0).toPath(), new byte[0]);
+        assertEquals(0, tiles.read("d0_x0_y0.png").length);
+        assertNull(tiles.read("d1_x1_y1.png"));
+    }
+}
@@ -0,0 +1,250 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the tile prefetcher on made-up tiles: which tiles it picks around a raster, that
+ * it loads them into the cache, and that it drops work when its queue is full or its
+ * rasters are stale rather than holding up the caller, but not for rasters of other areas.
+ */
+public class TestTilePrefetcher {
+    private static final Rasterer RASTERER = new Rasterer();
+    private static final long TILE_BYTES = 4L * MapServer.TILE_SIZE * MapServer.TILE_SIZE;
+
+    @Test
+    public void testTilesAround() {
+        /* A 2 by 2 raster in the middle of depth 3. */
+        Rasterer.Raster raster = view(3, 3, 3, 4, 4);
+        List<String> names = TilePrefetcher.tilesAround(raster);
+        assertEquals(12 + 16, names.size());
+        assertEquals(new HashSet<>(names).size(), names.size());
+        assertEquals("d3_x2_y2.png", names.get(0));
+        assertTrue(names.containsAll(Arrays.asList("d3_x5_y5.png", "d3_x2_y4.png",
+                "d3_x5_y3.png", "d4_x6_y6.png", "d4_x9_y9.png")));
+        for (int r = 0; r < raster.rows(); r++) {
+            for (int c = 0; c < raster.columns(); c++) {
+                assertFalse(names.contains(raster.tile(r, c)));
+            }
+        }
+        /* The ring comes before the deeper tiles. */
+        assertTrue(names.get(11).startsWith("d3"));
+        assertTrue(names.get(12).startsWith("d4"));
+
+        /* At a corner of the map the ring is cut off. */
+        names = TilePrefetcher.tilesAround(view(2, 0, 0, 0, 0));
+        assertEquals(Arrays.asList("d2_x1_y0.png", "d2_x0_y1.png", "d2_x1_y1.png",
+                "d3_x0_y0.png", "d3_x1_y0.png", "d3_x0_y1.png", "d3_x1_y1.png"), names);
+        /* The whole map at the deepest depth has neither ring nor deeper tiles. */
+        assertTrue(TilePrefetcher.tilesAround(
+                view(Rasterer.MAX_DEPTH, 0, 0, 127, 127)).isEmpty());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        TileCache<BufferedImage> cache = images(name -> tile(), 1000 * TILE_BYTES);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, 2, 100, 4);
+        try {
+            Rasterer.Raster raster = view(3, 3, 3, 4, 4);
+            List<String> names = TilePrefetcher.tilesAround(raster);
+            assertEquals(names.size(), prefetcher.prefetch(raster));
+            waitFor(() -> cache.size() == names.size());
+            assertEquals(names.size(), cache.prefetches());
+            assertEquals(0, cache.misses());
+            /* Tiles that are cached already are not queued again. */
+            assertEquals(0, prefetcher.prefetch(raster));
+
+            cache.get(names.get(0));
+            cache.get(names.get(0));
+            cache.get(names.get(1));
+            cache.get("d0_x0_y0.png");
+            assertEquals(2, cache.prefetchHits());
+            assertEquals(names.size(), prefetcher.submitted());
+            assertEquals(0, prefetcher.rejected());
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrefetchHitsSurviveOnlyUntilEvicted() throws Exception {
+        TileCache<BufferedImage> cache = images(name -> tile(), 2 * TILE_BYTES);
+        assertTrue(cache.prefetch("a.png"));
+        assertTrue(cache.prefetch("a.png"));
+        cache.get("b.png");
+        cache.get("c.png");
+        /* a was evicted before anyone asked for it. */
+        cache.get("a.png");
+        cache.get("a.png");
+        assertEquals(1, cache.prefetches());
+        assertEquals(0, cache.prefetchHits());
+        assertEquals(4, cache.loads());
+    }
+
+    /** A full queue sheds work instead of blocking the thread serving the raster. */
+    @Test
+    public void testBackPressure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TileCache<BufferedImage> cache = images(name -> {
+            hold(release);
+            return tile();
+        }, 1000 * TILE_BYTES);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, 1, 3, 100);
+        try {
+            /* One tile is taken by the thread and three fill the queue. */
+            int queued = prefetcher.prefetch(view(3, 3, 3, 4, 4));
+            assertTrue(queued == 4 || queued == 3);
+            assertEquals(1, prefetcher.rejected());
+            prefetcher.prefetch(view(5, 10, 10, 11, 11));
+            assertTrue(prefetcher.rejected() >= 1);
+        } finally {
+            release.countDown();
+            prefetcher.shutdown();
+        }
+    }
+
+    /** Tiles queued for a raster that its client has moved on from are skipped. */
+    @Test
+    public void testStaleRastersAreSkipped() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Set<String> loaded = Collections.synchronizedSet(new HashSet<>());
+        TileCache<BufferedImage> cache = images(name -> {
+            hold(release);
+            loaded.add(name);
+            return tile();
+        }, 1000 * TILE_BYTES);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, 1, 1000, 1);
+        try {
+            Rasterer.Raster old = view(3, 1, 1, 1, 1);
+            /* Zoomed in on the old raster's ring. */
+            Rasterer.Raster recent = view(5, 9, 9, 9, 9);
+            int oldTiles = prefetcher.prefetch(old);
+            int recentTiles = prefetcher.prefetch(recent);
+            release.countDown();
+            waitFor(() -> prefetcher.stale() + loaded.size() == oldTiles + recentTiles);
+            /* At most the tile the thread had started on is loaded for the old raster. */
+            assertTrue(prefetcher.stale() >= oldTiles - 1);
+            assertTrue(loaded.containsAll(TilePrefetcher.tilesAround(recent)));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    /** Rasters elsewhere on the map, as other clients ask for, leave a raster's tiles live. */
+    @Test
+    public void testOtherAreasAreNotStale() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Set<String> loaded = Collections.synchronizedSet(new HashSet<>());
+        TileCache<BufferedImage> cache = images(name -> {
+            hold(release);
+            loaded.add(name);
+            return tile();
+        }, 1000 * TILE_BYTES);
+        TilePrefetcher prefetcher = new TilePrefetcher(cache, 1, 1000, 1);
+        try {
+            Rasterer.Raster first = view(3, 1, 1, 1, 1);
+            int tiles = prefetcher.prefetch(first);
+            for (int x = 20; x < 30; x += 3) {
+                tiles += prefetcher.prefetch(view(5, x, 25, x, 25));
+            }
+            int queued = tiles;
+            release.countDown();
+            waitFor(() -> loaded.size() == queued);
+            assertEquals(0, prefetcher.stale());
+            assertTrue(loaded.containsAll(TilePrefetcher.tilesAround(first)));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testArea() {
+        double[] area = TilePrefetcher.area(view(3, 2, 3, 4, 5));
+        double tileWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 8;
+        double tileHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / 8;
+        assertEquals(MapServer.ROOT_ULLON + 1 * tileWidth, area[0], 1e-9);
+        assertEquals(MapServer.ROOT_ULLAT - 2 * tileHeight, area[1], 1e-9);
+        assertEquals(MapServer.ROOT_ULLON + 6 * tileWidth, area[2], 1e-9);
+        assertEquals(MapServer.ROOT_ULLAT - 7 * tileHeight, area[3], 1e-9);
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        TileCache<BufferedImage> cache = images(name -> tile(), TILE_BYTES);
+        int[][] arguments = {{0, 1, 1}, {1, 0, 1}, {1, 1, 0}};
+        for (int[] a : arguments) {
+            try {
+                new TilePrefetcher(cache, a[0], a[1], a[2]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.holds()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out.");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * The raster of tiles [xMin, xMax] by [yMin, yMax] at a depth, from a query box just
+     * inside those tiles.
+     */
+    private static Rasterer.Raster view(int depth, int xMin, int yMin, int xMax, int yMax) {
+        double tileWidth = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1 << depth);
+        double tileHeight = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / (1 << depth);
+        double ullon = MapServer.ROOT_ULLON + (xMin + 0.01) * tileWidth;
+        double ullat = MapServer.ROOT_ULLAT - (yMin + 0.01) * tileHeight;
+        double lrlon = MapServer.ROOT_ULLON + (xMax + 0.99) * tileWidth;
+        double lrlat = MapServer.ROOT_ULLAT - (yMax + 0.99) * tileHeight;
+        /* A width that gives one pixel per pixel of the tiles at this depth. */
+        double width = (lrlon - ullon) / tileWidth * MapServer.TILE_SIZE;
+        Rasterer.Raster raster = RASTERER.raster(ullon, ullat, lrlon, lrlat, width);
+        assertEquals(depth, raster.depth());
+        assertEquals(xMin, raster.xMin());
+        assertEquals(yMax, raster.yMax());
+        return raster;
+    }
+
+    /** Holds up a load until the latch is released. */
+    private static void hold(CountDownLatch release) throws IOException {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** A cache of decoded images, weighed as the server weighs them. */
+    private static TileCache<BufferedImage> images(TileCache.Loader<BufferedImage> loader,
+                                                   long capacity) {
+        return new TileCache<>(loader, TileCache::weigh, capacity);
+    }
+
+    private static BufferedImage tile() {
+        return new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,254 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the precomputed edge weights, the speeds and directions read from way tags, and
+ * that every algorithm finds optimal paths on the directed graph under both metrics.
+ */
+public class TestWeightedEdges {
+    private static final int NUM_RANDOM_TESTS = 200;
+    private static final double THRESHOLD = 1e-9;
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /** Directed graphs, prepared for the distance and for the time metric. */
+    private static GraphDB byDistance;
+    private static GraphDB byTime;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        GraphLoader.Options options = GraphLoader.Options.defaults().oneWay(true);
+        byDistance = new GraphDB(OSM_DB_PATH, options);
+        byDistance.setContractionHierarchy(ContractionHierarchy.build(byDistance.compact()));
+        byDistance.setLandmarks(Landmarks.select(byDistance.compact(), Landmarks.DEFAULT_COUNT));
+        byDistance.setChainGraph(ChainGraph.build(byDistance.compact()));
+        byTime = new GraphDB(OSM_DB_PATH, options);
+        byTime.setContractionHierarchy(ContractionHierarchy.build(byTime.compact(),
+                Router.Metric.TIME));
+        byTime.setLandmarks(Landmarks.select(byTime.compact(), Landmarks.DEFAULT_COUNT,
+                Router.Metric.TIME));
+        byTime.setChainGraph(ChainGraph.build(byTime.compact()));
+        initialized = true;
+    }
+
+    @Test
+    public void testSpeed() {
+        assertEquals(25, GraphLoader.speed(tags("maxspeed", "25 mph")), THRESHOLD);
+        assertEquals(50 / 1.609344, GraphLoader.speed(tags("maxspeed", "50")), THRESHOLD);
+        assertEquals(50 / 1.609344, GraphLoader.speed(tags("maxspeed", "50 km/h")), THRESHOLD);
+        assertEquals(35, GraphLoader.speed(tags("maxspeed", "35 mph;25 mph")), THRESHOLD);
+        assertEquals(65, GraphLoader.speed(tags("highway", "motorway")), THRESHOLD);
+        assertEquals(65, GraphLoader.speed(tags("highway", "motorway", "maxspeed", "none")),
+                THRESHOLD);
+        assertEquals(CompactGraph.DEFAULT_SPEED, GraphLoader.speed(tags("highway", "track")),
+                THRESHOLD);
+    }
+
+    @Test
+    public void testDirection() {
+        assertEquals(0, GraphLoader.direction(tags("highway", "residential")));
+        assertEquals(1, GraphLoader.direction(tags("oneway", "yes")));
+        assertEquals(-1, GraphLoader.direction(tags("oneway", "-1")));
+        assertEquals(1, GraphLoader.direction(tags("highway", "motorway")));
+        assertEquals(0, GraphLoader.direction(tags("highway", "motorway", "oneway", "no")));
+        assertEquals(1, GraphLoader.direction(tags("junction", "roundabout")));
+    }
+
+    @Test
+    public void testEdgeWeights() {
+        CompactGraph cg = byDistance.compact();
+        for (int v = 0; v < cg.size(); v++) {
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                int w = cg.edgeTarget(e);
+                double length = GraphDB.distance(cg.lon(v), cg.lat(v), cg.lon(w), cg.lat(w));
+                assertEquals(length, cg.edgeLength(e), 0);
+                assertTrue(cg.edgeTime(e) >= cg.lowerBound(cg.lon(v), cg.lat(v), cg.lon(w),
+                        cg.lat(w), Router.Metric.TIME));
+                assertTrue(cg.isForward(e) || cg.isBackward(e));
+            }
+        }
+    }
+
+    @Test
+    public void testOneWayIsOptIn() {
+        GraphDB undirected = new GraphDB(OSM_DB_PATH);
+        CompactGraph cg = undirected.compact();
+        assertFalse(cg.isDirected());
+        assertTrue(byDistance.compact().isDirected());
+        assertEquals(cg.size(), byDistance.compact().size());
+        assertEquals(cg.edgeCount(), byDistance.compact().edgeCount());
+        for (int e = 0; e < cg.edgeCount(); e++) {
+            assertTrue(cg.isForward(e) && cg.isBackward(e));
+        }
+    }
+
+    @Test
+    public void testDirectedAgainstDijkstra() {
+        Random r = new Random(15);
+        for (Router.Metric metric : Router.Metric.values()) {
+            GraphDB g = metric == Router.Metric.TIME ? byTime : byDistance;
+            CompactGraph cg = g.compact();
+            for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+                double[] q = {TestPoints.randomLon(r), TestPoints.randomLat(r),
+                        TestPoints.randomLon(r), TestPoints.randomLat(r)};
+                double expected = TestPaths.dijkstra(cg, g.closestIndex(q[0], q[1]),
+                        g.closestIndex(q[2], q[3]), metric);
+                for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                    Router.PathResult result = Router.search(g, q[0], q[1], q[2], q[3],
+                            algorithm, metric);
+                    double cost = metric == Router.Metric.TIME ? result.duration()
+                            : result.distance();
+                    assertEquals(algorithm + " " + metric, expected, cost,
+                            expected * THRESHOLD);
+                    checkPath(cg, result);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTimeMetric() {
+        Random r = new Random(16);
+        int faster = 0;
+        for (int i = 0; i < NUM_RANDOM_TESTS; i++) {
+            double[] q = {TestPoints.randomLon(r), TestPoints.randomLat(r),
+                    TestPoints.randomLon(r), TestPoints.randomLat(r)};
+            Router.PathResult shortest = Router.search(byTime, q[0], q[1], q[2], q[3],
+                    Router.Algorithm.ASTAR, Router.Metric.DISTANCE);
+            Router.PathResult quickest = Router.search(byTime, q[0], q[1], q[2], q[3],
+                    Router.Algorithm.ASTAR, Router.Metric.TIME);
+            if (shortest.path().isEmpty()) {
+                assertTrue(quickest.path().isEmpty());
+                continue;
+            }
+            assertTrue(quickest.duration() <= shortest.duration() * (1 + THRESHOLD));
+            assertTrue(shortest.distance() <= quickest.distance() * (1 + THRESHOLD));
+            faster += quickest.duration() < shortest.duration() * (1 - 1e-6) ? 1 : 0;
+        }
+        assertTrue("The time metric never picked a different route", faster > 0);
+    }
+
+    @Test
+    public void testPreparedForAnotherMetric() {
+        CompactGraph cg = byDistance.compact();
+        double[] q = {cg.lon(0), cg.lat(0), cg.lon(1), cg.lat(1)};
+        for (Router.Algorithm algorithm : new Router.Algorithm[] {
+            Router.Algorithm.CONTRACTION_HIERARCHIES, Router.Algorithm.ALT}) {
+            try {
+                Router.search(byDistance, q[0], q[1], q[2], q[3], algorithm, Router.Metric.TIME);
+                fail();
+            } catch (IllegalStateException e) {
+                /* Expected. */
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotKeepsWeights() throws Exception {
+        File source = new File(OSM_DB_PATH);
+        File snapshot = File.createTempFile("directed", ".snap");
+        snapshot.deleteOnExit();
+        GraphSnapshot.save(byDistance, snapshot.getPath(), source);
+        for (GraphDB.Storage storage : GraphDB.Storage.values()) {
+            GraphDB loaded = GraphSnapshot.load(snapshot.getPath(), source, storage);
+            assertNotNull(loaded);
+            CompactGraph expected = byDistance.compact();
+            CompactGraph actual = loaded.compact();
+            assertTrue(actual.isDirected());
+            assertEquals(expected.fingerprint(), actual.fingerprint());
+            for (int e = 0; e < expected.edgeCount(); e++) {
+                assertEquals(expected.edgeFlags(e), actual.edgeFlags(e));
+                assertEquals(expected.edgeLength(e), actual.edgeLength(e), 0);
+                assertEquals(expected.edgeTime(e), actual.edgeTime(e), 0);
+            }
+        }
+    }
+
+    /**
+     * A one-way motorway over a two-way street: each direction of the shared segment takes
+     * the speed of the ways that may travel it, whichever way the file lists first.
+     */
+    @Test
+    public void testOverlappingWays() throws Exception {
+        String fast = " <way id='10'>\n  <nd ref='1'/>\n  <nd ref='2'/>\n  <nd ref='3'/>\n"
+                + "  <tag k='highway' v='motorway'/>\n  <tag k='maxspeed' v='65 mph'/>\n </way>\n";
+        String slow = " <way id='11'>\n  <nd ref='1'/>\n  <nd ref='2'/>\n  <nd ref='3'/>\n"
+                + "  <tag k='highway' v='residential'/>\n  <tag k='maxspeed' v='25 mph'/>\n"
+                + " </way>\n";
+        double[] lons = {-122.26, -122.255, -122.25};
+        double[] lats = {37.87, 37.871, 37.872};
+        double miles = GraphDB.distance(lons[0], lats[0], lons[1], lats[1])
+                + GraphDB.distance(lons[1], lats[1], lons[2], lats[2]);
+        for (String ways : new String[] {fast + slow, slow + fast}) {
+            StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n"
+                    + "<osm version='0.6'>\n");
+            for (int i = 0; i < lons.length; i++) {
+                xml.append(" <node id='").append(i + 1).append("' lat='").append(lats[i])
+                        .append("' lon='").append(lons[i]).append("'/>\n");
+            }
+            xml.append(ways).append("</osm>\n");
+            File osm = File.createTempFile("overlap", ".osm.xml");
+            osm.deleteOnExit();
+            Files.write(osm.toPath(), xml.toString().getBytes("UTF-8"));
+            GraphDB g = new GraphDB(osm.getPath(), GraphLoader.Options.defaults().oneWay(true));
+            CompactGraph cg = g.compact();
+            assertEquals(8, cg.edgeCount());
+            g.setContractionHierarchy(ContractionHierarchy.build(cg, Router.Metric.TIME));
+            g.setLandmarks(Landmarks.select(cg, 2, Router.Metric.TIME));
+            g.setChainGraph(ChainGraph.build(cg));
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                Router.PathResult there = Router.search(g, lons[0], lats[0], lons[2], lats[2],
+                        algorithm, Router.Metric.TIME);
+                assertEquals(algorithm.toString(), miles / 65 * 3600, there.duration(),
+                        THRESHOLD);
+                Router.PathResult back = Router.search(g, lons[2], lats[2], lons[0], lats[0],
+                        algorithm, Router.Metric.TIME);
+                assertEquals(algorithm.toString(), miles / 25 * 3600, back.duration(),
+                        THRESHOLD);
+                assertEquals(miles, back.distance(), THRESHOLD);
+            }
+            List<Long> neighbours = new ArrayList<>();
+            g.adjacent(2).forEach(neighbours::add);
+            assertEquals(Arrays.asList(1L, 3L), neighbours);
+        }
+    }
+
+    /** Checks that a path only uses edges in directions they allow. */
+    private static void checkPath(CompactGraph cg, Router.PathResult result) {
+        List<Long> path = result.path();
+        for (int i = 1; i < path.size(); i++) {
+            int v = cg.index(path.get(i - 1));
+            int w = cg.index(path.get(i));
+            boolean allowed = false;
+            for (int e = cg.edgeBegin(v); e < cg.edgeEnd(v); e++) {
+                allowed |= cg.edgeTarget(e) == w && cg.isForward(e);
+            }
+            assertTrue("Path goes the wrong way down a one-way edge", allowed);
+        }
+    }
+
+    private static Map<String, String> tags(String... keysAndValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            tags.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return tags;
+    }
+}